@@ -0,0 +1,121 @@
+package com.imfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * AsynchronousFileChannel over an ImfsFileChannel.
+ * Reads and writes run on the executor passed to
+ * AsynchronousFileChannel.open, or the common pool when there is none, so
+ * request threads never run them. Futures and completion handlers see the
+ * same results and exceptions as the synchronous positional calls.
+ */
+final class ImfsAsynchronousFileChannel extends AsynchronousFileChannel {
+    private final ImfsFileChannel channel;
+    private final ExecutorService executor;
+
+    ImfsAsynchronousFileChannel(ImfsFileChannel channel, ExecutorService executor) {
+        this.channel = channel;
+        this.executor = executor != null ? executor : ForkJoinPool.commonPool();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        channel.force(metaData);
+    }
+
+    @Override
+    public <A> void lock(long position, long size, boolean shared, A attachment,
+            CompletionHandler<FileLock, ? super A> handler) {
+        throw new UnsupportedOperationException("file locks are not supported");
+    }
+
+    @Override
+    public Future<FileLock> lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("file locks are not supported");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("file locks are not supported");
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long position, A attachment,
+            CompletionHandler<Integer, ? super A> handler) {
+        submit(() -> channel.read(dst, position), attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst, long position) {
+        return submit(() -> channel.read(dst, position));
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long position, A attachment,
+            CompletionHandler<Integer, ? super A> handler) {
+        submit(() -> channel.write(src, position), attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src, long position) {
+        return submit(() -> channel.write(src, position));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private interface Operation {
+        Integer run() throws IOException;
+    }
+
+    private <A> void submit(Operation operation, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        executor.execute(() -> {
+            Integer result;
+            try {
+                result = operation.run();
+            } catch (Throwable ex) {
+                handler.failed(ex, attachment);
+                return;
+            }
+            handler.completed(result, attachment);
+        });
+    }
+
+    private Future<Integer> submit(Operation operation) {
+        var result = new CompletableFuture<Integer>();
+        executor.execute(() -> {
+            try {
+                result.complete(operation.run());
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,28 @@
+package com.imfs;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * What one ImfsFileSystem.putAll did and where the time went.
+ */
+@Getter
+@Builder
+@ToString
+public class ImfsBatchStats {
+    private final int files;
+    // parent directories the batch had to create
+    private final int directories;
+    private final long bytes;
+    // copying, dedup and compression of the contents, before locking
+    private final long prepareNanos;
+    // linking the batch into the tree and logging it, mutations wait meanwhile
+    private final long applyNanos;
+    // waiting for the journal to reach the disk, 0 without one
+    private final long syncNanos;
+
+    public long getTotalNanos() {
+        return prepareNanos + applyNanos + syncNanos;
+    }
+}
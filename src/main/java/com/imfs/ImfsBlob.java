@@ -0,0 +1,521 @@
+package com.imfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable contents of a file, stored as a table of fixed size blocks.
+ * Block i holds the bytes from i * BLOCK_SIZE, so positions map to blocks
+ * with a shift and a mask, and only the last block may be shorter.
+ * Derived blobs (eg: truncate, a patched version) share blocks instead of
+ * copying them.
+ *
+ * Blobs are reference counted so off-heap blocks go back to the allocator
+ * as soon as nothing uses them: a new blob starts with one reference,
+ * owned by whoever stores it (usually a record), and every extra owner
+ * (another record, an open reader) retains it and releases it when done.
+ * Blocks are counted too, by the block tables and writers that share them,
+ * and a block is freed when the last of them lets go.
+ *
+ * Appends and truncates make new versions that share the block table of
+ * this one and only differ by size. Bytes past the size of a version are
+ * invisible to it, so the version that ends where the table ends can append
+ * in place and older versions stay readable as they were.
+ *
+ * Sparse files have holes: whole blocks that were skipped by a write past
+ * the end. They all share HOLE, a read-only block of zeros, so they take no
+ * memory and read as zeros, and a writer copies one like any block it
+ * doesn't own.
+ *
+ * The blocks of a cold or large blob may be deflated, see ImfsCompressor.
+ * Each one is inflated on its own when read, so callers always see plain
+ * blocks, and a compressed blob never appends in place.
+ */
+public final class ImfsBlob {
+    public static final int BLOCK_SHIFT = 16;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    public static final ImfsBlob EMPTY = new ImfsBlob(new ByteBuffer[0], 0, null);
+    // every hole of every file, never freed (its count is null) and never written
+    static final ByteBuffer HOLE = ByteBuffer.allocate(BLOCK_SIZE).asReadOnlyBuffer();
+
+    private final Table table;
+    private final long size;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    // set once the blob is shared by content, see ImfsBlobStore
+    private volatile ImfsBlobStore store;
+    private volatile Object storeKey;
+    // set once the contents are indexed, see ImfsTrigramIndex
+    private volatile ImfsTrigramIndex.Slot indexSlot;
+    // when a reader last opened the blob, in millis, see touch()
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    /**
+     * Wraps borrowed blocks, eg: slices of a mapping, that are never freed.
+     */
+    ImfsBlob(ByteBuffer[] blocks, long size, ImfsBlockAllocator allocator) {
+        this(blocks, new AtomicInteger[blocks.length], size, allocator);
+    }
+
+    /**
+     * Takes over one count on each block from the caller.
+     */
+    ImfsBlob(ByteBuffer[] blocks, AtomicInteger[] blockRefs, long size, ImfsBlockAllocator allocator) {
+        this(new Table(blocks, blockRefs, size, allocator, null), size);
+    }
+
+    /**
+     * Wraps deflated blocks made by the compressor, which inflates them.
+     */
+    static ImfsBlob deflated(ByteBuffer[] blocks, long size, ImfsCompressor compressor) {
+        return new ImfsBlob(new Table(blocks, new AtomicInteger[blocks.length], size, null, compressor), size);
+    }
+
+    // takes over one use of the table
+    private ImfsBlob(Table table, long size) {
+        this.table = table;
+        this.size = size;
+    }
+
+    /**
+     * Copies a byte array into a new blob.
+     *
+     * @param bytes     the contents
+     * @param allocator where the blocks come from
+     * @return the new blob
+     */
+    public static ImfsBlob of(byte[] bytes, ImfsBlockAllocator allocator) {
+        var writer = new ImfsBlobWriter(allocator);
+        writer.write(ByteBuffer.wrap(bytes));
+        return writer.toBlob();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    int blockCount() {
+        return (int) ((size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT);
+    }
+
+    /**
+     * True if the blob frees its blocks, as opposed to borrowing them from
+     * a mapping. Patches of a mapped blob mix both, the first block decides.
+     */
+    boolean ownsBlocks() {
+        return table.allocator != null && size > 0 && table.blockRefs[0] != null;
+    }
+
+    void interned(ImfsBlobStore store, Object key) {
+        this.storeKey = key;
+        this.store = store;
+    }
+
+    void indexed(ImfsTrigramIndex.Slot slot) {
+        this.indexSlot = slot;
+    }
+
+    // the index and the id in it, read together
+    ImfsTrigramIndex.Slot indexSlot() {
+        return indexSlot;
+    }
+
+    ImfsTrigramIndex indexedBy() {
+        var slot = indexSlot;
+        return slot == null ? null : slot.index;
+    }
+
+    // shared by content, replacing it would leave the other files behind
+    boolean isInterned() {
+        return store != null;
+    }
+
+    boolean isCompressed() {
+        return table.compressor != null;
+    }
+
+    /**
+     * Bytes the blocks take, less than the size when they are deflated.
+     */
+    long storedBytes() {
+        if (table.compressor == null) {
+            return size;
+        }
+        long total = 0;
+        for (var block : table.blocks) {
+            total += block.remaining();
+        }
+        return total;
+    }
+
+    /**
+     * Bytes of memory behind the contents, like du as opposed to ls -l:
+     * holes take none, the last block may take more than its bytes, and
+     * blocks shared with other files count for each of them.
+     */
+    long allocatedBytes() {
+        if (table.compressor != null) {
+            return storedBytes();
+        }
+        long total = 0;
+        var blocks = table.blocks;
+        for (int i = 0; i < blockCount(); i++) {
+            if (blocks[i] != HOLE) {
+                total += blocks[i].capacity();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Records a read, see ImfsFileSystem.compressIdle. Only writes once a
+     * second so readers of a hot file don't fight over the field.
+     */
+    void touch() {
+        long now = System.currentTimeMillis();
+        if (now - lastAccess >= 1000) {
+            lastAccess = now;
+        }
+    }
+
+    long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * The raw block at index, for writers that share it with this blob and
+     * scans that read it in place.
+     * Inflated if it is deflated, and then borrowed, see shareBlock.
+     */
+    ByteBuffer block(int index) {
+        return table.block(index);
+    }
+
+    /**
+     * Adds a count on the block at index for a new owner.
+     *
+     * @return the count to give back, or null if the block is borrowed
+     */
+    AtomicInteger shareBlock(int index) {
+        var ref = table.blockRefs[index];
+        if (ref != null) {
+            ref.incrementAndGet();
+        }
+        return ref;
+    }
+
+    /**
+     * Drops one count on a block, the last one gives it back.
+     */
+    static void releaseBlock(ImfsBlockAllocator allocator, ByteBuffer block, AtomicInteger ref) {
+        if (ref != null && ref.decrementAndGet() == 0) {
+            allocator.free(block);
+        }
+    }
+
+    /**
+     * True if the block at position is borrowed, eg: from a mapping, so it
+     * stays valid for as long as anything references it.
+     */
+    boolean borrows(long position) {
+        return position < size && table.blockRefs[(int) (position >>> BLOCK_SHIFT)] == null;
+    }
+
+    /**
+     * Reads bytes starting at the given position into dst.
+     *
+     * @param position the offset in the blob
+     * @param dst      the buffer to fill, up to its remaining bytes
+     * @return the number of bytes read, or -1 at or past the end of the blob
+     */
+    public int read(long position, ByteBuffer dst) {
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            var block = table.block((int) (position >>> BLOCK_SHIFT));
+            int offset = (int) (position & BLOCK_MASK);
+            int length = (int) Math.min(dst.remaining(), Math.min(size - position, block.capacity() - offset));
+            var src = block.duplicate();
+            src.position(offset).limit(offset + length);
+            dst.put(src);
+            position += length;
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * A read-only view of the bytes from position to the end of their block,
+     * at most max bytes. It aliases the block, see buffers().
+     *
+     * @return the view, or null at or past the end of the blob
+     */
+    ByteBuffer view(long position, long max) {
+        if (position >= size || max <= 0) {
+            return null;
+        }
+        return view(table.block((int) (position >>> BLOCK_SHIFT)), size, position, max);
+    }
+
+    static ByteBuffer view(ByteBuffer[] blocks, long size, long position, long max) {
+        if (position >= size || max <= 0) {
+            return null;
+        }
+        return view(blocks[(int) (position >>> BLOCK_SHIFT)], size, position, max);
+    }
+
+    private static ByteBuffer view(ByteBuffer block, long size, long position, long max) {
+        var view = block.asReadOnlyBuffer();
+        int offset = (int) (position & BLOCK_MASK);
+        int length = (int) Math.min(max, Math.min(size - position, view.capacity() - offset));
+        view.position(offset).limit(offset + length);
+        return view;
+    }
+
+    /**
+     * Tells the allocator that views of the blocks are about to leave the
+     * file system, see ImfsBlockAllocator.exported.
+     */
+    void exported() {
+        if (table.allocator != null) {
+            table.allocator.exported();
+        }
+    }
+
+    /**
+     * Read-only views of the blocks, limited to the contents. The views alias
+     * the blocks, so they are only valid while the caller holds a reference.
+     */
+    ByteBuffer[] buffers() {
+        var result = new ByteBuffer[blockCount()];
+        for (int i = 0; i < result.length; i++) {
+            var view = table.block(i).asReadOnlyBuffer();
+            long start = (long) i << BLOCK_SHIFT;
+            view.position(0).limit((int) Math.min(view.capacity(), size - start));
+            result[i] = view;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a blob with only the first newSize bytes, sharing the blocks.
+     * The result owns a new reference, the shared blocks stay alive until
+     * both blobs are released.
+     */
+    public ImfsBlob truncate(long newSize) {
+        if (newSize >= size) {
+            return retain();
+        }
+        table.uses.incrementAndGet();
+        return new ImfsBlob(table, newSize);
+    }
+
+    /**
+     * Returns a blob with the remaining bytes of src after the contents.
+     * If this version ends where its block table ends and the last block has
+     * room, the bytes go in place and the table is shared, so appending costs
+     * O(bytes appended). Otherwise the blocks are shared with a new table and
+     * at most the last one is copied. The result owns a new reference.
+     *
+     * @param allocator where new blocks come from
+     */
+    ImfsBlob append(ByteBuffer src, ImfsBlockAllocator allocator) {
+        synchronized (table) {
+            if (table.canAppend(size, src.remaining())) {
+                table.append(src);
+                table.uses.incrementAndGet();
+                return new ImfsBlob(table, table.end);
+            }
+        }
+        var writer = new ImfsBlobWriter(allocator, this);
+        writer.write(src);
+        // keeps the last block whole so the next appends go in place
+        return writer.toBlob(false);
+    }
+
+    /**
+     * Adds a reference, unless the blob was already released.
+     *
+     * @return false if the blob is gone, the caller should look it up again
+     */
+    public boolean tryRetain() {
+        if (this == EMPTY) {
+            return true;
+        }
+        for (;;) {
+            int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds a reference for a new owner of a blob that is known to be alive.
+     */
+    public ImfsBlob retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("blob already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference, the last one gives the blocks back.
+     */
+    public void release() {
+        if (this == EMPTY) {
+            return;
+        }
+        int count = refs.decrementAndGet();
+        if (count < 0) {
+            throw new IllegalStateException("blob released too many times");
+        }
+        if (count > 0) {
+            return;
+        }
+        var owner = store;
+        if (owner != null) {
+            owner.evict(storeKey, this);
+        }
+        var slot = indexSlot;
+        if (slot != null) {
+            slot.index.remove(slot.id);
+        }
+        table.release();
+    }
+
+    /**
+     * Copies the whole contents into one array.
+     *
+     * @throws OutOfMemoryError if the blob is too large for an array
+     */
+    public byte[] toByteArray() {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Blob is too large for a byte array: " + size);
+        }
+        var result = ByteBuffer.allocate((int) size);
+        read(0, result);
+        return result.array();
+    }
+
+    /**
+     * The blocks shared by the versions of a blob. Appends grow the arrays by
+     * copying them, the blocks themselves never move, so a reader that got
+     * the old arrays still finds its bytes.
+     */
+    private static final class Table {
+        // never handed out, readers get duplicates so positions don't leak
+        volatile ByteBuffer[] blocks;
+        // owners of each block, null for borrowed blocks (eg: mapped) nobody frees
+        volatile AtomicInteger[] blockRefs;
+        // frees the blocks whose count drops to 0
+        final ImfsBlockAllocator allocator;
+        // inflates the blocks, null unless they are deflated
+        final ImfsCompressor compressor;
+        // the last block inflated, sequential reads inflate each block once
+        private volatile Inflated inflated;
+        // versions using the table
+        final AtomicInteger uses = new AtomicInteger(1);
+        // bytes and blocks in use by the longest version, guarded by the table
+        long end;
+        int count;
+
+        Table(ByteBuffer[] blocks, AtomicInteger[] blockRefs, long end, ImfsBlockAllocator allocator,
+                ImfsCompressor compressor) {
+            this.blocks = blocks;
+            this.blockRefs = blockRefs;
+            this.allocator = allocator;
+            this.compressor = compressor;
+            this.end = end;
+            this.count = blocks.length;
+        }
+
+        ByteBuffer block(int index) {
+            var block = blocks[index];
+            if (compressor == null) {
+                return block;
+            }
+            var last = inflated;
+            if (last != null && last.index == index) {
+                return last.block;
+            }
+            int length = (int) Math.min(BLOCK_SIZE, end - ((long) index << BLOCK_SHIFT));
+            var result = compressor.inflate(block, length);
+            inflated = new Inflated(index, result);
+            return result;
+        }
+
+        // only the longest version may write past its end, into a block nobody else shares
+        boolean canAppend(long size, int length) {
+            if (size != end || allocator == null) {
+                return false;
+            }
+            int offset = (int) (size & BLOCK_MASK);
+            if (offset == 0) {
+                // an empty file starts with a small block, see ImfsBlobWriter
+                return count > 0;
+            }
+            var ref = blockRefs[count - 1];
+            int capacity = blocks[count - 1].capacity();
+            return ref != null && ref.get() == 1 && (capacity == BLOCK_SIZE || offset + length <= capacity);
+        }
+
+        void append(ByteBuffer src) {
+            while (src.hasRemaining()) {
+                int offset = (int) (end & BLOCK_MASK);
+                if (offset == 0) {
+                    addBlock();
+                }
+                var block = blocks[count - 1];
+                int length = Math.min(src.remaining(), block.capacity() - offset);
+                var from = src.duplicate();
+                from.limit(from.position() + length);
+                block.duplicate().position(offset).put(from);
+                src.position(src.position() + length);
+                end += length;
+            }
+        }
+
+        private void addBlock() {
+            var newBlocks = blocks;
+            var newRefs = blockRefs;
+            if (count == newBlocks.length) {
+                newBlocks = Arrays.copyOf(newBlocks, Math.max(4, count * 2));
+                newRefs = Arrays.copyOf(newRefs, newBlocks.length);
+            }
+            newBlocks[count] = allocator.allocate(BLOCK_SIZE);
+            newRefs[count] = new AtomicInteger(1);
+            count++;
+            // publish the refs before the blocks, readers start from the blocks
+            blockRefs = newRefs;
+            blocks = newBlocks;
+        }
+
+        void release() {
+            if (uses.decrementAndGet() > 0) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                releaseBlock(allocator, blocks[i], blockRefs[i]);
+            }
+        }
+    }
+
+    private static final class Inflated {
+        final int index;
+        final ByteBuffer block;
+
+        Inflated(int index, ByteBuffer block) {
+            this.index = index;
+            this.block = block;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.imfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over the blob of a file as it was when opened, returned by
+ * newInputStream. It reads the blocks directly instead of going through a
+ * channel adapter: readAllBytes copies each block once into an array of the
+ * exact size and transferTo hands the blocks to the output.
+ */
+final class ImfsBlobInputStream extends InputStream {
+    private static final int CHUNK = 8192;
+
+    private final ImfsBlob blob;
+    private long position = 0;
+    private boolean closed = false;
+
+    // takes over the caller's reference to blob
+    ImfsBlobInputStream(ImfsBlob blob) {
+        this.blob = blob;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        var one = ByteBuffer.allocate(1);
+        if (blob.read(position, one) < 0) {
+            return -1;
+        }
+        position++;
+        return one.get(0) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+        int length = blob.read(position, ByteBuffer.wrap(b, off, len));
+        if (length > 0) {
+            position += length;
+        }
+        return length;
+    }
+
+    @Override
+    public byte[] readAllBytes() throws IOException {
+        ensureOpen();
+        long remaining = Math.max(0, blob.size() - position);
+        if (remaining > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("File is too large for a byte array: " + remaining);
+        }
+        var result = new byte[(int) remaining];
+        blob.read(position, ByteBuffer.wrap(result));
+        position += remaining;
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        long skipped = Math.max(0, Math.min(n, blob.size() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, blob.size() - position));
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        ensureOpen();
+        long total = 0;
+        byte[] chunk = null;
+        while (position < blob.size()) {
+            // the raw block, the view would hide the array of a heap block
+            var block = blob.block((int) (position >>> ImfsBlob.BLOCK_SHIFT));
+            int offset = (int) (position & ImfsBlob.BLOCK_MASK);
+            int length = (int) Math.min(blob.size() - position, block.capacity() - offset);
+            if (block.hasArray()) {
+                out.write(block.array(), block.arrayOffset() + offset, length);
+            } else {
+                // off-heap blocks need a heap copy, OutputStream only takes arrays
+                if (chunk == null) {
+                    chunk = new byte[CHUNK];
+                }
+                var src = block.duplicate();
+                src.position(offset).limit(offset + length);
+                while (src.hasRemaining()) {
+                    int n = Math.min(chunk.length, src.remaining());
+                    src.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+            position += length;
+            total += length;
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            blob.release();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
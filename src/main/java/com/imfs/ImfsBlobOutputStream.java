@@ -0,0 +1,69 @@
+package com.imfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * OutputStream returned by newOutputStream. It copies the caller's bytes
+ * straight into the blocks of a working copy, like a writable
+ * ImfsFileChannel, and publishes the copy on close. With APPEND every write
+ * is appended to the file right away as one atomic record instead.
+ */
+final class ImfsBlobOutputStream extends OutputStream {
+    private final ImfsFileSystem fileSystem;
+    private final ImfsFileHandle file;
+    // null when appending
+    private final ImfsBlobWriter writer;
+    private final byte[] one = new byte[1];
+    private boolean closed = false;
+
+    // takes over the handle and the writer
+    ImfsBlobOutputStream(ImfsFileSystem fileSystem, ImfsFileHandle file, ImfsBlobWriter writer) {
+        this.fileSystem = fileSystem;
+        this.file = file;
+        this.writer = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        var src = ByteBuffer.wrap(b, off, len);
+        if (writer == null) {
+            fileSystem.appendBlob(file, src);
+        } else {
+            writer.write(src);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (writer == null) {
+                return;
+            }
+            if (!fileSystem.isOpen()) {
+                writer.discard();
+                return;
+            }
+            // the blocks move into the blob as they are, nothing gets copied
+            fileSystem.publishBlob(file, writer.toBlob());
+        } finally {
+            fileSystem.closeHandle(file);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.imfs;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed blobs of one volume: blobs with the same contents are
+ * stored once and shared by every record that holds them.
+ *
+ * A blob is keyed by the SHA-256 of its contents and its size. Sharing uses
+ * the reference counts of ImfsBlob, so a shared blob is freed when its last
+ * record lets go of it, and it leaves the store at the same time.
+ */
+final class ImfsBlobStore {
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private final ConcurrentHashMap<Key, ImfsBlob> blobs = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the stored blob with the same contents, or stores this one.
+     * Takes over the caller's reference to blob and returns one to the result,
+     * so a duplicate is released and its blocks are freed right away.
+     */
+    ImfsBlob intern(ImfsBlob blob) {
+        if (!blob.ownsBlocks()) {
+            // empty, mapped or borrowed blocks, hashing them costs more than it saves
+            return blob;
+        }
+        var key = keyOf(blob);
+        var result = blobs.compute(key, (k, existing) -> {
+            // a stored blob whose last reference is gone is on its way out
+            return existing != null && existing.tryRetain() ? existing : blob;
+        });
+        if (result == blob) {
+            blob.interned(this, key);
+        } else {
+            blob.release();
+        }
+        return result;
+    }
+
+    int size() {
+        return blobs.size();
+    }
+
+    // called by the blob on its last release
+    void evict(Object key, ImfsBlob blob) {
+        blobs.remove(key, blob);
+    }
+
+    private static Key keyOf(ImfsBlob blob) {
+        var digest = SHA_256.get();
+        for (ByteBuffer buffer : blob.buffers()) {
+            digest.update(buffer);
+        }
+        return new Key(digest.digest(), blob.size());
+    }
+
+    private static final class Key {
+        private final byte[] hash;
+        private final long size;
+
+        Key(byte[] hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            var that = (Key) other;
+            return size == that.size && Arrays.equals(hash, that.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            // the hash is already uniform, its first bytes will do
+            return (hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff);
+        }
+    }
+}
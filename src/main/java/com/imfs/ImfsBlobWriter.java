@@ -0,0 +1,379 @@
+package com.imfs;
+
+import static com.imfs.ImfsBlob.BLOCK_MASK;
+import static com.imfs.ImfsBlob.BLOCK_SHIFT;
+import static com.imfs.ImfsBlob.BLOCK_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds an ImfsBlob by filling blocks from an allocator.
+ * Bytes are copied once, from the caller's buffer into a block, and the
+ * blocks are handed over to the blob by toBlob() without another copy.
+ * The first block starts small and doubles up to BLOCK_SIZE so tiny files
+ * stay tiny, every later block is allocated at full size.
+ *
+ * A writer can also start from an existing blob to patch it: it shares all
+ * the blocks and only copies a block the first time it writes into it, so
+ * changing a few bytes of a large file costs one block, not the file.
+ * Writing past the end leaves the whole blocks in between as holes, see
+ * ImfsBlob.HOLE, so skipping ahead costs nothing.
+ *
+ * A deflated base is kept as it is and a block is only inflated the first
+ * time it is read or written, so patching a compressed file doesn't inflate
+ * all of it until the writer publishes.
+ */
+final class ImfsBlobWriter {
+    private static final int FIRST_BLOCK = 256;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocate(4096).asReadOnlyBuffer();
+
+    private final ImfsBlockAllocator allocator;
+    private ByteBuffer[] blocks = new ByteBuffer[4];
+    // the writer's count on each block, a block is private when it is the only one
+    private AtomicInteger[] refs = new AtomicInteger[4];
+    private int count = 0;
+    private long size = 0;
+    private boolean done = false;
+    // the base while its blocks are deflated, they are null here until touched
+    private ImfsBlob deflated;
+
+    ImfsBlobWriter(ImfsBlockAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Starts from the contents of base, sharing its blocks. The caller keeps
+     * its reference to base.
+     */
+    ImfsBlobWriter(ImfsBlockAllocator allocator, ImfsBlob base) {
+        this.allocator = allocator;
+        this.count = base.blockCount();
+        this.size = base.size();
+        this.blocks = new ByteBuffer[Math.max(4, count)];
+        this.refs = new AtomicInteger[blocks.length];
+        if (base.isCompressed()) {
+            // the counts stay null, inflated blocks belong to the writer alone
+            this.deflated = base.retain();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            blocks[i] = base.block(i);
+            refs[i] = base.shareBlock(i);
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Appends all the remaining bytes of src.
+     *
+     * @return the number of bytes written
+     */
+    int write(ByteBuffer src) {
+        return write(size, src);
+    }
+
+    /**
+     * Writes all the remaining bytes of src at a position, past the end the
+     * gap reads as zeros.
+     *
+     * @return the number of bytes written
+     */
+    int write(long position, ByteBuffer src) {
+        checkNotDone();
+        if (position > size) {
+            skip(position);
+        }
+        while (size < position) {
+            var zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(zeros.capacity(), position - size));
+            put(size, zeros);
+        }
+        return put(position, src);
+    }
+
+    /**
+     * Reads bytes starting at the given position into dst.
+     *
+     * @return the number of bytes read, or -1 at or past the end
+     */
+    int read(long position, ByteBuffer dst) {
+        checkNotDone();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            var block = block((int) (position >>> BLOCK_SHIFT));
+            int offset = (int) (position & BLOCK_MASK);
+            int length = (int) Math.min(dst.remaining(), Math.min(size - position, block.capacity() - offset));
+            var src = block.duplicate();
+            src.position(offset).limit(offset + length);
+            dst.put(src);
+            position += length;
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * A read-only view of the bytes from position to the end of their block,
+     * at most max bytes. It aliases the block, so later writes show through.
+     *
+     * @return the view, or null at or past the end
+     */
+    ByteBuffer view(long position, long max) {
+        checkNotDone();
+        if (position < size) {
+            block((int) (position >>> BLOCK_SHIFT));
+        }
+        return ImfsBlob.view(blocks, size, position, max);
+    }
+
+    /**
+     * True if the block at position is borrowed, see ImfsBlob.borrows().
+     */
+    boolean borrows(long position) {
+        checkNotDone();
+        return position < size && refs[(int) (position >>> BLOCK_SHIFT)] == null;
+    }
+
+    /**
+     * Reads from src straight into the block at position, up to the end of
+     * the block and at most max bytes.
+     *
+     * @param position at most the current size
+     * @return the number of bytes read, or -1 at the end of src
+     */
+    int read(ReadableByteChannel src, long position, long max) throws IOException {
+        checkNotDone();
+        int offset = (int) (position & BLOCK_MASK);
+        int index = (int) (position >>> BLOCK_SHIFT);
+        int length = (int) Math.min(max, BLOCK_SIZE - offset);
+        int added = count;
+        var block = writable(index, offset, length);
+        var dst = block.duplicate();
+        dst.position(offset).limit(Math.min(block.capacity(), offset + length));
+        int result;
+        try {
+            result = src.read(dst);
+        } finally {
+            if (position >= size && count > added && dst.position() == offset) {
+                // nothing landed in the new block, don't keep it past the end
+                count--;
+                ImfsBlob.releaseBlock(allocator, blocks[count], refs[count]);
+                blocks[count] = null;
+                refs[count] = null;
+            }
+        }
+        size = Math.max(size, position + Math.max(result, 0));
+        return result;
+    }
+
+    /**
+     * Drops everything after newSize, releasing the blocks past it.
+     * Sizes larger than the current size are ignored.
+     */
+    void truncate(long newSize) {
+        checkNotDone();
+        if (newSize >= size) {
+            return;
+        }
+        int keep = (int) ((newSize + BLOCK_SIZE - 1) >>> BLOCK_SHIFT);
+        for (int i = keep; i < count; i++) {
+            ImfsBlob.releaseBlock(allocator, blocks[i], refs[i]);
+            blocks[i] = null;
+            refs[i] = null;
+        }
+        count = keep;
+        size = newSize;
+    }
+
+    /**
+     * Gives the blocks back when the contents are abandoned.
+     */
+    void discard() {
+        checkNotDone();
+        done = true;
+        for (int i = 0; i < count; i++) {
+            ImfsBlob.releaseBlock(allocator, blocks[i], refs[i]);
+        }
+        releaseDeflated();
+    }
+
+    /**
+     * An immutable blob with the contents so far that shares the blocks, the
+     * writer keeps going and copies a block the next time it writes into it.
+     */
+    ImfsBlob share() {
+        checkNotDone();
+        inflateAll();
+        var shared = Arrays.copyOf(refs, count);
+        for (var ref : shared) {
+            if (ref != null) {
+                ref.incrementAndGet();
+            }
+        }
+        return new ImfsBlob(Arrays.copyOf(blocks, count), shared, size, allocator);
+    }
+
+    /**
+     * Hands the blocks over to an immutable blob, the writer can't be used
+     * afterwards.
+     */
+    ImfsBlob toBlob() {
+        return toBlob(true);
+    }
+
+    /**
+     * Like toBlob(), compact false keeps a mostly empty last block as it is,
+     * for blobs that will be appended to.
+     */
+    ImfsBlob toBlob(boolean compact) {
+        checkNotDone();
+        inflateAll();
+        releaseDeflated();
+        done = true;
+        if (compact && count > 0 && isPrivate(count - 1)) {
+            int used = (int) (size - ((long) (count - 1) << BLOCK_SHIFT));
+            var last = blocks[count - 1];
+            if (used < last.capacity() / 2) {
+                // bounded copy (< 1 block) to avoid pinning a mostly empty block
+                blocks[count - 1] = resize(last, used, used);
+            }
+        }
+        return new ImfsBlob(Arrays.copyOf(blocks, count), Arrays.copyOf(refs, count), size, allocator);
+    }
+
+    // zeros up to the end of the last block, the blocks before the one at
+    // position become holes, the rest of the gap is left to the caller
+    private void skip(long position) {
+        long blockEnd = Math.min(position, (size + BLOCK_MASK) & ~(long) BLOCK_MASK);
+        while (size < blockEnd) {
+            var zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(zeros.capacity(), blockEnd - size));
+            put(size, zeros);
+        }
+        int target = (int) (position >>> BLOCK_SHIFT);
+        if (target <= count) {
+            return;
+        }
+        if (target > blocks.length) {
+            blocks = Arrays.copyOf(blocks, Math.max(target, blocks.length * 2));
+            refs = Arrays.copyOf(refs, blocks.length);
+        }
+        // counts stay null, the hole is never freed
+        Arrays.fill(blocks, count, target, ImfsBlob.HOLE);
+        count = target;
+        size = (long) target << BLOCK_SHIFT;
+    }
+
+    // copies as much of src as fits in the block at position
+    private int put(long position, ByteBuffer src) {
+        int total = src.remaining();
+        while (src.hasRemaining()) {
+            int offset = (int) (position & BLOCK_MASK);
+            var block = writable((int) (position >>> BLOCK_SHIFT), offset, src.remaining());
+            int length = Math.min(src.remaining(), block.capacity() - offset);
+            var from = src.duplicate();
+            from.limit(from.position() + length);
+            block.duplicate().position(offset).put(from);
+            src.position(src.position() + length);
+            position += length;
+            size = Math.max(size, position);
+        }
+        return total;
+    }
+
+    // the block at index, inflated from the deflated base on first use
+    private ByteBuffer block(int index) {
+        if (blocks[index] == null) {
+            blocks[index] = deflated.block(index);
+        }
+        return blocks[index];
+    }
+
+    // a blob can't mix deflated and plain blocks, so publishing inflates the rest
+    private void inflateAll() {
+        if (deflated != null) {
+            for (int i = 0; i < count; i++) {
+                block(i);
+            }
+        }
+    }
+
+    private void releaseDeflated() {
+        if (deflated != null) {
+            deflated.release();
+            deflated = null;
+        }
+    }
+
+    // returns a private block that holds the byte at offset, allocating,
+    // growing or unsharing it
+    private ByteBuffer writable(int index, int offset, int needed) {
+        needed = Math.min(offset + needed, BLOCK_SIZE);
+        if (index < count) {
+            block(index);
+        }
+        if (index == count) {
+            int capacity = index == 0 ? roundUp(needed) : BLOCK_SIZE;
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, count * 2);
+                refs = Arrays.copyOf(refs, count * 2);
+            }
+            blocks[count] = allocator.allocate(capacity);
+            refs[count++] = new AtomicInteger(1);
+        } else if (!isPrivate(index) || blocks[index].capacity() == offset) {
+            // only the first and the last block are ever smaller than BLOCK_SIZE
+            int used = (int) Math.min(blocks[index].capacity(), size - ((long) index << BLOCK_SHIFT));
+            int capacity = index == 0 ? roundUp(Math.max(used, needed)) : BLOCK_SIZE;
+            capacity = Math.max(capacity, blocks[index].capacity());
+            blocks[index] = resize(index, used, capacity);
+        }
+        return blocks[index];
+    }
+
+    private boolean isPrivate(int index) {
+        return refs[index] != null && refs[index].get() == 1;
+    }
+
+    private ByteBuffer resize(int index, int used, int capacity) {
+        var result = allocator.allocate(capacity);
+        var from = blocks[index].duplicate();
+        from.position(0).limit(used);
+        result.duplicate().put(from);
+        ImfsBlob.releaseBlock(allocator, blocks[index], refs[index]);
+        refs[index] = new AtomicInteger(1);
+        return result;
+    }
+
+    private ByteBuffer resize(ByteBuffer block, int used, int capacity) {
+        var result = allocator.allocate(capacity);
+        var from = block.duplicate();
+        from.position(0).limit(used);
+        result.duplicate().put(from);
+        allocator.free(block);
+        return result;
+    }
+
+    private static int roundUp(int needed) {
+        if (needed >= BLOCK_SIZE) {
+            return BLOCK_SIZE;
+        }
+        int capacity = Math.max(FIRST_BLOCK, Integer.highestOneBit(needed));
+        return capacity < needed ? capacity << 1 : capacity;
+    }
+
+    private void checkNotDone() {
+        if (done) {
+            throw new IllegalStateException("blob already published");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.imfs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the blocks that hold file contents.
+ * Blocks are at most ImfsBlob.BLOCK_SIZE bytes, only the last block of a
+ * blob may be smaller, so no file ever needs a contiguous allocation larger
+ * than one block.
+ */
+public interface ImfsBlockAllocator {
+    /**
+     * Allocates a block, its contents are unspecified.
+     *
+     * @param capacity the minimum capacity in bytes, at most ImfsBlob.BLOCK_SIZE
+     * @return a buffer with position 0 and limit == capacity()
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * Returns a block that is no longer referenced.
+     *
+     * @param block a buffer previously returned by allocate
+     */
+    void free(ByteBuffer block);
+
+    /**
+     * Bytes in blocks that were allocated and not freed yet.
+     */
+    long allocatedBytes();
+
+    /**
+     * Called before blocks are handed to code outside the file system that
+     * may keep them past their release, eg: the buffers of an ImfsView.
+     */
+    default void exported() {
+    }
+
+    /**
+     * Called when the owning file system closes.
+     */
+    default void close() {
+    }
+
+    /**
+     * Plain heap blocks, freed by the garbage collector.
+     */
+    static ImfsBlockAllocator heap() {
+        return new ImfsBlockAllocator() {
+            private final AtomicLong allocated = new AtomicLong();
+
+            @Override
+            public ByteBuffer allocate(int capacity) {
+                allocated.addAndGet(capacity);
+                return ByteBuffer.allocate(capacity);
+            }
+
+            @Override
+            public void free(ByteBuffer block) {
+                // the GC owns heap blocks, just keep count
+                allocated.addAndGet(-block.capacity());
+            }
+
+            @Override
+            public long allocatedBytes() {
+                return allocated.get();
+            }
+        };
+    }
+}
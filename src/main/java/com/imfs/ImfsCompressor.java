@@ -0,0 +1,106 @@
+package com.imfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates the blocks of cold or large blobs of one volume, see
+ * ImfsOptions.COMPRESS_BYTES and COMPRESS_IDLE_MINUTES, and inflates them
+ * back when they are read.
+ *
+ * Every block is deflated on its own, so a read only inflates the block it
+ * needs and random access stays O(block). The deflated blocks live on the
+ * heap, the plain blocks go back to the allocator once the uncompressed
+ * blob is released. Time spent either way is counted for ImfsStats.
+ */
+final class ImfsCompressor {
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    // smaller savings aren't worth inflating on every read
+    private static final double MAX_RATIO = 0.875;
+
+    private final LongAdder deflateNanos = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    /**
+     * Deflates the blocks of blob into a new blob with the same contents.
+     * The caller keeps its reference to blob.
+     *
+     * @return the compressed blob, or null if it is empty, compressed already
+     *         or doesn't compress well enough
+     */
+    ImfsBlob compress(ImfsBlob blob) {
+        if (blob.size() == 0 || blob.isCompressed()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            var deflater = DEFLATER.get();
+            var buffer = new byte[ImfsBlob.BLOCK_SIZE + 1024];
+            var src = blob.buffers();
+            var blocks = new ByteBuffer[src.length];
+            long total = 0;
+            for (int i = 0; i < src.length; i++) {
+                deflater.reset();
+                deflater.setInput(src[i]);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+                blocks[i] = ByteBuffer.wrap(Arrays.copyOf(buffer, length));
+                total += length;
+            }
+            if (total > blob.size() * MAX_RATIO) {
+                return null;
+            }
+            return ImfsBlob.deflated(blocks, blob.size(), this);
+        } finally {
+            deflateNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Inflates one block made by compress.
+     *
+     * @param length the size of the plain block
+     * @return a heap buffer with exactly length bytes
+     */
+    ByteBuffer inflate(ByteBuffer deflated, int length) {
+        long start = System.nanoTime();
+        try {
+            var inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(deflated.duplicate());
+            var result = new byte[length];
+            int done = 0;
+            while (done < length && !inflater.finished()) {
+                done += inflater.inflate(result, done, length - done);
+            }
+            if (done != length) {
+                throw new IllegalStateException("deflated block is truncated: " + done + " of " + length);
+            }
+            return ByteBuffer.wrap(result);
+        } catch (DataFormatException ex) {
+            // only ever inflates what compress made
+            throw new IllegalStateException("corrupted deflated block", ex);
+        } finally {
+            inflateNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    long deflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    long inflateNanos() {
+        return inflateNanos.sum();
+    }
+}
@@ -2,15 +2,20 @@ package com.imfs;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -146,6 +151,24 @@ public class ImfsContext {
         Files.write(file, Arrays.asList(lines), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
     }
 
+    /**
+     * Writes many files at once, all or nothing, creating the directories
+     * they need, see ImfsFileSystem.putAll.
+     *
+     * @param files the contents by path, relative to the current directory
+     * @return the timings of the batch
+     * @throws IOException if one of the paths can't hold a file, then none
+     *                     of the files is written
+     */
+    public ImfsBatchStats writeAll(Map<String, byte[]> files) throws IOException {
+        var batch = new LinkedHashMap<String, byte[]>();
+        for (var file : files.entrySet()) {
+            var kid = (ImfsPath) this.path.resolve(file.getKey());
+            batch.put(kid.getMaterializedPath(), file.getValue());
+        }
+        return ((ImfsFileSystem) this.path.getFileSystem()).putAll(batch);
+    }
+
     public List<String> readLines(String string) throws IOException {
         Path file = this.path.resolve(string);
         return Files.readAllLines(file);
@@ -177,11 +200,56 @@ public class ImfsContext {
         Files.copy(srcPath, dstPath);
     }
 
+    /**
+     * Copies a directory and all its contents recursively. The copy shares
+     * the nodes and blocks of the source until either side is written to, so
+     * it costs O(depth) whatever the size of the tree.
+     *
+     * @param src the source path of the directory to be copied
+     * @param dst the destination path of the copy
+     * @throws IOException if an I/O error occurs during the copy operation
+     */
+    public void cpdirs(String src, String dst) throws IOException {
+        Path srcPath = this.path.resolve(src);
+        Path dstPath = this.path.resolve(dst);
+        Files.copy(srcPath, dstPath, ImfsCopyOption.RECURSIVE);
+    }
+
     public URI find(String string) {
         Path target = this.path.resolve(string);
         return Files.exists(target) ? target.toUri() : null;
     }
 
+    /**
+     * Finds every file and directory called name at or below root, like
+     * find root -name name, see ImfsFileSystem.findByName.
+     *
+     * @return their URIs, sorted by path
+     */
+    public List<URI> find(String root, String name) {
+        var rootPath = (ImfsPath) this.path.resolve(root);
+        var fileSystem = (ImfsFileSystem) rootPath.getFileSystem();
+        return fileSystem.findByName(rootPath.getMaterializedPath(), name).stream()
+                .map(found -> new ImfsPath(fileSystem, found).toUri())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds every file and directory that matches a glob relative to the
+     * current directory, eg: "src/**&#47;*.java", see
+     * ImfsFileSystem.findMatching.
+     *
+     * @return their URIs, sorted by path
+     */
+    public List<URI> glob(String pattern) {
+        var cwd = this.path;
+        var fileSystem = (ImfsFileSystem) cwd.getFileSystem();
+        var base = cwd.getMaterializedPath().replaceAll("[\\\\*?\\[\\]{},]", "\\\\$0");
+        return fileSystem.findMatching("glob:" + (base.isEmpty() ? "" : base + "/") + pattern).stream()
+                .map(found -> new ImfsPath(fileSystem, found).toUri())
+                .collect(Collectors.toList());
+    }
+
     /**
      * Imports tree of files from a source directory to a destination directory.
      * Used to import files from the host file system into the Imfs file system.
@@ -196,7 +264,7 @@ public class ImfsContext {
         Files.walk(root).forEach(srcPath -> {
             Path dstPath = this.path.resolve(dst + "/" + root.relativize(srcPath).toString());
             try {
-                Files.copy(srcPath, dstPath);
+                copyFromHost(srcPath, dstPath);
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
@@ -227,7 +295,7 @@ public class ImfsContext {
                 }
                 // but if it's a directory, we can just reuse it
                 if (!Files.isDirectory(dstPath)) {
-                    Files.copy(srcPath, dstPath);
+                    copyFromHost(srcPath, dstPath);
                 }
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
@@ -235,6 +303,27 @@ public class ImfsContext {
         });
     }
 
+    // like Files.copy, but file contents go from the host channel straight
+    // into the blocks instead of through stream buffers
+    private static void copyFromHost(Path srcPath, Path dstPath) throws IOException {
+        if (!Files.isRegularFile(srcPath)) {
+            Files.copy(srcPath, dstPath);
+            return;
+        }
+        try (var in = FileChannel.open(srcPath, StandardOpenOption.READ);
+                var out = FileChannel.open(dstPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long copied = out.transferFrom(in, position, size - position);
+                if (copied <= 0) {
+                    break;
+                }
+                position += copied;
+            }
+        }
+    }
+
     private Path copyOfFileName(Path dstPath) {
         int count = 1;
         String pathName = dstPath.toUri().getPath();
@@ -259,16 +348,26 @@ public class ImfsContext {
      * @throws IOException if an I/O error occurs while reading the files
      */
     public Stream<String> grepTree(String root, String pattern) throws IOException {
-        Path rootPath = this.path.resolve(root);
-        return Files.walk(rootPath)
-                .filter(Files::isRegularFile)
-                .flatMap(path -> {
-                    try {
-                        return Files.lines(path);
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                })
-                .filter(line -> line.matches(pattern));
+        return grep(root, pattern, true).stream().map(ImfsMatch::getLine);
+    }
+
+    /**
+     * Searches the files under root for the lines matching pattern, in
+     * parallel, see ImfsFileSystem.grep.
+     *
+     * @param root    the root directory to start the search from
+     * @param pattern the regular expression each whole line is matched against
+     * @param ordered true to get the matches sorted by path and line number
+     * @return the matching lines with their path and line number
+     * @throws NoSuchFileException if there is nothing at root
+     */
+    public List<ImfsMatch> grep(String root, String pattern, boolean ordered) throws IOException {
+        var rootPath = (ImfsPath) this.path.resolve(root);
+        var fileSystem = (ImfsFileSystem) rootPath.getFileSystem();
+        var materializedPath = rootPath.getMaterializedPath();
+        if (!fileSystem.contains(materializedPath)) {
+            throw new NoSuchFileException("No such file or directory: " + rootPath.toUri());
+        }
+        return fileSystem.grep(materializedPath, Pattern.compile(pattern), ordered);
     }
 }
@@ -0,0 +1,15 @@
+package com.imfs;
+
+import java.nio.file.CopyOption;
+
+/**
+ * Imfs specific options for Files.copy.
+ */
+public enum ImfsCopyOption implements CopyOption {
+    /**
+     * Copies a directory with everything below it. The copy shares the
+     * source's nodes and blocks, so it costs O(depth), and either side only
+     * gets its own nodes once it is written to.
+     */
+    RECURSIVE
+}
@@ -0,0 +1,179 @@
+package com.imfs;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap blocks carved out of large direct buffer arenas.
+ * Blocks come in power of two size classes (256 bytes up to BLOCK_SIZE) and
+ * go back to a per-class free list when freed, so the arenas are reused
+ * instead of growing. After close() the arenas are released as soon as the
+ * last outstanding block is freed, without waiting for the GC, unless some
+ * blocks were exported: a buffer kept past its release still points into its
+ * arena, so those arenas are left to the GC, which frees each one once no
+ * buffer of it is reachable.
+ */
+final class ImfsDirectAllocator implements ImfsBlockAllocator {
+    private static final int MIN_SHIFT = 8;
+    private static final int CLASSES = ImfsBlob.BLOCK_SHIFT - MIN_SHIFT + 1;
+
+    // frees the native memory now instead of when the GC finds the buffer,
+    // falls back to the GC when the JDK doesn't allow it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            var unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int arenaSize;
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> freeLists = new ArrayList<>();
+    // guarded by this
+    private final List<ByteBuffer> arenas = new ArrayList<>();
+    private ByteBuffer current;
+    private volatile boolean closed = false;
+    private volatile boolean exported = false;
+    private final AtomicLong allocated = new AtomicLong();
+
+    ImfsDirectAllocator(int arenaSize) {
+        if (arenaSize < ImfsBlob.BLOCK_SIZE) {
+            throw new IllegalArgumentException("arena must hold at least one block: " + arenaSize);
+        }
+        this.arenaSize = arenaSize;
+        for (int i = 0; i < CLASSES; i++) {
+            freeLists.add(new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        if (closed) {
+            throw new IllegalStateException("allocator is closed");
+        }
+        int sizeClass = classOf(capacity);
+        var block = freeLists.get(sizeClass).pollFirst();
+        if (block == null) {
+            block = carve(1 << (sizeClass + MIN_SHIFT));
+        }
+        allocated.addAndGet(block.capacity());
+        block.clear();
+        return block;
+    }
+
+    @Override
+    public void free(ByteBuffer block) {
+        freeLists.get(classOf(block.capacity())).addFirst(block);
+        if (allocated.addAndGet(-block.capacity()) == 0) {
+            releaseIfClosed();
+        }
+    }
+
+    @Override
+    public long allocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * Bytes reserved off-heap by the arenas.
+     */
+    synchronized long reservedBytes() {
+        return (long) arenas.size() * arenaSize;
+    }
+
+    @Override
+    public void exported() {
+        exported = true;
+    }
+
+    /**
+     * No more allocations, the arenas go away once every block is freed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (allocated.get() == 0) {
+            releaseIfClosed();
+        }
+    }
+
+    private synchronized ByteBuffer carve(int size) {
+        if (closed) {
+            throw new IllegalStateException("allocator is closed");
+        }
+        if (current == null || current.remaining() < size) {
+            if (current != null) {
+                recycle(current);
+            }
+            current = ByteBuffer.allocateDirect(arenaSize);
+            arenas.add(current);
+        }
+        var block = current.slice();
+        block.limit(size);
+        current.position(current.position() + size);
+        return block.slice();
+    }
+
+    // hands the unused tail of an arena to the smaller free lists
+    private void recycle(ByteBuffer arena) {
+        for (int shift = ImfsBlob.BLOCK_SHIFT; shift >= MIN_SHIFT; shift--) {
+            while (arena.remaining() >= 1 << shift) {
+                var block = arena.slice();
+                block.limit(1 << shift);
+                arena.position(arena.position() + (1 << shift));
+                freeLists.get(shift - MIN_SHIFT).addFirst(block.slice());
+            }
+        }
+    }
+
+    private synchronized void releaseIfClosed() {
+        if (!closed || allocated.get() != 0) {
+            return;
+        }
+        freeLists.forEach(ConcurrentLinkedDeque::clear);
+        if (!exported) {
+            // freeing an arena under a live buffer would crash the JVM on its next read
+            arenas.forEach(ImfsDirectAllocator::invokeCleaner);
+        }
+        arenas.clear();
+        current = null;
+    }
+
+    private static int classOf(int capacity) {
+        if (capacity <= 0 || capacity > ImfsBlob.BLOCK_SIZE) {
+            throw new IllegalArgumentException("bad block capacity: " + capacity);
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    private static void invokeCleaner(ByteBuffer arena) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, arena);
+        } catch (ReflectiveOperationException ex) {
+            // the GC will get to it
+        }
+    }
+}
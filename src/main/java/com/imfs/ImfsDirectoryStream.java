@@ -1,31 +1,49 @@
 package com.imfs;
 
 import java.io.IOException;
-import java.net.URI;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.stream.Stream;
 
 public class ImfsDirectoryStream implements DirectoryStream<Path> {
+    // set -Dimfs.trace=true to print per-stream stats on close
+    static final boolean TRACE = Boolean.getBoolean("imfs.trace");
+
     private ImfsFileSystem fileSystem;
     private String parent;
     private int version = 0;
     private int inputSize;
     private Stream<Path> stream;
-    private int total = 0;
     private int kids = 0;
     long startTime = System.nanoTime();
-    private final int offset;
+    private final String prefix;
+    private final ImfsFileSystem.Listing listing;
 
-    public ImfsDirectoryStream(ImfsFileSystem fileSystem, String materializedPath,
-            Stream<String> input, int inputSize, Filter<? super Path> filter) {
+    /**
+     * Streams the direct children of a directory. The kids are built from
+     * their dentries, their URIs are only made if asked for. Each kid keeps
+     * the node it was listed with, so walks that read the attributes of
+     * every entry (Files.walk, walkFileTree) don't resolve it again, see
+     * ImfsFileSystem.resolve(ImfsPath).
+     *
+     * @param fileSystem       the owning file system
+     * @param materializedPath the parent directory
+     * @param listing          the directory the kids are listed from, null if none
+     * @param kids             the dentries of the direct children, in order
+     * @param inputSize        the number of kids
+     * @param filter           optional filter, may be null
+     */
+    ImfsDirectoryStream(ImfsFileSystem fileSystem, String materializedPath, ImfsFileSystem.Listing listing,
+            Stream<Map.Entry<String, ImfsNode>> kids, int inputSize, Filter<? super Path> filter) {
         this.fileSystem = fileSystem;
         this.parent = materializedPath;
         this.inputSize = inputSize;
-        this.offset = parent.length() + 1;
+        this.prefix = materializedPath.isEmpty() ? "" : materializedPath + "/";
+        this.listing = listing;
 
-        this.stream = input.filter(this::isChild)
+        this.stream = kids
                 .map(this::toPath)
                 .filter(each -> {
                     try {
@@ -36,16 +54,9 @@ public class ImfsDirectoryStream implements DirectoryStream<Path> {
                 });
     }
 
-    private Path toPath(String entry) {
-        return new ImfsPath(fileSystem, URI.create("imfs://" + fileSystem.getKey() + "/" + entry));
-    }
-
-    private boolean isChild(String each) {
-        total++;
-        // paths with no extra slashes are children
-        var result = each.indexOf("/", offset) == -1;
-        kids += result ? 1 : 0;
-        return result;
+    private Path toPath(Map.Entry<String, ImfsNode> kid) {
+        kids++;
+        return new ImfsPath(fileSystem, prefix + kid.getKey(), listing, kid.getKey(), kid.getValue());
     }
 
     @Override
@@ -55,19 +66,15 @@ public class ImfsDirectoryStream implements DirectoryStream<Path> {
 
     @Override
     public void close() throws IOException {
-        // Print the count when the stream is closed
-        // ... the code being measured ...
-        long endTime = System.nanoTime();
-
-        long elapsed = (endTime - startTime) / 1_000_000;
-
-        System.out.println("ImfsDirectoryStream"
-                + ": path=" + parent
-                + ", version=" + version
-                + ", size=" + inputSize
-                + ", total=" + total
-                + ", kids=" + kids
-                + ", elapsed=" + elapsed);
+        if (TRACE) {
+            long elapsed = (System.nanoTime() - startTime) / 1_000_000;
+            System.out.println("ImfsDirectoryStream"
+                    + ": path=" + parent
+                    + ", version=" + version
+                    + ", size=" + inputSize
+                    + ", kids=" + kids
+                    + ", elapsed=" + elapsed);
+        }
         stream.close();
     }
 
@@ -2,6 +2,8 @@ package com.imfs;
 
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import lombok.Builder;
 import lombok.Getter;
@@ -12,15 +14,36 @@ public class ImfsFileAttributes implements BasicFileAttributes {
     private String materializedPath;
     private boolean hasBytes;
     private long size;
+    // memory behind the contents, less than size for sparse or compressed files
+    private long allocatedSize;
 
     public static ImfsFileAttributes of(ImfsRecord record) {
         return ImfsFileAttributes.builder()
                 .materializedPath(record.getMaterializedPath())
-                .hasBytes(record.getBytes() != null)
-                .size(record.getBytes() != null ? record.getBytes().length : 0)
+                .hasBytes(!record.isDirectory())
+                .size(record.isDirectory() ? 0 : record.getBlob().size())
+                .allocatedSize(record.isDirectory() ? 0 : record.getBlob().allocatedBytes())
                 .build();
     }
 
+    /**
+     * The attributes by name, as returned by Files.readAttributes(path, "imfs:*").
+     * The basic view has all of them but allocatedSize.
+     */
+    Map<String, Object> toMap(boolean withImfs) {
+        var result = new LinkedHashMap<String, Object>();
+        result.put("size", size);
+        result.put("isRegularFile", isRegularFile());
+        result.put("isDirectory", isDirectory());
+        result.put("isSymbolicLink", false);
+        result.put("isOther", false);
+        result.put("fileKey", fileKey());
+        if (withImfs) {
+            result.put("allocatedSize", allocatedSize);
+        }
+        return result;
+    }
+
     @Override
     public FileTime creationTime() {
         // TODO Auto-generated method stub
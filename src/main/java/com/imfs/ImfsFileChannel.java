@@ -0,0 +1,357 @@
+package com.imfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * FileChannel over a file, also returned by newByteChannel.
+ *
+ * A read-only channel reads the blob of the file as it was when opened.
+ * A writable channel patches a private working copy that shares the blocks
+ * of the file and only copies the blocks it writes into, the copy replaces
+ * the file on close or force(). Readers opened before that keep the previous
+ * contents. An APPEND channel has no copy, every write is appended to the
+ * file right away as one atomic record, see ImfsFileSystem.appendBlob.
+ * Writable channels follow their file through renames with an
+ * ImfsFileHandle, and a file deleted while open takes the writes with it.
+ *
+ * transferTo hands views of the blocks to the target and transferFrom reads
+ * the source straight into the blocks, so copies don't go through an
+ * intermediate heap buffer. Operations are serialized on the channel, like
+ * the position lock of the default FileChannel.
+ */
+final class ImfsFileChannel extends FileChannel {
+    private final ImfsPath path;
+    // where the file is now, null for read-only channels
+    private final ImfsFileHandle file;
+    // at most one of them, depending on the mode, none when appending
+    private final ImfsBlob blob;
+    private final ImfsBlobWriter writer;
+    private final boolean readable;
+    private long position = 0;
+
+    private ImfsFileChannel(ImfsPath path, ImfsFileHandle file, ImfsBlob blob, ImfsBlobWriter writer,
+            boolean readable) {
+        this.path = path;
+        this.file = file;
+        this.blob = blob;
+        this.writer = writer;
+        this.readable = readable;
+    }
+
+    /**
+     * A read-only channel, it takes over the caller's reference to blob.
+     */
+    static ImfsFileChannel reading(ImfsPath path, ImfsBlob blob) {
+        return new ImfsFileChannel(path, null, blob, null, true);
+    }
+
+    /**
+     * A writable channel, published to the file on close. It takes over the
+     * handle, see ImfsFileSystem.openHandle.
+     */
+    static ImfsFileChannel writing(ImfsPath path, ImfsFileHandle file, ImfsBlobWriter writer, boolean readable) {
+        return new ImfsFileChannel(path, file, null, writer, readable);
+    }
+
+    /**
+     * A write-only channel that appends to the file. It takes over the handle.
+     */
+    static ImfsFileChannel appending(ImfsPath path, ImfsFileHandle file) {
+        return new ImfsFileChannel(path, file, null, null, false);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int length = read(dst, position());
+        if (length > 0) {
+            position += length;
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        checkReadable();
+        checkPosition(position);
+        return writer != null ? writer.read(position, dst) : blob.read(position, dst);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (isAppending()) {
+            return write(src, 0);
+        }
+        int length = write(src, position());
+        position += length;
+        return length;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        checkWritable();
+        checkPosition(position);
+        if (isAppending()) {
+            // like pwrite with O_APPEND, the position is ignored
+            int length = src.remaining();
+            fileSystem().appendBlob(file, src);
+            return length;
+        }
+        return writer.write(position, src);
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return isAppending() ? size() : position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        checkPosition(newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        if (isAppending()) {
+            var record = file.isDeleted() ? null : fileSystem().getRecord(file.getPath());
+            if (record == null || record.isDirectory()) {
+                throw new NoSuchFileException("No such file: " + path.toUri());
+            }
+            return record.getBlob().size();
+        }
+        return writer != null ? writer.size() : blob.size();
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException {
+        checkWritable();
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        if (isAppending()) {
+            fileSystem().truncateBlob(file, size);
+            return this;
+        }
+        writer.truncate(size);
+        position = Math.min(position, size);
+        return this;
+    }
+
+    /**
+     * Publishes the contents written so far, readers that open the file
+     * afterwards see them. The channel keeps writing to its working copy.
+     */
+    @Override
+    public synchronized void force(boolean metaData) throws IOException {
+        ensureOpen();
+        if (writer != null) {
+            fileSystem().publishBlob(file, writer.share());
+        }
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkReadable();
+        checkPosition(position);
+        long total = 0;
+        while (total < count) {
+            var view = writer != null ? writer.view(position + total, count - total)
+                    : blob.view(position + total, count - total);
+            if (view == null) {
+                break;
+            }
+            int length = target.write(view);
+            total += length;
+            if (view.hasRemaining()) {
+                // the target is full, eg: a non blocking socket
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        checkWritable();
+        checkPosition(position);
+        if (isAppending()) {
+            return appendFrom(src, count);
+        }
+        long total = 0;
+        while (total < count && position + total <= writer.size()) {
+            int length = writer.read(src, position + total, count - total);
+            if (length <= 0) {
+                break;
+            }
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Only READ_ONLY and PRIVATE mappings are supported. A READ_ONLY range
+     * within one block of a restored image is a slice of the image mapping,
+     * a real MappedByteBuffer. Anything else is a direct copy of the range:
+     * allocator blocks can be reused once the file lets go of them, a
+     * mapping has to outlive that.
+     *
+     * The copy relies on the direct buffers of OpenJDK (and the JVMs built
+     * from it) being MappedByteBuffers without a file, whose force() and
+     * load() do nothing. That is not part of the API, so it is checked, and
+     * a JVM whose direct buffers aren't gets an UnsupportedOperationException
+     * for such ranges.
+     */
+    @Override
+    public synchronized MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        ensureOpen();
+        if (mode == MapMode.READ_WRITE) {
+            checkWritable();
+            throw new UnsupportedOperationException("READ_WRITE mappings are not supported");
+        }
+        checkReadable();
+        checkPosition(position);
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid size: " + size);
+        }
+        if (position + size > size()) {
+            throw new IOException("Cannot map past the end of a file: " + path.toUri());
+        }
+        boolean borrowed = writer != null ? writer.borrows(position) : blob.borrows(position);
+        var view = writer != null ? writer.view(position, size) : blob.view(position, size);
+        if (mode == MapMode.READ_ONLY && borrowed && view != null && view.remaining() == size) {
+            var slice = view.slice();
+            if (slice instanceof MappedByteBuffer) {
+                return (MappedByteBuffer) slice;
+            }
+        }
+        var copy = ByteBuffer.allocateDirect((int) size);
+        read(copy, position);
+        copy.flip();
+        var result = mode == MapMode.READ_ONLY ? copy.asReadOnlyBuffer() : copy;
+        if (!(result instanceof MappedByteBuffer)) {
+            throw new UnsupportedOperationException("Only ranges of a restored image can be mapped on this JVM");
+        }
+        return (MappedByteBuffer) result;
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("file locks are not supported");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("file locks are not supported");
+    }
+
+    @Override
+    protected synchronized void implCloseChannel() throws IOException {
+        if (writer == null && !isAppending()) {
+            blob.release();
+            return;
+        }
+        var fileSystem = fileSystem();
+        try {
+            if (isAppending()) {
+                return;
+            }
+            if (!fileSystem.isOpen()) {
+                writer.discard();
+                return;
+            }
+            // the blocks move into the blob as they are, nothing gets copied
+            fileSystem.publishBlob(file, writer.toBlob());
+        } finally {
+            fileSystem.closeHandle(file);
+        }
+    }
+
+    // appends whatever src has, in chunks, each chunk is one atomic append
+    private long appendFrom(ReadableByteChannel src, long count) throws IOException {
+        var chunk = ByteBuffer.allocateDirect((int) Math.min(count, ImfsBlob.BLOCK_SIZE));
+        long total = 0;
+        while (total < count) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), count - total));
+            int length = src.read(chunk);
+            if (length <= 0) {
+                break;
+            }
+            fileSystem().appendBlob(file, chunk.flip());
+            total += length;
+        }
+        return total;
+    }
+
+    private boolean isAppending() {
+        return blob == null && writer == null;
+    }
+
+    private ImfsFileSystem fileSystem() {
+        return (ImfsFileSystem) path.getFileSystem();
+    }
+
+    private void checkReadable() throws IOException {
+        ensureOpen();
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        ensureOpen();
+        if (writer == null && !isAppending()) {
+            throw new NonWritableChannelException();
+        }
+    }
+
+    private static void checkPosition(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position: " + position);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
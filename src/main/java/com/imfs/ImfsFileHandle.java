@@ -0,0 +1,38 @@
+package com.imfs;
+
+/**
+ * The identity of a file open for writing, as opposed to the path it was
+ * opened with. The volume moves the handle along when the file or one of
+ * its parents is renamed, and marks it deleted when the file goes away, so
+ * a writer publishes to wherever the file is when it closes.
+ * Both fields only change under the lock of the file's path.
+ */
+final class ImfsFileHandle {
+    private volatile String path;
+    private volatile boolean deleted;
+
+    ImfsFileHandle(String path) {
+        this.path = path;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    boolean isDeleted() {
+        return deleted;
+    }
+
+    // the file moved from src to dst along with everything below it
+    void moved(String src, String dst) {
+        if (!deleted && ImfsFileSystem.isWithin(path, src)) {
+            path = dst + path.substring(src.length());
+        }
+    }
+
+    void deleted(String removed) {
+        if (ImfsFileSystem.isWithin(path, removed)) {
+            deleted = true;
+        }
+    }
+}
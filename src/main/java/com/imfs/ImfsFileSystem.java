@@ -1,16 +1,40 @@
 package com.imfs;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.ReadOnlyFileSystemException;
 import java.nio.file.WatchService;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import java.util.Arrays;
 import java.util.List;
@@ -21,30 +45,171 @@ public class ImfsFileSystem extends FileSystem {
             ImfsRecord.ofDir("history"),
             ImfsRecord.ofDir("Spanish"));
 
+    private static final int LOCK_STRIPES = 1024;
+    // how often the trigram index catches up with a file that keeps growing
+    private static final long APPEND_INDEX_MILLIS = 1000;
+
     private ImfsProvider provider;
     private String key;
     private final ImfsRecord ROOT = ImfsRecord.ofDir("");
 
-    TreeMap<String, ImfsRecord> records = new TreeMap<>();
+    // readers resolve paths by walking the tree from the root without locking,
+    // writers lock the paths they touch (see putRecord, removeEntry and lock).
+    // only replaced by rollback, under lockExclusive
+    volatile ImfsNode root;
+    // serializes writers copying shared nodes, see copyPath
+    private final Object copyLock = new Object();
+    // bumped whenever a directory is unlinked, moved or replaced by a copy,
+    // after which a dentry may no longer be on the path it was listed at
+    private final AtomicLong relinks = new AtomicLong();
+    private final ImfsLocks locks = new ImfsLocks(LOCK_STRIPES);
+    // mutations share it, operations that remap whole subtrees (directory
+    // renames, journal checkpoints) take it exclusively, see lockExclusive
+    private final ReentrantReadWriteLock namespaceLock = new ReentrantReadWriteLock();
+    private final ImfsOptions options;
+    private final ImfsBlockAllocator allocator;
+    // null unless the volume dedups file contents
+    private final ImfsBlobStore blobStore;
+    // deflates large and idle files, see ImfsOptions.COMPRESS_BYTES
+    private final ImfsCompressor compressor;
+    // runs compressIdle, null unless the volume compresses idle files
+    private final ScheduledExecutorService sweeper;
+    // feeds published contents to the trigram index, null unless the volume has one
+    private final ScheduledExecutorService indexer;
+    // replaced by rebuildIndex, on the indexer
+    private volatile ImfsTrigramIndex trigrams;
+    // the latest contents of files that grew by appends, waiting for the indexer
+    private final Map<String, ImfsBlob> appended = new ConcurrentHashMap<>();
+    // entries by name, null unless the volume has a name index
+    private final ImfsNameIndex names;
+    private volatile ImfsJournal journal = ImfsJournal.DISABLED;
+    private volatile boolean isOpen = true;
+    // the volume a snapshot was taken from, null for live volumes
+    private final ImfsFileSystem origin;
+    // open snapshots of this volume, oldest first
+    private final Deque<ImfsFileSystem> snapshots = new ArrayDeque<>();
+    // files open for writing, moves and deletes keep them up to date
+    private final Set<ImfsFileHandle> handles = ConcurrentHashMap.newKeySet();
 
     public ImfsFileSystem(ImfsProvider imfsProvider, String key) {
+        this(imfsProvider, key, ImfsOptions.defaults());
+    }
+
+    public ImfsFileSystem(ImfsProvider imfsProvider, String key, ImfsOptions options) {
         this.provider = imfsProvider;
         this.key = key;
-        this.records = initEntries(key);
+        this.options = options;
+        this.allocator = options.newAllocator();
+        this.blobStore = options.isDedup() ? new ImfsBlobStore() : null;
+        this.compressor = new ImfsCompressor();
+        this.names = options.isNameIndex() ? new ImfsNameIndex() : null;
+        this.root = ImfsNode.directory();
+        this.origin = null;
+        this.sweeper = options.getCompressIdleMinutes() > 0 ? startSweeper(options.getCompressIdleMinutes()) : null;
+        if (options.getTrigramIndexBytes() > 0) {
+            this.trigrams = new ImfsTrigramIndex(options.getTrigramIndexBytes());
+            this.indexer = Executors.newSingleThreadScheduledExecutor(task -> {
+                var thread = new Thread(task, "imfs-index-" + key);
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.indexer = null;
+        }
+        initEntries(key);
+    }
+
+    // a read-only view sharing the nodes of origin, see openSnapshot
+    private ImfsFileSystem(ImfsFileSystem origin, String key, ImfsNode root) {
+        this.provider = origin.provider;
+        this.key = key;
+        this.options = origin.options.toBuilder().journal(null).build();
+        // never allocates, the blocks it shares belong to the origin
+        this.allocator = ImfsBlockAllocator.heap();
+        this.blobStore = null;
+        this.compressor = origin.compressor;
+        this.sweeper = null;
+        // grep goes by the index of the origin, it is keyed by contents
+        this.indexer = null;
+        // findByName walks, the paths of the origin change under it
+        this.names = null;
+        this.root = root;
+        this.origin = origin;
     }
 
-    private static TreeMap<String, ImfsRecord> initEntries(String key) {
-        TreeMap<String, ImfsRecord> result = new TreeMap<>();
+    private ScheduledExecutorService startSweeper(long idleMinutes) {
+        var result = Executors.newSingleThreadScheduledExecutor(task -> {
+            var thread = new Thread(task, "imfs-compress-" + key);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // half the idle time, files get compressed at most 1.5 idle times after their last read
+        long period = Math.max(1, TimeUnit.MINUTES.toSeconds(idleMinutes) / 2);
+        result.scheduleWithFixedDelay(() -> {
+            if (isOpen) {
+                compressIdle(Duration.ofMinutes(idleMinutes));
+            }
+        }, period, period, TimeUnit.SECONDS);
+        return result;
+    }
+
+    private void initEntries(String key) {
         if (key.contains("Test")) {
-            TEST_DIRS.forEach(record -> result.put(record.getMaterializedPath(), record));
+            TEST_DIRS.forEach(this::storeRecord);
         }
-        return result;
     }
 
+    /**
+     * Recovers the volume from its journal and starts logging mutations to
+     * it, when the options name one. Called once by newFileSystem.
+     */
+    void openJournal() throws IOException {
+        if (options.getJournal() != null) {
+            journal = ImfsJournal.open(this, options);
+        }
+    }
+
+    /**
+     * Drops every entry and releases the storage. Off-heap memory is returned
+     * right away, or when the last open channel closes, or by the GC if views
+     * of it were handed out, see ImfsDirectAllocator. Pending journal
+     * entries are written and synced first.
+     */
     @Override
     public void close() throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'close'");
+        if (!isOpen) {
+            return;
+        }
+        isOpen = false;
+        provider.removeFileSystem(this);
+        if (origin != null) {
+            synchronized (origin.snapshots) {
+                origin.snapshots.remove(this);
+            }
+        }
+        for (var snapshot : snapshots()) {
+            snapshot.close();
+        }
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        if (indexer != null) {
+            // queued contents are dropped, the one being read must finish before the blocks go
+            indexer.shutdownNow();
+            try {
+                indexer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            appended.values().forEach(ImfsBlob::release);
+            appended.clear();
+        }
+        try {
+            journal.close();
+        } finally {
+            unlinkAll();
+            allocator.close();
+        }
     }
 
     @Override
@@ -59,10 +224,16 @@ public class ImfsFileSystem extends FileSystem {
         throw new UnsupportedOperationException("Unimplemented method 'getPath'");
     }
 
+    /**
+     * Matches "glob:" or "regex:" patterns against the materialized path,
+     * eg: "glob:src/**&#47;*.java" matches src/main/Foo.java, see ImfsGlob.
+     * To list the matches of a volume use findMatching, which doesn't walk
+     * the directories that can't match.
+     */
     @Override
-    public PathMatcher getPathMatcher(String arg0) {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'getPathMatcher'");
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        var glob = ImfsGlob.compile(syntaxAndPattern);
+        return path -> path instanceof ImfsPath && glob.matches(((ImfsPath) path).getMaterializedPath());
     }
 
     @Override
@@ -85,14 +256,15 @@ public class ImfsFileSystem extends FileSystem {
 
     @Override
     public boolean isOpen() {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'isOpen'");
+        return isOpen;
     }
 
+    /**
+     * True for snapshots, see openSnapshot.
+     */
     @Override
     public boolean isReadOnly() {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'isReadOnly'");
+        return origin != null;
     }
 
     @Override
@@ -108,61 +280,1311 @@ public class ImfsFileSystem extends FileSystem {
 
     @Override
     public Set<String> supportedFileAttributeViews() {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'supportedFileAttributeViews'");
+        return Set.of("basic", "imfs");
     }
 
     public String getKey() {
         return key;
     }
 
-    public ImfsDirectoryStream streamAllPaths(Filter<? super Path> filter) {
-        System.out.println("--- streamAllPaths: records.size() = " + records.size());
-        return new ImfsDirectoryStream(this, "", records.keySet().stream(), records.size(), filter);
+    public ImfsOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Collects the counters of the volume. Walks every record, so it costs
+     * O(records).
+     */
+    public ImfsStats stats() {
+        long records = 0;
+        long logicalBytes = 0;
+        long storedBytes = 0;
+        long compressedBlobs = 0;
+        long uncompressedBytes = 0;
+        long compressedBytes = 0;
+        var seen = Collections.newSetFromMap(new IdentityHashMap<ImfsBlob, Boolean>());
+        var pending = new ArrayList<ImfsNode>(List.of(root));
+        while (!pending.isEmpty()) {
+            var node = pending.remove(pending.size() - 1);
+            for (var kid : node.children().values()) {
+                records++;
+                if (kid.isDirectory()) {
+                    pending.add(kid);
+                    continue;
+                }
+                var blob = kid.getBlob();
+                logicalBytes += blob.size();
+                if (seen.add(blob)) {
+                    storedBytes += blob.size();
+                    if (blob.isCompressed()) {
+                        compressedBlobs++;
+                        uncompressedBytes += blob.size();
+                        compressedBytes += blob.storedBytes();
+                    }
+                }
+            }
+        }
+        return ImfsStats.builder()
+                .storage(options.getStorage())
+                .records(records)
+                .allocatedBytes(allocator.allocatedBytes())
+                .logicalBytes(logicalBytes)
+                .storedBytes(storedBytes)
+                .dedupBlobs(blobStore == null ? 0 : blobStore.size())
+                .compressedBlobs(compressedBlobs)
+                .uncompressedBytes(uncompressedBytes)
+                .compressedBytes(compressedBytes)
+                .deflateNanos(compressor.deflateNanos())
+                .inflateNanos(compressor.inflateNanos())
+                .indexedBlobs(trigrams == null ? 0 : trigrams.indexedBlobs())
+                .indexBytes(trigrams == null ? 0 : trigrams.estimatedBytes())
+                .build();
     }
 
     public ImfsDirectoryStream streamChildren(String materializedPath, Filter<? super Path> filter) {
-        if (materializedPath.length() == 0) {
-            return streamAllPaths(filter);
+        // read first, a relink while listing only makes the kids resolve again
+        long seen = relinks.get();
+        var node = resolve(materializedPath);
+        if (node == null || !node.isDirectory()) {
+            return new ImfsDirectoryStream(this, materializedPath, null, Stream.empty(), 0, filter);
         }
+        var listing = new Listing(node, seen);
+        return new ImfsDirectoryStream(this, materializedPath, listing,
+                node.children().entrySet().stream(), node.children().size(), filter);
+    }
+
+    /**
+     * The directory a stream listed its kids from, see resolve(ImfsPath).
+     */
+    static final class Listing {
+        private final ImfsNode directory;
+        private final long relinks;
 
-        var from = materializedPath + "/";
-        var to = materializedPath + "0";
-        var sub = records.subMap(from, to);
-        System.out.println("--- streamChildren: sub.size() = " + sub.size());
-        return new ImfsDirectoryStream(this, materializedPath, sub.keySet().stream(), sub.size(), filter);
+        private Listing(ImfsNode directory, long relinks) {
+            this.directory = directory;
+            this.relinks = relinks;
+        }
+    }
 
+    public boolean hasChildren(String materializedPath) {
+        var node = resolve(materializedPath);
+        return node != null && node.isDirectory() && !node.children().isEmpty();
     }
 
     public boolean contains(String materializedPath) {
-        return records.containsKey(materializedPath);
+        return resolve(materializedPath) != null;
     }
 
+    /**
+     * Walks the tree down to a path, costs O(depth).
+     *
+     * @return the node, or null if there is none at that path
+     */
+    ImfsNode resolve(String materializedPath) {
+        var node = root;
+        int start = 0;
+        while (start < materializedPath.length()) {
+            if (!node.isDirectory()) {
+                return null;
+            }
+            int end = segmentEnd(materializedPath, start);
+            node = node.children().get(materializedPath.substring(start, end));
+            if (node == null) {
+                return null;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Resolves a path, in O(1) if a directory stream listed it: the node it
+     * was listed with still holds if nothing relinked a directory since and
+     * its dentry still points at it. Sizes and types are then read live off
+     * the node, so a listed path never reports stale attributes.
+     *
+     * @return the node, or null if there is none at that path
+     */
+    ImfsNode resolve(ImfsPath path) {
+        var listing = path.listing();
+        if (listing != null && listing.relinks == relinks.get()
+                && listing.directory.children().get(path.listedName()) == path.listedNode()) {
+            return path.listedNode();
+        }
+        return resolve(path.getMaterializedPath());
+    }
+
+    // every dentry listed before this call resolves its path again
+    private void relinked() {
+        relinks.incrementAndGet();
+    }
+
+    /**
+     * Drops every entry and restores the initial ones.
+     * Not atomic, only meant for tests and benchmarks between runs.
+     *
+     * @throws UnsupportedOperationException if the volume is journaled, the log
+     *                                       can't express a reset
+     */
     public void reset() {
-        records = initEntries(key);
+        if (journal != ImfsJournal.DISABLED) {
+            throw new UnsupportedOperationException("Reset of a journaled volume: " + key);
+        }
+        clear();
+        initEntries(key);
+    }
+
+    /**
+     * Drops every entry, see reset and restore.
+     *
+     * @throws ReadOnlyFileSystemException if this is a snapshot
+     */
+    void clear() {
+        ensureWritable();
+        unlinkAll();
+    }
+
+    // also on snapshots, when they close
+    private void unlinkAll() {
+        for (var name : root.children().keySet()) {
+            var node = root.children().remove(name);
+            if (node != null) {
+                node.unlink();
+            }
+        }
+        relinked();
+        if (names != null) {
+            names.clear();
+        }
+    }
+
+    /**
+     * Locks the given paths against concurrent mutations until the handle is
+     * closed. Use it to make check-then-act sequences atomic, eg: checking that
+     * a directory is empty before removing it.
+     */
+    ImfsLocks.Held lock(String... materializedPaths) {
+        ensureWritable();
+        return locks.lock(namespaceLock.readLock(), materializedPaths);
+    }
+
+    /**
+     * Locks the whole namespace against mutations until the handle is closed,
+     * readers are not affected. Needed to move a directory: the paths of
+     * everything below it change, and mutations in the subtree lock their
+     * paths, not their nodes. Can't be taken while holding lock().
+     */
+    ImfsLocks.Held lockExclusive() {
+        ensureWritable();
+        return locks.lock(namespaceLock.writeLock());
+    }
+
+    /**
+     * Opens a read-only view of the volume as it is now, registered as a
+     * volume of its own, eg: imfs://key/. The view shares every node and
+     * block with this volume, so it costs O(entries in the root) and the
+     * volume only copies what it changes afterwards. Scans of the view see
+     * one consistent state and never block writers.
+     *
+     * Up to maxSnapshots views are kept, opening one more closes the oldest.
+     * Closing the volume closes its snapshots.
+     *
+     * @param snapshotKey the URI host of the view
+     * @throws FileSystemAlreadyExistsException if a volume has that key
+     */
+    @SuppressWarnings("try")
+    public ImfsFileSystem openSnapshot(String snapshotKey) {
+        ensureOpen();
+        ImfsFileSystem snapshot;
+        // in flight mutations finish first, so the view is a point in time
+        try (var held = lockExclusive()) {
+            snapshot = new ImfsFileSystem(this, snapshotKey, root.copy());
+        }
+        try {
+            provider.addFileSystem(snapshot);
+        } catch (FileSystemAlreadyExistsException ex) {
+            snapshot.unlinkAll();
+            throw ex;
+        }
+        ImfsFileSystem oldest = null;
+        synchronized (snapshots) {
+            snapshots.addLast(snapshot);
+            if (snapshots.size() > options.getMaxSnapshots()) {
+                oldest = snapshots.peekFirst();
+            }
+        }
+        if (oldest != null) {
+            try {
+                oldest.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return snapshot;
     }
 
+    /**
+     * The open snapshots of this volume, oldest first.
+     */
+    public List<ImfsFileSystem> snapshots() {
+        synchronized (snapshots) {
+            return new ArrayList<>(snapshots);
+        }
+    }
+
+    /**
+     * Brings the volume back to the state captured by one of its snapshots,
+     * atomically for readers. The snapshot stays open.
+     *
+     * @throws IllegalArgumentException      if it isn't a snapshot of this volume
+     * @throws UnsupportedOperationException if the volume is journaled, the log
+     *                                       can't express a rollback
+     */
+    @SuppressWarnings("try")
+    public void rollback(ImfsFileSystem snapshot) {
+        if (snapshot.origin != this || !snapshot.isOpen()) {
+            throw new IllegalArgumentException("Not an open snapshot of " + key + ": " + snapshot.getKey());
+        }
+        if (journal != ImfsJournal.DISABLED) {
+            throw new UnsupportedOperationException("Rollback of a journaled volume: " + key);
+        }
+        try (var held = lockExclusive()) {
+            var previous = root;
+            root = snapshot.root.copy();
+            relinked();
+            if (names != null) {
+                names.rebuild(root);
+            }
+            previous.unlink();
+            // writers lose their files, like a delete
+            handles.forEach(handle -> handle.deleted(""));
+        }
+    }
+
+    /**
+     * The write-ahead log of the volume. Mutations append to it while holding
+     * their locks and wait for durability with sync after releasing them.
+     */
+    ImfsJournal journal() {
+        return journal;
+    }
+
+    /**
+     * Removes the entry at a path, and everything below it, and logs it to
+     * the journal.
+     */
+    @SuppressWarnings("try")
     public void removeEntry(String materializedPath) {
-        records.remove(materializedPath);
+        try {
+            long sequence;
+            try (var held = lock(parentOf(materializedPath), materializedPath)) {
+                dropEntry(materializedPath);
+                sequence = journal.delete(materializedPath);
+            }
+            journal.sync(sequence);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Like removeEntry, without logging to the journal: for its replay and
+     * for callers that log the change themselves.
+     */
+    @SuppressWarnings("try")
+    void dropEntry(String materializedPath) {
+        var parent = parentOf(materializedPath);
+        try (var held = lock(parent, materializedPath)) {
+            var parentNode = writable(parent);
+            if (materializedPath.isEmpty() || parentNode == null || !parentNode.isDirectory()) {
+                return;
+            }
+            var node = parentNode.children().remove(nameOf(materializedPath));
+            if (node != null) {
+                if (node.isDirectory()) {
+                    relinked();
+                }
+                if (names != null) {
+                    names.removeTree(materializedPath, node);
+                }
+                node.unlink();
+                handles.forEach(handle -> handle.deleted(materializedPath));
+            }
+        }
+    }
+
+    /**
+     * Starts tracking a file that is being opened for writing, the caller
+     * holds the lock of its path.
+     */
+    ImfsFileHandle openHandle(String materializedPath) {
+        var handle = new ImfsFileHandle(materializedPath);
+        handles.add(handle);
+        return handle;
+    }
+
+    void closeHandle(ImfsFileHandle handle) {
+        handles.remove(handle);
+    }
+
+    // locks the current path of a handle, or returns null if the file is gone
+    private ImfsLocks.Held lock(ImfsFileHandle handle) {
+        for (;;) {
+            var path = handle.getPath();
+            var held = lock(parentOf(path), path);
+            if (handle.isDeleted()) {
+                held.close();
+                return null;
+            }
+            if (path.equals(handle.getPath())) {
+                return held;
+            }
+            // moved before we got the lock, try the new path
+            held.close();
+        }
     }
 
     public void putBlob(String materializedPath, byte[] bytes) {
-        records.put(materializedPath,
-                ImfsRecord.builder().materializedPath(materializedPath).bytes(bytes).build());
+        putBlob(materializedPath, ImfsBlob.of(bytes, allocator));
+    }
+
+    /**
+     * Stores new contents for a file, taking over the caller's reference to
+     * the blob, and logs them to the journal. If the volume dedups, the file
+     * may end up sharing an equal blob instead, and this one is released.
+     */
+    public void putBlob(String materializedPath, ImfsBlob blob) {
+        putRecord(ImfsRecord.builder().materializedPath(materializedPath).blob(intern(blob)).build());
+    }
+
+    void storeBlob(String materializedPath, byte[] bytes) {
+        storeBlob(materializedPath, ImfsBlob.of(bytes, allocator));
+    }
+
+    /**
+     * Like putBlob, without logging to the journal: for its replay, image
+     * loads and callers that log the change themselves.
+     */
+    void storeBlob(String materializedPath, ImfsBlob blob) {
+        putStored(materializedPath, intern(blob));
+    }
+
+    private void putStored(String materializedPath, ImfsBlob stored) {
+        storeRecord(ImfsRecord.builder().materializedPath(materializedPath).blob(stored).build(), false);
     }
 
+    /**
+     * Stores a batch of files at once, creating their missing parent
+     * directories. All or nothing: if a path can't hold a file (eg: it is a
+     * directory, or one of its parents is a file) nothing is stored.
+     * Readers see all the files or none of them: the batch goes into a copy
+     * of the root that shares everything it doesn't touch, see ImfsNode, and
+     * the copy replaces the root in one write. Every directory on the way is
+     * copied once per batch instead of locked once per file. Mutations wait
+     * until the batch is in, like a directory move, and journals replay it
+     * whole or not at all.
+     *
+     * @param files the contents by materialized path
+     * @throws FileSystemException if a path can't hold a file
+     */
+    @SuppressWarnings("try")
+    public ImfsBatchStats putAll(Map<String, byte[]> files) throws IOException {
+        ensureOpen();
+        long start = System.nanoTime();
+        // sorted, so the files of a directory are linked one after the other
+        var blobs = new TreeMap<String, ImfsBlob>();
+        long bytes = 0;
+        for (var file : files.entrySet()) {
+            blobs.put(file.getKey(), intern(ImfsBlob.of(file.getValue(), allocator)));
+            bytes += file.getValue().length;
+        }
+        long prepared = System.nanoTime();
+        var created = new ArrayList<String>();
+        long sequence;
+        try (var held = lockExclusive()) {
+            try {
+                checkBatch(blobs.keySet());
+            } catch (IOException ex) {
+                blobs.values().forEach(ImfsBlob::release);
+                throw ex;
+            }
+            var next = root.copy();
+            for (var file : blobs.entrySet()) {
+                link(next, file.getKey(), file.getValue(), created);
+            }
+            try {
+                journal.beginBatch();
+                for (var directory : created) {
+                    journal.mkdir(directory);
+                }
+                for (var file : blobs.entrySet()) {
+                    // the new nodes keep the blobs alive
+                    journal.put(file.getKey(), file.getValue());
+                }
+                sequence = journal.endBatch();
+            } catch (IOException | RuntimeException ex) {
+                next.unlink();
+                throw ex;
+            }
+            var previous = root;
+            root = next;
+            relinked();
+            previous.unlink();
+            if (names != null) {
+                created.forEach(names::add);
+                blobs.keySet().forEach(names::add);
+            }
+        }
+        blobs.values().forEach(this::index);
+        long applied = System.nanoTime();
+        journal.sync(sequence);
+        return ImfsBatchStats.builder()
+                .files(blobs.size())
+                .directories(created.size())
+                .bytes(bytes)
+                .prepareNanos(prepared - start)
+                .applyNanos(applied - prepared)
+                .syncNanos(System.nanoTime() - applied)
+                .build();
+    }
+
+    // every path must be free for a file, and so must every parent for a directory
+    private void checkBatch(Set<String> paths) throws FileSystemException {
+        for (var path : paths) {
+            if (path.isEmpty() || path.startsWith("/") || path.endsWith("/") || path.contains("//")) {
+                throw new FileSystemException(path, null, "Not a file path");
+            }
+            var node = resolve(path);
+            if (node != null && node.isDirectory()) {
+                throw new FileSystemException(path, null, "Is a directory");
+            }
+            for (var parent = parentOf(path); !parent.isEmpty(); parent = parentOf(parent)) {
+                var parentNode = resolve(parent);
+                if (paths.contains(parent) || parentNode != null && !parentNode.isDirectory()) {
+                    throw new FileSystemException(path, null, "Not a directory: " + parent);
+                }
+            }
+        }
+    }
+
+    // links a new file node under a root that is not published yet, copying
+    // the shared directories on the way and creating the missing ones
+    private static void link(ImfsNode root, String materializedPath, ImfsBlob blob, List<String> created) {
+        var node = root;
+        int start = 0;
+        for (;;) {
+            int end = segmentEnd(materializedPath, start);
+            var name = materializedPath.substring(start, end);
+            if (end == materializedPath.length()) {
+                var previous = node.children().put(name, ImfsNode.file(blob));
+                if (previous != null) {
+                    previous.unlink();
+                }
+                return;
+            }
+            var kid = node.children().get(name);
+            if (kid == null) {
+                kid = ImfsNode.directory();
+                node.children().put(name, kid);
+                created.add(materializedPath.substring(0, end));
+            } else if (kid.isShared()) {
+                // shared with the published root, or a snapshot
+                var copy = kid.copy();
+                node.children().put(name, copy);
+                kid.unlink();
+                kid = copy;
+            }
+            node = kid;
+            start = end + 1;
+        }
+    }
+
+    // dedups, then compresses what is large enough and not shared by content
+    private ImfsBlob intern(ImfsBlob blob) {
+        var stored = blobStore == null ? blob : blobStore.intern(blob);
+        long threshold = options.getCompressBytes();
+        if (threshold <= 0 || stored.size() < threshold || stored.isInterned()) {
+            return stored;
+        }
+        var compressed = compressor.compress(stored);
+        if (compressed == null) {
+            return stored;
+        }
+        stored.release();
+        return compressed;
+    }
+
+    /**
+     * Deflates the files that nobody opened for at least idle, see
+     * ImfsCompressor. Runs in the background when the volume has
+     * compressIdleMinutes. Files shared by content (dedup) are skipped, and
+     * so are files written while their blob is being deflated.
+     *
+     * @return the number of files compressed
+     */
+    public int compressIdle(Duration idle) {
+        ensureOpen();
+        ensureWritable();
+        long now = System.currentTimeMillis();
+        var records = retainRecords();
+        int count = 0;
+        try {
+            for (var record : records) {
+                var blob = record.getBlob();
+                if (record.isDirectory() || blob.isInterned() || now - blob.lastAccess() < idle.toMillis()) {
+                    continue;
+                }
+                var compressed = compressor.compress(blob);
+                if (compressed != null && replaceBlob(record.getMaterializedPath(), blob, compressed)) {
+                    count++;
+                }
+            }
+        } finally {
+            releaseRecords(records);
+        }
+        return count;
+    }
+
+    // swaps in equal contents unless the file changed meanwhile, nothing to log
+    @SuppressWarnings("try")
+    private boolean replaceBlob(String materializedPath, ImfsBlob expected, ImfsBlob replacement) {
+        try (var held = lock(parentOf(materializedPath), materializedPath)) {
+            var node = resolve(materializedPath);
+            if (node == null || node.isDirectory() || node.getBlob() != expected) {
+                replacement.release();
+                return false;
+            }
+            putStored(materializedPath, replacement);
+            return true;
+        }
+    }
+
+    /**
+     * Stores new contents for an open file and logs them to the journal,
+     * taking over the caller's reference to the blob. The contents go to
+     * wherever the file is now, or nowhere if it was deleted.
+     */
+    void publishBlob(ImfsFileHandle file, ImfsBlob blob) throws IOException {
+        long sequence;
+        // hash before locking, it reads the whole blob
+        var stored = intern(blob);
+        try (var held = lock(file)) {
+            if (held == null) {
+                // like writing to an unlinked file, the contents go with it
+                stored.release();
+                return;
+            }
+            var materializedPath = file.getPath();
+            var parent = resolve(parentOf(materializedPath));
+            if (parent == null || !parent.isDirectory()) {
+                stored.release();
+                throw new NoSuchFileException("Parent directory is gone: " + materializedPath);
+            }
+            putStored(materializedPath, stored);
+            // the record keeps the blob alive, nobody can replace it while locked
+            sequence = journal.put(materializedPath, stored);
+        }
+        journal.sync(sequence);
+    }
+
+    /**
+     * Appends the remaining bytes of src to a file as one write, appends to
+     * the same file never interleave. The new contents share the blocks of
+     * the old ones, see ImfsBlob.append, and only the appended bytes are
+     * logged to the journal.
+     *
+     * @return the size of the file after the append
+     * @throws NoSuchFileException if there is no such file
+     */
+    long appendBlob(String materializedPath, ByteBuffer src) throws IOException {
+        return appendBlob(new ImfsFileHandle(materializedPath), src);
+    }
+
+    /**
+     * Appends to an open file wherever it is now, see appendBlob(String).
+     *
+     * @return the size of the file after the append, or -1 if the file was
+     *         deleted and the bytes went with it
+     */
+    long appendBlob(ImfsFileHandle file, ByteBuffer src) throws IOException {
+        long sequence;
+        long size;
+        try (var held = lock(file)) {
+            if (held == null) {
+                src.position(src.limit());
+                return -1;
+            }
+            var materializedPath = file.getPath();
+            var blob = fileBlob(materializedPath);
+            long from = blob.size();
+            if (!src.hasRemaining()) {
+                return from;
+            }
+            var appended = blob.append(src, allocator);
+            size = appended.size();
+            storeRecord(ImfsRecord.builder().materializedPath(materializedPath).blob(appended).build(), true);
+            sequence = journal.append(materializedPath, appended, from);
+        }
+        journal.sync(sequence);
+        return size;
+    }
+
+    /**
+     * Cuts a file down to newSize, see truncateBlob(ImfsFileHandle, long).
+     *
+     * @throws NoSuchFileException if there is no such file
+     */
+    void truncateBlob(String materializedPath, long newSize) throws IOException {
+        truncateBlob(new ImfsFileHandle(materializedPath), newSize);
+    }
+
+    /**
+     * Cuts an open file down to newSize, sharing its blocks. Larger sizes
+     * leave it as it is, and so does a deleted file. Only the new size is
+     * logged to the journal.
+     */
+    void truncateBlob(ImfsFileHandle file, long newSize) throws IOException {
+        long sequence;
+        try (var held = lock(file)) {
+            if (held == null) {
+                return;
+            }
+            var materializedPath = file.getPath();
+            var blob = fileBlob(materializedPath);
+            if (newSize >= blob.size()) {
+                return;
+            }
+            var truncated = blob.truncate(newSize);
+            putStored(materializedPath, truncated);
+            sequence = journal.truncate(materializedPath, newSize);
+        }
+        journal.sync(sequence);
+    }
+
+    // the blob of a file, only valid while its path is locked
+    private ImfsBlob fileBlob(String materializedPath) throws NoSuchFileException {
+        var node = resolve(materializedPath);
+        if (node == null || node.isDirectory()) {
+            throw new NoSuchFileException("No such file: " + materializedPath);
+        }
+        return node.getBlob();
+    }
+
+    /**
+     * Stores a copy of the record at src under dst, sharing its blocks.
+     *
+     * @return false if there is no record at src
+     */
+    @SuppressWarnings("try")
+    boolean copyRecord(String src, String dst) {
+        try (var held = lock(src, parentOf(dst), dst)) {
+            var srcRecord = getRecord(src);
+            if (srcRecord == null) {
+                return false;
+            }
+            if (!srcRecord.isDirectory()) {
+                // both records share the blocks, safe since the src is locked
+                srcRecord.getBlob().retain();
+            }
+            storeRecord(srcRecord.toBuilder().materializedPath(dst).build());
+            return true;
+        }
+    }
+
+    /**
+     * Relinks the node at src under dst, along with everything below it, so
+     * it costs O(depth) whatever the size of the subtree. Replaces any node
+     * at dst. Moving a directory needs lockExclusive.
+     *
+     * @return false if there is no node at src or no directory to put it in
+     */
+    @SuppressWarnings("try")
+    boolean moveNode(String src, String dst) {
+        if (src.equals(dst)) {
+            return resolve(src) != null;
+        }
+        try (var held = lock(parentOf(src), src, parentOf(dst), dst)) {
+            var srcParent = writable(parentOf(src));
+            var dstParent = writable(parentOf(dst));
+            if (src.isEmpty() || srcParent == null || dstParent == null || !dstParent.isDirectory()) {
+                return false;
+            }
+            var node = srcParent.children().get(nameOf(src));
+            if (node == null || isWithin(dst, src)) {
+                return false;
+            }
+            // link the new name first, so readers never miss the node
+            var previous = dstParent.children().put(nameOf(dst), node);
+            srcParent.children().remove(nameOf(src), node);
+            if (node.isDirectory() || previous != null && previous.isDirectory()) {
+                relinked();
+            }
+            if (names != null) {
+                if (previous != null) {
+                    names.removeTree(dst, previous);
+                }
+                names.removeTree(src, node);
+                names.addTree(dst, node);
+            }
+            if (previous != null) {
+                previous.unlink();
+                handles.forEach(handle -> handle.deleted(dst));
+            }
+            handles.forEach(handle -> handle.moved(src, dst));
+            return true;
+        }
+    }
+
+    /**
+     * Copies the directory at src and everything below it to dst in
+     * O(depth): dst links the same nodes, which are copied one level at a
+     * time as either side is written to, see ImfsNode. Needs lockExclusive,
+     * nodes must not become shared while a writer is working below them.
+     *
+     * @return false if there is no node at src or no directory to put it in
+     */
+    @SuppressWarnings("try")
+    boolean copyTree(String src, String dst) {
+        try (var held = lock(src, parentOf(dst), dst)) {
+            var node = resolve(src);
+            var dstParent = writable(parentOf(dst));
+            if (src.isEmpty() || node == null || dstParent == null || !dstParent.isDirectory()
+                    || isWithin(dst, src)) {
+                return false;
+            }
+            var previous = dstParent.children().put(nameOf(dst), node.share());
+            if (previous != null && previous.isDirectory()) {
+                relinked();
+            }
+            if (names != null) {
+                if (previous != null) {
+                    names.removeTree(dst, previous);
+                }
+                names.addTree(dst, node);
+            }
+            if (previous != null) {
+                previous.unlink();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Resolves a path for writing: shared nodes on the way, the target
+     * included, are replaced by private copies first. Call with the path
+     * locked, so no new sharing can start meanwhile.
+     *
+     * @return the node, or null if there is none at that path
+     */
+    ImfsNode writable(String materializedPath) {
+        var node = root;
+        int start = 0;
+        while (start < materializedPath.length()) {
+            if (!node.isDirectory()) {
+                return null;
+            }
+            int end = segmentEnd(materializedPath, start);
+            var name = materializedPath.substring(start, end);
+            var kid = node.children().get(name);
+            if (kid == null) {
+                return null;
+            }
+            // a node that is still linked here and not shared is ours for good:
+            // nothing shares nodes while we hold the namespace lock
+            if (kid.isShared() || node.children().get(name) != kid) {
+                return copyPath(materializedPath);
+            }
+            node = kid;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private ImfsNode copyPath(String materializedPath) {
+        // writers below the same shared node would each copy it, one at a time
+        synchronized (copyLock) {
+            var node = root;
+            int start = 0;
+            while (start < materializedPath.length()) {
+                if (!node.isDirectory()) {
+                    return null;
+                }
+                int end = segmentEnd(materializedPath, start);
+                var name = materializedPath.substring(start, end);
+                var kid = node.children().get(name);
+                if (kid == null) {
+                    return null;
+                }
+                if (kid.isShared()) {
+                    var copy = kid.copy();
+                    if (!node.children().replace(name, kid, copy)) {
+                        // unlinked by a writer of this very name, look again
+                        copy.unlink();
+                        continue;
+                    }
+                    kid.unlink();
+                    kid = copy;
+                    relinked();
+                }
+                node = kid;
+                start = end + 1;
+            }
+            return node;
+        }
+    }
+
+    private static int segmentEnd(String materializedPath, int start) {
+        int slash = materializedPath.indexOf('/', start);
+        return slash == -1 ? materializedPath.length() : slash;
+    }
+
+    /**
+     * Copies the contents of a file into a byte array.
+     */
     public byte[] getBlob(String materializedPath) {
-        return records.get(materializedPath).getBytes();
+        var blob = retainBlob(materializedPath);
+        try {
+            return blob.toByteArray();
+        } finally {
+            blob.release();
+        }
+    }
+
+    /**
+     * Finds the lines that match a regex, whole like String.matches, in the
+     * files at or below a path, see ImfsGrep. Files are searched in
+     * parallel, weakly consistent while mutations run. With a trigram index
+     * only the files that may match are read.
+     *
+     * @param ordered true to get the matches sorted by path and line number
+     * @return the matches, empty if there is nothing at that path
+     */
+    public List<ImfsMatch> grep(String materializedPath, Pattern pattern, boolean ordered) {
+        ensureOpen();
+        var node = resolve(materializedPath);
+        if (node == null) {
+            return List.of();
+        }
+        var grep = new ImfsGrep(pattern);
+        var index = origin != null ? origin.trigrams : trigrams;
+        var candidates = index == null ? null : index.candidates(grep.literals());
+        return grep.search(materializedPath, node, ordered, candidates);
     }
 
+    /**
+     * The paths of the files and directories called name at or below a path,
+     * sorted. Costs O(log entries + matches) on volumes with a name index,
+     * see ImfsNameIndex, and a walk of the subtree otherwise.
+     */
+    public List<String> findByName(String materializedPath, String name) {
+        ensureOpen();
+        if (names != null) {
+            return names.find(materializedPath, name);
+        }
+        var result = new ArrayList<String>();
+        var node = resolve(materializedPath);
+        if (node != null) {
+            findByName(materializedPath, node, name, result);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * The paths that match a "glob:" or "regex:" pattern, sorted, see
+     * getPathMatcher. Only the directory of the literal prefix of the
+     * pattern is walked, and of a glob only the directories whose names can
+     * match, so the cost follows the matches rather than the volume. Globs
+     * that end in a literal name below a ** use the name index if there is
+     * one.
+     */
+    public List<String> findMatching(String syntaxAndPattern) {
+        ensureOpen();
+        var glob = ImfsGlob.compile(syntaxAndPattern);
+        var name = glob.literalName();
+        if (names != null && name != null && glob.isDeep()) {
+            var result = new ArrayList<String>();
+            for (var path : names.find(glob.prefix(), name)) {
+                if (glob.matches(path)) {
+                    result.add(path);
+                }
+            }
+            return result;
+        }
+        var node = resolve(glob.prefix());
+        return node == null ? List.of() : glob.find(node);
+    }
+
+    private static void findByName(String materializedPath, ImfsNode node, String name, List<String> result) {
+        if (!materializedPath.isEmpty() && nameOf(materializedPath).equals(name)) {
+            result.add(materializedPath);
+        }
+        if (node.isDirectory()) {
+            for (var kid : node.children().entrySet()) {
+                var path = materializedPath.isEmpty() ? kid.getKey() : materializedPath + "/" + kid.getKey();
+                findByName(path, kid.getValue(), name, result);
+            }
+        }
+    }
+
+    /**
+     * Opens a zero-copy view of the contents of a file as they are now, see
+     * ImfsView. The caller must close it.
+     *
+     * @return the view, or null if there is no such file
+     */
+    public ImfsView readView(String materializedPath) {
+        var blob = retainBlob(materializedPath);
+        return blob == null ? null : new ImfsView(blob);
+    }
+
+    /**
+     * Returns the current blob of a file with an extra reference, so it stays
+     * readable even if the file is replaced or deleted. The caller must
+     * release it.
+     *
+     * @return the retained blob, or null if there is no such file
+     */
+    public ImfsBlob retainBlob(String materializedPath) {
+        for (;;) {
+            var node = resolve(materializedPath);
+            if (node == null || node.isDirectory()) {
+                return null;
+            }
+            var blob = node.getBlob();
+            if (blob.tryRetain()) {
+                blob.touch();
+                return blob;
+            }
+            // lost a race with a writer or a delete, look again
+        }
+    }
+
+    /**
+     * Writes the whole volume to a single image file on the host, replacing
+     * it atomically. Not a point in time copy while writers are active.
+     *
+     * @param target a path on the default file system
+     */
+    public void snapshot(Path target) throws IOException {
+        ensureOpen();
+        ImfsImageFile.write(this, target);
+    }
+
+    /**
+     * Replaces the contents of the volume with an image written by snapshot.
+     * The image is memory-mapped, so file contents are only paged in when
+     * they are first read and restoring costs O(entries), not O(bytes).
+     *
+     * @param source a path on the default file system
+     * @throws UnsupportedOperationException if the volume is journaled, the log
+     *                                       can't express a restore
+     */
+    public void restore(Path source) throws IOException {
+        ensureOpen();
+        ensureWritable();
+        if (journal != ImfsJournal.DISABLED) {
+            throw new UnsupportedOperationException("Restore of a journaled volume: " + key);
+        }
+        ImfsImageFile.read(this, source);
+    }
+
+    /**
+     * A writer that patches a copy of base, see ImfsBlobWriter.
+     * The caller keeps its reference to base.
+     */
+    ImfsBlobWriter newBlobWriter(ImfsBlob base) {
+        ensureOpen();
+        ensureWritable();
+        return new ImfsBlobWriter(allocator, base);
+    }
+
+    /**
+     * Looks up the entry at a path.
+     *
+     * @return a view of the entry under the given path, or null if none
+     */
     public ImfsRecord getRecord(String materializedPath) {
         if (materializedPath.length() == 0) {
             return ROOT;
         }
-        return records.get(materializedPath);
+        return toRecord(materializedPath, resolve(materializedPath));
+    }
+
+    /**
+     * Like getRecord(String), without walking the tree again for a path a
+     * directory stream listed, see resolve(ImfsPath).
+     */
+    ImfsRecord getRecord(ImfsPath path) {
+        var materializedPath = path.getMaterializedPath();
+        if (materializedPath.length() == 0) {
+            return ROOT;
+        }
+        return toRecord(materializedPath, resolve(path));
     }
 
+    private static ImfsRecord toRecord(String materializedPath, ImfsNode node) {
+        if (node == null) {
+            return null;
+        }
+        return node.isDirectory() ? ImfsRecord.ofDir(materializedPath)
+                : ImfsRecord.builder().materializedPath(materializedPath).blob(node.getBlob()).build();
+    }
+
+    /**
+     * Stores a record, replacing any previous one at the same path.
+     * The record takes over the caller's reference to its blob, and the blob
+     * of the replaced record is released. A directory put over a directory
+     * keeps its children. The record is logged to the journal.
+     *
+     * @throws IllegalArgumentException if the parent directory doesn't exist
+     */
+    @SuppressWarnings("try")
     public void putRecord(ImfsRecord record) {
-        records.put(record.getMaterializedPath(), record);
+        var materializedPath = record.getMaterializedPath();
+        try {
+            long sequence;
+            try (var held = lock(parentOf(materializedPath), materializedPath)) {
+                var replaced = resolve(materializedPath);
+                storeRecord(record);
+                if (!record.isDirectory()) {
+                    // the record keeps the blob alive, nobody can replace it while locked
+                    sequence = journal.put(materializedPath, record.getBlob());
+                } else {
+                    if (replaced != null && !replaced.isDirectory()) {
+                        // replay only makes directories where there is nothing
+                        journal.delete(materializedPath);
+                    }
+                    sequence = journal.mkdir(materializedPath);
+                }
+            }
+            journal.sync(sequence);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Like putRecord, without logging to the journal: for its replay, image
+     * loads and callers that log the change themselves.
+     */
+    void storeRecord(ImfsRecord record) {
+        storeRecord(record, false);
+    }
+
+    // appended contents are indexed later, see indexAppended
+    @SuppressWarnings("try")
+    private void storeRecord(ImfsRecord record, boolean append) {
+        ensureOpen();
+        var materializedPath = record.getMaterializedPath();
+        var parent = parentOf(materializedPath);
+        try (var held = lock(parent, materializedPath)) {
+            var parentNode = writable(parent);
+            if (materializedPath.isEmpty() || parentNode == null || !parentNode.isDirectory()) {
+                release(record);
+                throw new IllegalArgumentException("No parent directory for: " + materializedPath);
+            }
+            var name = nameOf(materializedPath);
+            var existing = parentNode.children().get(name);
+            if (existing != null && existing.isDirectory() == record.isDirectory()) {
+                if (!record.isDirectory() && !existing.isShared()) {
+                    existing.setBlob(record.getBlob()).release();
+                    index(materializedPath, record.getBlob(), append);
+                    return;
+                }
+                if (record.isDirectory()) {
+                    return;
+                }
+                // a shared file keeps its blob for the other links, this name gets a new node
+            }
+            var node = record.isDirectory() ? ImfsNode.directory() : ImfsNode.file(record.getBlob());
+            var previous = parentNode.children().put(name, node);
+            if (previous != null && previous.isDirectory()) {
+                relinked();
+            }
+            if (names != null) {
+                if (previous != null) {
+                    names.removeTree(materializedPath, previous);
+                }
+                names.add(materializedPath);
+            }
+            if (previous != null) {
+                previous.unlink();
+            }
+            if (!record.isDirectory()) {
+                index(materializedPath, record.getBlob(), append);
+            }
+        }
+    }
+
+    private void index(String materializedPath, ImfsBlob blob, boolean append) {
+        if (append) {
+            indexAppended(materializedPath, blob);
+        } else {
+            index(blob);
+        }
+    }
+
+    // queues new contents for the trigram index, see ImfsTrigramIndex
+    private void index(ImfsBlob blob) {
+        if (indexer == null || blob.size() == 0 || !blob.tryRetain()) {
+            return;
+        }
+        try {
+            indexer.execute(() -> {
+                try {
+                    addToIndex(blob);
+                } finally {
+                    blob.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // closed meanwhile
+            blob.release();
+        }
+    }
+
+    // Each append makes new contents that would be indexed whole, so a
+    // growing file is indexed at most once per APPEND_INDEX_MILLIS, with the
+    // contents it has by then. Until then it is a candidate for every query.
+    private void indexAppended(String materializedPath, ImfsBlob blob) {
+        if (indexer == null || !blob.tryRetain()) {
+            return;
+        }
+        var previous = appended.put(materializedPath, blob);
+        if (previous != null) {
+            // its turn is scheduled already
+            previous.release();
+            return;
+        }
+        try {
+            indexer.schedule(() -> indexAppended(materializedPath), APPEND_INDEX_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // closed meanwhile, close releases what is left
+        }
+    }
+
+    // on the indexer
+    private void indexAppended(String materializedPath) {
+        var blob = appended.remove(materializedPath);
+        if (blob != null) {
+            try {
+                addToIndex(blob);
+            } finally {
+                blob.release();
+            }
+        }
+    }
+
+    // on the indexer
+    private void addToIndex(ImfsBlob blob) {
+        var index = trigrams;
+        index.add(blob);
+        if (index.needsRebuild()) {
+            rebuildIndex();
+        }
+    }
+
+    // indexes the files again into a new index, which drops the postings
+    // of released contents. Runs on the indexer, so updates queued meanwhile
+    // go to the new one
+    private void rebuildIndex() {
+        var fresh = new ImfsTrigramIndex(options.getTrigramIndexBytes());
+        var records = retainRecords();
+        try {
+            for (var record : records) {
+                if (!record.isDirectory()) {
+                    fresh.add(record.getBlob());
+                }
+            }
+        } finally {
+            releaseRecords(records);
+        }
+        trigrams = fresh;
+    }
+
+    /**
+     * Waits until the contents published so far are in the trigram index,
+     * eg: before timing queries. Returns right away without an index.
+     */
+    public void awaitIndexed() throws InterruptedException {
+        if (indexer == null) {
+            return;
+        }
+        try {
+            indexer.submit(() -> appended.keySet().forEach(this::indexAppended)).get();
+        } catch (ExecutionException | RejectedExecutionException ex) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    /**
+     * Returns the records of the volume, parents before their children and
+     * siblings in name order, with a reference to each blob, see
+     * releaseRecords. Weakly consistent while mutations run.
+     */
+    List<ImfsRecord> retainRecords() {
+        var result = new ArrayList<ImfsRecord>();
+        collect("", root, result);
+        return result;
+    }
+
+    private static void collect(String materializedPath, ImfsNode node, List<ImfsRecord> result) {
+        for (var entry : node.children().entrySet()) {
+            var path = materializedPath.isEmpty() ? entry.getKey() : materializedPath + "/" + entry.getKey();
+            var kid = entry.getValue();
+            if (kid.isDirectory()) {
+                result.add(ImfsRecord.ofDir(path));
+                collect(path, kid, result);
+                continue;
+            }
+            for (;;) {
+                var blob = kid.getBlob();
+                if (blob.tryRetain()) {
+                    result.add(ImfsRecord.builder().materializedPath(path).blob(blob).build());
+                    break;
+                }
+                // lost a race with a writer, look again
+            }
+        }
+    }
+
+    static void releaseRecords(List<ImfsRecord> retained) {
+        retained.forEach(ImfsFileSystem::release);
+    }
+
+    private static void release(ImfsRecord record) {
+        if (record != null && !record.isDirectory()) {
+            record.getBlob().release();
+        }
+    }
+
+    private void ensureWritable() {
+        if (origin != null) {
+            throw new ReadOnlyFileSystemException();
+        }
+    }
+
+    private void ensureOpen() {
+        if (!isOpen) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    static String parentOf(String materializedPath) {
+        var slash = materializedPath.lastIndexOf('/');
+        return slash == -1 ? "" : materializedPath.substring(0, slash);
+    }
+
+    /**
+     * True if path is ancestor itself or somewhere below it.
+     */
+    static boolean isWithin(String path, String ancestor) {
+        return ancestor.isEmpty() || path.equals(ancestor)
+                || path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+
+    static String nameOf(String materializedPath) {
+        return materializedPath.substring(materializedPath.lastIndexOf('/') + 1);
     }
 }
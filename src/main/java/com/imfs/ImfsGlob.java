@@ -0,0 +1,356 @@
+package com.imfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled "glob:" or "regex:" pattern over materialized paths, eg:
+ * "src/main/Foo.java", see ImfsFileSystem.getPathMatcher and findMatching.
+ *
+ * Globs follow FileSystem.getPathMatcher: * and ? stay within a name, **
+ * crosses directories, [...] and {a,b} work as usual. A glob is also split
+ * into its names, so a query walks from the directory of its literal prefix
+ * (eg: "src/main" for "src/main/**&#47;*.java") and only enters the
+ * directories whose names can match, and literal names are looked up
+ * rather than scanned. Regexes only get the literal prefix, the subtree
+ * below it is matched path by path.
+ */
+final class ImfsGlob {
+    private static final String REGEX_META = ".^$+{[]|()";
+    private static final String GLOB_META = "\\*?[{";
+
+    // the whole pattern, as matched by getPathMatcher
+    private final Pattern pattern;
+    // the directory everything that matches is below, "" for the root
+    private final String prefix;
+    // per name after the prefix: null for **, the name itself if literal, else its regex
+    private final List<Object> names;
+
+    private ImfsGlob(Pattern pattern, String prefix, List<Object> names) {
+        this.pattern = pattern;
+        this.prefix = prefix;
+        this.names = names;
+    }
+
+    /**
+     * Compiles "glob:pattern" or "regex:pattern".
+     *
+     * @throws IllegalArgumentException      if there is no syntax
+     * @throws UnsupportedOperationException if the syntax is not glob or regex
+     * @throws PatternSyntaxException        if the pattern is invalid
+     */
+    static ImfsGlob compile(String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected syntax:pattern, was: " + syntaxAndPattern);
+        }
+        var syntax = syntaxAndPattern.substring(0, colon);
+        var text = syntaxAndPattern.substring(colon + 1);
+        if (syntax.equalsIgnoreCase("regex")) {
+            return new ImfsGlob(Pattern.compile(text), regexPrefix(text), null);
+        }
+        if (!syntax.equalsIgnoreCase("glob")) {
+            throw new UnsupportedOperationException("Syntax '" + syntax + "' not recognized");
+        }
+        var pattern = Pattern.compile(toRegex(text, 0, text.length()));
+        var split = split(text);
+        if (split == null) {
+            return new ImfsGlob(pattern, globPrefix(text), null);
+        }
+        var prefix = new StringBuilder();
+        int first = 0;
+        // the literal names up front are resolved in one go
+        while (first < split.size() - 1 && isLiteral(split.get(first))) {
+            prefix.append(prefix.length() == 0 ? "" : "/").append(split.get(first));
+            first++;
+        }
+        var names = new ArrayList<Object>();
+        for (var name : split.subList(first, split.size())) {
+            if (name.equals("**")) {
+                names.add(null);
+            } else if (isLiteral(name)) {
+                names.add(name);
+            } else {
+                names.add(Pattern.compile(toRegex(name, 0, name.length())));
+            }
+        }
+        return new ImfsGlob(pattern, prefix.toString(), names);
+    }
+
+    boolean matches(String materializedPath) {
+        return pattern.matcher(materializedPath).matches();
+    }
+
+    /**
+     * The directory every match is below, "" for the root.
+     */
+    String prefix() {
+        return prefix;
+    }
+
+    /**
+     * The last name of a match if it is a literal, eg: "pom.xml" for
+     * "**&#47;pom.xml", so an index by name can list the candidates.
+     *
+     * @return the name, or null if it isn't literal or not known
+     */
+    String literalName() {
+        if (names == null || names.isEmpty()) {
+            return null;
+        }
+        var last = names.get(names.size() - 1);
+        return last instanceof String ? (String) last : null;
+    }
+
+    // true if the pattern has a ** name, so a walk may go through the whole subtree
+    boolean isDeep() {
+        return names == null || names.contains(null);
+    }
+
+    /**
+     * The paths at or below the prefix that match, sorted.
+     *
+     * @param node the node at the prefix
+     */
+    List<String> find(ImfsNode node) {
+        var result = new TreeSet<String>();
+        if (names == null) {
+            // whole paths only, but at least below the prefix
+            if (!prefix.isEmpty() && matches(prefix)) {
+                result.add(prefix);
+            }
+            walkAll(prefix, node, result);
+        } else {
+            walk(prefix, node, 0, result);
+        }
+        return new ArrayList<>(result);
+    }
+
+    private void walkAll(String materializedPath, ImfsNode node, TreeSet<String> result) {
+        if (!node.isDirectory()) {
+            return;
+        }
+        for (var kid : node.children().entrySet()) {
+            var path = child(materializedPath, kid.getKey());
+            if (matches(path)) {
+                result.add(path);
+            }
+            walkAll(path, kid.getValue(), result);
+        }
+    }
+
+    // node at materializedPath matched the names before index
+    private void walk(String materializedPath, ImfsNode node, int index, TreeSet<String> result) {
+        if (index == names.size()) {
+            result.add(materializedPath);
+            return;
+        }
+        if (!node.isDirectory()) {
+            return;
+        }
+        var name = names.get(index);
+        if (name == null) {
+            // ** takes one name or more, like .* between two slashes
+            for (var kid : node.children().entrySet()) {
+                var path = child(materializedPath, kid.getKey());
+                walk(path, kid.getValue(), index + 1, result);
+                walk(path, kid.getValue(), index, result);
+            }
+        } else if (name instanceof String) {
+            var kid = node.children().get(name);
+            if (kid != null) {
+                walk(child(materializedPath, (String) name), kid, index + 1, result);
+            }
+        } else {
+            var regex = ((Pattern) name).matcher("");
+            for (var kid : node.children().entrySet()) {
+                if (regex.reset(kid.getKey()).matches()) {
+                    walk(child(materializedPath, kid.getKey()), kid.getValue(), index + 1, result);
+                }
+            }
+        }
+    }
+
+    private static String child(String materializedPath, String name) {
+        return materializedPath.isEmpty() ? name : materializedPath + "/" + name;
+    }
+
+    /**
+     * Splits a glob into its names.
+     *
+     * @return the names, or null if one can't be matched on its own, eg: it
+     *         has ** next to other text, or a group with a slash
+     */
+    private static List<String> split(String glob) {
+        var result = new ArrayList<String>();
+        int start = 0;
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '{' && !inClass) {
+                depth++;
+            } else if (c == '}' && !inClass) {
+                depth--;
+            } else if (c == '/' && !inClass) {
+                if (depth > 0) {
+                    return null;
+                }
+                result.add(glob.substring(start, i));
+                start = i + 1;
+            }
+        }
+        result.add(glob.substring(start));
+        for (var name : result) {
+            if (name.isEmpty() || name.contains("**") && !name.equals("**")) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isLiteral(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (GLOB_META.indexOf(name.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the literal directories up front of a glob that can't be split
+    private static String globPrefix(String glob) {
+        int end = 0;
+        while (end < glob.length() && GLOB_META.indexOf(glob.charAt(end)) == -1) {
+            end++;
+        }
+        return directoryOf(glob.substring(0, end), end == glob.length());
+    }
+
+    // the literal directories up front of a regex, none if it has alternatives or flags
+    private static String regexPrefix(String regex) {
+        if (regex.contains("|") || regex.startsWith("(?")) {
+            return "";
+        }
+        int end = 0;
+        while (end < regex.length() && REGEX_META.indexOf(regex.charAt(end)) == -1
+                && "\\*?".indexOf(regex.charAt(end)) == -1) {
+            end++;
+        }
+        // a quantifier makes the character before it optional
+        boolean quantified = end < regex.length() && "*?{".indexOf(regex.charAt(end)) != -1;
+        var literal = regex.substring(0, quantified && end > 0 ? end - 1 : end);
+        return directoryOf(literal, !quantified && end == regex.length());
+    }
+
+    // the directories of a literal start of the paths, the whole of it if it is the whole pattern
+    private static String directoryOf(String literal, boolean whole) {
+        if (whole) {
+            return literal;
+        }
+        int slash = literal.lastIndexOf('/');
+        return slash == -1 ? "" : literal.substring(0, slash);
+    }
+
+    /**
+     * Translates glob[start, end) into a regex, like the JDK's globs: * and ?
+     * stop at slashes, ** doesn't.
+     */
+    static String toRegex(String glob, int start, int end) {
+        var regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = start; i < end; i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (++i == end) {
+                        throw new PatternSyntaxException("No character to escape", glob, i - 1);
+                    }
+                    appendLiteral(regex, glob.charAt(i));
+                    break;
+                case '*':
+                    if (i + 1 < end && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    i = appendClass(regex, glob, i, end);
+                    break;
+                case '{':
+                    if (inGroup) {
+                        throw new PatternSyntaxException("Cannot nest groups", glob, i);
+                    }
+                    regex.append("(?:(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    if (inGroup) {
+                        regex.append("))");
+                        inGroup = false;
+                    } else {
+                        regex.append('}');
+                    }
+                    break;
+                case ',':
+                    regex.append(inGroup ? ")|(?:" : ",");
+                    break;
+                default:
+                    appendLiteral(regex, c);
+            }
+        }
+        if (inGroup) {
+            throw new PatternSyntaxException("Missing '}'", glob, end - 1);
+        }
+        return regex.toString();
+    }
+
+    // a [...] class, never matching a slash
+    private static int appendClass(StringBuilder regex, String glob, int open, int end) {
+        regex.append("[[^/]&&[");
+        int i = open + 1;
+        if (i < end && glob.charAt(i) == '!') {
+            regex.append('^');
+            i++;
+        } else if (i < end && glob.charAt(i) == '^') {
+            regex.append("\\^");
+            i++;
+        }
+        for (; i < end; i++) {
+            char c = glob.charAt(i);
+            if (c == ']') {
+                regex.append("]]");
+                return i;
+            }
+            if (c == '/') {
+                throw new PatternSyntaxException("Explicit 'name separator' in class", glob, i);
+            }
+            if (c == '\\' || c == '[' || c == '&' && i + 1 < end && glob.charAt(i + 1) == '&') {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+        throw new PatternSyntaxException("Missing ']'", glob, end - 1);
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        if (REGEX_META.indexOf(c) != -1 || "\\*?}".indexOf(c) != -1) {
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+}
@@ -0,0 +1,458 @@
+package com.imfs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Searches the files of a subtree for lines that match a regex, see
+ * ImfsFileSystem.grep.
+ *
+ * The pattern is compiled once and the files are searched in parallel on
+ * the common fork/join pool. Lines are matched whole, like String.matches.
+ * When every match must contain some literal text (eg: "class" in
+ * ".*class \\w+"), the stored bytes are searched for it first with
+ * Boyer-Moore-Horspool, and only the lines around a hit are decoded and
+ * handed to the regex. Files without a hit are never decoded. On volumes
+ * with a trigram index, files whose contents can't hold the literals are
+ * not even read, see ImfsTrigramIndex.
+ */
+final class ImfsGrep {
+    private final Pattern pattern;
+    // UTF-8 of text every matching line contains, null if there is none we can tell
+    private final byte[] literal;
+    // Horspool's bad character shifts, by unsigned byte
+    private final int[] shifts;
+
+    ImfsGrep(Pattern pattern) {
+        this.pattern = pattern;
+        var text = requiredLiteral(pattern);
+        this.literal = text == null || text.isEmpty() ? null : text.getBytes(StandardCharsets.UTF_8);
+        this.shifts = literal == null ? null : shifts(literal);
+    }
+
+    /**
+     * Searches every file at or below node.
+     *
+     * @param materializedPath the path of node
+     * @param ordered          true to sort the matches by path and line, false
+     *                         to take them in whatever order they are found
+     * @param candidates       the contents that may match, see
+     *                         ImfsTrigramIndex, null to search every file
+     */
+    List<ImfsMatch> search(String materializedPath, ImfsNode node, boolean ordered,
+            Predicate<ImfsBlob> candidates) {
+        var files = new ArrayList<Map.Entry<String, ImfsNode>>();
+        collectFiles(materializedPath, node, candidates, files);
+        if (ordered) {
+            // the walk lists files in path order, and parallel streams keep it
+            return files.parallelStream()
+                    .flatMap(file -> scan(file.getKey(), file.getValue()).stream())
+                    .collect(Collectors.toList());
+        }
+        var result = new ConcurrentLinkedQueue<ImfsMatch>();
+        files.parallelStream().unordered().forEach(file -> result.addAll(scan(file.getKey(), file.getValue())));
+        return new ArrayList<>(result);
+    }
+
+    private static void collectFiles(String materializedPath, ImfsNode node, Predicate<ImfsBlob> candidates,
+            List<Map.Entry<String, ImfsNode>> result) {
+        if (!node.isDirectory()) {
+            if (candidates == null || candidates.test(node.getBlob())) {
+                result.add(Map.entry(materializedPath, node));
+            }
+            return;
+        }
+        for (var entry : node.children().entrySet()) {
+            var path = materializedPath.isEmpty() ? entry.getKey() : materializedPath + "/" + entry.getKey();
+            collectFiles(path, entry.getValue(), candidates, result);
+        }
+    }
+
+    /**
+     * The UTF-8 of the text every matching line contains, for
+     * ImfsTrigramIndex.candidates.
+     *
+     * @return the literals, empty if there are none we can tell
+     */
+    List<byte[]> literals() {
+        var literals = requiredLiterals(pattern);
+        if (literals == null) {
+            return List.of();
+        }
+        return literals.stream().map(literal -> literal.getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+
+    private List<ImfsMatch> scan(String materializedPath, ImfsNode node) {
+        var blob = retain(node);
+        if (blob == null) {
+            return List.of();
+        }
+        try {
+            return new Scan(materializedPath, blob).run();
+        } finally {
+            blob.release();
+        }
+    }
+
+    // the current blob of a file, or null if it was deleted since the walk
+    private static ImfsBlob retain(ImfsNode node) {
+        for (;;) {
+            var blob = node.getBlob();
+            if (blob.tryRetain()) {
+                return blob;
+            }
+            if (node.getBlob() == blob) {
+                return null;
+            }
+            // lost a race with a writer, look again
+        }
+    }
+
+    /**
+     * The search of one file. Positions are offsets in the blob, spanning
+     * its blocks. Blocks are fetched as the scan reaches them, so a deflated
+     * file is inflated one block at a time and never all at once.
+     */
+    private final class Scan {
+        private final String materializedPath;
+        private final ImfsBlob blob;
+        private final long size;
+        // the block being read and the one before it, a line can straddle both
+        private int index = -1;
+        private ByteBuffer block;
+        private int previousIndex = -1;
+        private ByteBuffer previous;
+        private final Matcher matcher = pattern.matcher("");
+        private final Line line = new Line();
+        private List<ImfsMatch> result;
+
+        Scan(String materializedPath, ImfsBlob blob) {
+            this.materializedPath = materializedPath;
+            this.blob = blob;
+            this.size = blob.size();
+        }
+
+        List<ImfsMatch> run() {
+            if (literal == null) {
+                long lineNumber = 1;
+                for (long start = 0; start < size; lineNumber++) {
+                    long end = indexOf('\n', start);
+                    test(start, end, lineNumber);
+                    start = end + 1;
+                }
+            } else {
+                long lineNumber = 1;
+                long counted = 0;
+                long from = 0;
+                long hit;
+                while (from < size && (hit = find(from)) >= 0) {
+                    long start = lastIndexOf('\n', from, hit) + 1;
+                    lineNumber += count('\n', counted, start);
+                    counted = start;
+                    long end = indexOf('\n', hit + literal.length);
+                    test(start, end, lineNumber);
+                    from = end + 1;
+                }
+            }
+            return result == null ? List.of() : result;
+        }
+
+        private void test(long start, long end, long lineNumber) {
+            if (end > start && get(end - 1) == '\r') {
+                end--;
+            }
+            line.load(this, start, end);
+            if (matcher.reset(line).matches()) {
+                if (result == null) {
+                    result = new ArrayList<>();
+                }
+                result.add(ImfsMatch.builder()
+                        .materializedPath(materializedPath)
+                        .lineNumber(lineNumber)
+                        .line(line.toString())
+                        .build());
+            }
+        }
+
+        byte get(long position) {
+            int at = (int) (position >>> ImfsBlob.BLOCK_SHIFT);
+            if (at != index) {
+                if (at == previousIndex) {
+                    var swapped = block;
+                    block = previous;
+                    previous = swapped;
+                } else {
+                    previous = block;
+                    block = blob.block(at);
+                }
+                previousIndex = index;
+                index = at;
+            }
+            return block.get((int) (position & ImfsBlob.BLOCK_MASK));
+        }
+
+        // Boyer-Moore-Horspool
+        private long find(long from) {
+            int last = literal.length - 1;
+            long limit = size - literal.length;
+            for (long at = from; at <= limit;) {
+                byte tail = get(at + last);
+                if (tail == literal[last]) {
+                    int i = last - 1;
+                    while (i >= 0 && get(at + i) == literal[i]) {
+                        i--;
+                    }
+                    if (i < 0) {
+                        return at;
+                    }
+                }
+                at += shifts[tail & 0xff];
+            }
+            return -1;
+        }
+
+        // the position of the next b at or after from, or size if none
+        private long indexOf(int b, long from) {
+            for (long at = from; at < size; at++) {
+                if (get(at) == b) {
+                    return at;
+                }
+            }
+            return size;
+        }
+
+        // the position of the last b in [from, to), or from - 1 if none
+        private long lastIndexOf(int b, long from, long to) {
+            for (long at = to - 1; at >= from; at--) {
+                if (get(at) == b) {
+                    return at;
+                }
+            }
+            return from - 1;
+        }
+
+        private long count(int b, long from, long to) {
+            long total = 0;
+            for (long at = from; at < to; at++) {
+                if (get(at) == b) {
+                    total++;
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * The line being matched. ASCII lines are matched straight off their
+     * bytes, only the others are decoded first.
+     */
+    private static final class Line implements CharSequence {
+        private byte[] bytes = new byte[256];
+        private int length;
+        // null while the line is ASCII
+        private String decoded;
+
+        void load(Scan scan, long start, long end) {
+            length = (int) (end - start);
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                var b = scan.get(start + i);
+                bytes[i] = b;
+                ascii &= b >= 0;
+            }
+            decoded = ascii ? null : new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int length() {
+            return decoded != null ? decoded.length() : length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return decoded != null ? decoded.charAt(index) : (char) bytes[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return decoded != null ? decoded : new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static int[] shifts(byte[] literal) {
+        var result = new int[256];
+        Arrays.fill(result, literal.length);
+        for (int i = 0; i < literal.length - 1; i++) {
+            result[literal[i] & 0xff] = literal.length - 1 - i;
+        }
+        return result;
+    }
+
+    /**
+     * The longest of the requiredLiterals.
+     *
+     * @return the literal, "" if the pattern has none, or null if we can't tell
+     */
+    static String requiredLiteral(Pattern pattern) {
+        var literals = requiredLiterals(pattern);
+        if (literals == null) {
+            return null;
+        }
+        var best = "";
+        for (var literal : literals) {
+            if (literal.length() > best.length()) {
+                best = literal;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The runs of plain characters outside of groups and classes, every match
+     * of the pattern contains all of them. Conservative: patterns with
+     * alternations, flags or quoting get none.
+     *
+     * @return the literals, or null if we can't tell
+     */
+    static List<String> requiredLiterals(Pattern pattern) {
+        var regex = pattern.pattern();
+        if (pattern.flags() == Pattern.LITERAL) {
+            return lineLiterals(List.of(regex));
+        }
+        if (pattern.flags() != 0 || regex.contains("|") || regex.contains("\\Q") || regex.contains("(?")) {
+            return null;
+        }
+        var result = new ArrayList<String>();
+        var run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(++i);
+                // \. \* and the like are plain, \d \n \1 and the like are not
+                if (depth == 0 && !Character.isLetterOrDigit(next)) {
+                    run.append(next);
+                } else {
+                    endRun(run, result);
+                    i = escapeEnd(regex, i);
+                }
+            } else if (c == '[') {
+                endRun(run, result);
+                i = classEnd(regex, i);
+            } else if (c == '(') {
+                endRun(run, result);
+                depth++;
+            } else if (c == ')') {
+                endRun(run, result);
+                depth--;
+            } else if (c == '*' || c == '?' || c == '{') {
+                // the last atom may be missing
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                endRun(run, result);
+                if (c == '{') {
+                    int close = regex.indexOf('}', i);
+                    i = close == -1 ? regex.length() : close;
+                }
+            } else if (c == '+' || c == '.' || c == '^' || c == '$') {
+                endRun(run, result);
+            } else if (depth == 0) {
+                run.append(c);
+            }
+        }
+        endRun(run, result);
+        return lineLiterals(result);
+    }
+
+    /**
+     * The position of the last character of the escape whose letter or digit
+     * is at start, eg: the 1 of \x41 or the } of \p{Lu}. Digits and names
+     * after it belong to the escape, not to the next literal. Takes the
+     * longest operand the escape may have, that only drops literals.
+     */
+    private static int escapeEnd(String regex, int start) {
+        char letter = regex.charAt(start);
+        int i = start + 1;
+        if (i < regex.length() && (letter == 'x' || letter == 'N' || letter == 'p' || letter == 'P')
+                && regex.charAt(i) == '{') {
+            int close = regex.indexOf('}', i);
+            return close == -1 ? regex.length() : close;
+        }
+        if (letter == 'k' && i < regex.length() && regex.charAt(i) == '<') {
+            int close = regex.indexOf('>', i);
+            return close == -1 ? regex.length() : close;
+        }
+        int operand;
+        if (letter == 'x') {
+            operand = 2;
+        } else if (letter == 'u') {
+            operand = 4;
+        } else if (letter == 'c' || letter == 'p' || letter == 'P') {
+            operand = 1;
+        } else if (letter == '0') {
+            operand = 3;
+        } else if (letter >= '1' && letter <= '9') {
+            // a back reference takes as many digits as there are groups
+            operand = Integer.MAX_VALUE;
+        } else {
+            operand = 0;
+        }
+        int end = start;
+        while (end + 1 < regex.length() && end - start < operand
+                && (letter == 'c' || letter == 'p' || letter == 'P'
+                        || Character.digit(regex.charAt(end + 1), letter == 'x' || letter == 'u' ? 16 : 10) != -1)) {
+            end++;
+        }
+        return end;
+    }
+
+    private static void endRun(StringBuilder run, List<String> result) {
+        if (run.length() > 0) {
+            result.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    // lines never contain a line break, a literal with one can't narrow anything
+    private static List<String> lineLiterals(List<String> literals) {
+        return literals.stream()
+                .filter(literal -> literal.indexOf('\n') == -1 && literal.indexOf('\r') == -1)
+                .collect(Collectors.toList());
+    }
+
+    // the position of the ] closing the class that opens at start
+    private static int classEnd(String regex, int start) {
+        int depth = 0;
+        for (int i = start; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && i > start + 1 && !(i == start + 2 && regex.charAt(start + 1) == '^')) {
+                if (--depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return regex.length();
+    }
+}
@@ -0,0 +1,226 @@
+package com.imfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Single file image of a whole volume, see ImfsFileSystem.snapshot/restore.
+ *
+ * Layout: a header (magic, version, index offset, entry count and, since
+ * version 2, the last journal sequence the image contains), the contents
+ * of every file back to back, then the index: one entry per record with its
+ * path, type, data offset and size, parents before their children.
+ *
+ * Restoring maps the image read-only and points each blob's blocks at the
+ * mapping, so no file contents are read until they are first accessed.
+ * Mappings are limited to 2GB, so large images are mapped in segments that
+ * overlap by one block, which makes every block fit in a single segment.
+ */
+final class ImfsImageFile {
+    private static final int MAGIC = 0x494D4653; // "IMFS"
+    private static final int VERSION = 2;
+    private static final int V1_HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int HEADER_SIZE = V1_HEADER_SIZE + 8;
+    private static final byte DIRECTORY = 0;
+    private static final byte FILE = 1;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private ImfsImageFile() {
+    }
+
+    /**
+     * Writes every record of the volume to target, atomically replacing it.
+     * Not a point in time copy: records changed while writing may or may not
+     * be included.
+     */
+    static void write(ImfsFileSystem fileSystem, Path target) throws IOException {
+        var records = fileSystem.retainRecords();
+        try {
+            write(records, 0, target);
+        } finally {
+            ImfsFileSystem.releaseRecords(records);
+        }
+    }
+
+    /**
+     * Writes the given records to target, atomically replacing it.
+     *
+     * @param records  records whose blobs are retained by the caller
+     * @param sequence the last journal entry reflected by the records
+     */
+    static void write(List<ImfsRecord> records, long sequence, Path target) throws IOException {
+        var temp = target.resolveSibling(target.getFileName() + ".tmp");
+        var index = new ArrayList<Entry>();
+        // files sharing a blob (copies, dedup) share its bytes in the image too
+        var written = new IdentityHashMap<ImfsBlob, Long>();
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            for (var record : records) {
+                var path = record.getMaterializedPath();
+                if (record.isDirectory()) {
+                    index.add(new Entry(path, DIRECTORY, 0, 0));
+                    continue;
+                }
+                var blob = record.getBlob();
+                var offset = written.get(blob);
+                if (offset == null) {
+                    offset = channel.position();
+                    written.put(blob, offset);
+                    writeFully(channel, blob.buffers());
+                }
+                index.add(new Entry(path, FILE, offset, blob.size()));
+            }
+            long indexOffset = channel.position();
+            var out = new IndexBuffer();
+            for (var entry : index) {
+                out.putEntry(entry);
+                if (out.size() > ImfsBlob.BLOCK_SIZE) {
+                    writeFully(channel, out.drain());
+                }
+            }
+            writeFully(channel, out.drain());
+            var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(indexOffset).putLong(index.size()).putLong(sequence)
+                    .flip();
+            channel.position(0);
+            writeFully(channel, header);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces the contents of the volume with the image at source.
+     *
+     * @return the last journal sequence the image contains, 0 if none
+     */
+    static long read(ImfsFileSystem fileSystem, Path source) throws IOException {
+        List<MappedByteBuffer> segments = new ArrayList<>();
+        ByteBuffer index;
+        long count;
+        long sequence = 0;
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < V1_HEADER_SIZE) {
+                throw new IOException("Not an imfs image: " + source);
+            }
+            var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, V1_HEADER_SIZE);
+            int version = header.getInt() == MAGIC ? header.getInt() : -1;
+            if (version != 1 && version != VERSION || version == VERSION && fileSize < HEADER_SIZE) {
+                throw new IOException("Not an imfs image: " + source);
+            }
+            long indexOffset = header.getLong();
+            count = header.getLong();
+            if (version == VERSION) {
+                sequence = channel.map(FileChannel.MapMode.READ_ONLY, V1_HEADER_SIZE, 8).getLong();
+            }
+            if (fileSize - indexOffset > Integer.MAX_VALUE) {
+                throw new IOException("Image index too large: " + source);
+            }
+            index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, fileSize - indexOffset);
+            for (long start = 0; start < indexOffset; start += SEGMENT_SIZE) {
+                long length = Math.min(SEGMENT_SIZE + ImfsBlob.BLOCK_SIZE, indexOffset - start);
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+            }
+            // the mappings stay valid after the channel is closed
+        }
+        fileSystem.clear();
+        for (long i = 0; i < count; i++) {
+            var pathBytes = new byte[index.getInt()];
+            index.get(pathBytes);
+            var path = new String(pathBytes, StandardCharsets.UTF_8);
+            byte type = index.get();
+            long offset = index.getLong();
+            long size = index.getLong();
+            if (type == DIRECTORY) {
+                fileSystem.storeRecord(ImfsRecord.ofDir(path));
+            } else {
+                fileSystem.storeBlob(path, mappedBlob(segments, offset, size));
+            }
+        }
+        return sequence;
+    }
+
+    private static ImfsBlob mappedBlob(List<MappedByteBuffer> segments, long offset, long size) {
+        if (size == 0) {
+            return ImfsBlob.EMPTY;
+        }
+        var blocks = new ByteBuffer[(int) ((size + ImfsBlob.BLOCK_SIZE - 1) >>> ImfsBlob.BLOCK_SHIFT)];
+        for (int i = 0; i < blocks.length; i++) {
+            long start = offset + ((long) i << ImfsBlob.BLOCK_SHIFT);
+            int length = (int) Math.min(ImfsBlob.BLOCK_SIZE, offset + size - start);
+            var segment = segments.get((int) (start / SEGMENT_SIZE)).duplicate();
+            int local = (int) (start % SEGMENT_SIZE);
+            segment.position(local).limit(local + length);
+            blocks[i] = segment.slice();
+        }
+        // mapped blocks aren't owned by an allocator, the GC unmaps them
+        return new ImfsBlob(blocks, size, null);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (var buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final byte type;
+        final long offset;
+        final long size;
+
+        Entry(String path, byte type, long offset, long size) {
+            this.path = path;
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    // growable big endian buffer for the index
+    private static final class IndexBuffer {
+        private ByteBuffer buffer = ByteBuffer.allocate(2 * ImfsBlob.BLOCK_SIZE);
+
+        void putEntry(Entry entry) {
+            var path = entry.path.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + path.length + 1 + 8 + 8);
+            buffer.putInt(path.length).put(path).put(entry.type).putLong(entry.offset).putLong(entry.size);
+        }
+
+        int size() {
+            return buffer.position();
+        }
+
+        ByteBuffer drain() {
+            var result = ByteBuffer.wrap(buffer.array(), 0, buffer.position()).slice();
+            buffer = ByteBuffer.allocate(buffer.capacity());
+            return result;
+        }
+
+        private void ensure(int needed) {
+            if (buffer.remaining() < needed) {
+                var bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+}
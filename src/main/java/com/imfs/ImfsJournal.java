@@ -0,0 +1,654 @@
+package com.imfs;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the mutations of one volume.
+ *
+ * Mutations apply in memory first, then append an entry while still holding
+ * their path locks, so entries for the same path are logged in the order they
+ * were applied. A single writer thread drains the queue and writes whatever
+ * piled up with one gathered write and at most one fsync (group commit).
+ * With JournalSync.ALWAYS callers wait in sync() until their entry is durable, with
+ * INTERVAL the writer fsyncs every syncMillis, with NEVER the OS decides.
+ *
+ * Entries: length (long), crc32 of the payload (int), then the payload:
+ * sequence (long), op (byte), paths, and for PUT the size and contents
+ * (for APPEND the size and the appended bytes, for TRUNCATE the new size).
+ * Replay stops at the first torn or corrupt entry and truncates it away.
+ * Entries between BATCH and BATCH_END are applied together or not at all,
+ * a batch cut short by a crash is truncated away like a torn entry.
+ * Batches nest, only the outermost one counts.
+ *
+ * A payload is read back into one buffer, so contents larger than
+ * chunkBytes are logged as a batch of a PUT (or APPEND) of the first chunk
+ * and APPENDs of the rest.
+ *
+ * Compaction runs in the background once the log outgrows compactBytes:
+ * mutations pause briefly while the writer captures the volume up to some
+ * sequence S, the capture is written to the image file tagged with S, then
+ * the writer drops every entry up to S from the log. Replay skips entries
+ * that the image already has.
+ */
+final class ImfsJournal implements Closeable {
+    /** Stands in for the journal of volumes that don't have one. */
+    static final ImfsJournal DISABLED = new ImfsJournal();
+
+    private static final byte MKDIR = 1;
+    private static final byte DELETE = 2;
+    private static final byte COPY = 3;
+    private static final byte MOVE = 4;
+    private static final byte PUT = 5;
+    private static final byte COPY_TREE = 6;
+    private static final byte APPEND = 7;
+    private static final byte BATCH = 8;
+    private static final byte BATCH_END = 9;
+    private static final byte TRUNCATE = 10;
+    private static final int ENTRY_HEADER = 8 + 4;
+    // leaves room for the paths, the payload length must fit in an int
+    static final long MAX_CHUNK_BYTES = 1 << 30;
+
+    private final ImfsFileSystem fileSystem;
+    private final Path file;
+    private final Path image;
+    private final ImfsOptions.JournalSync sync;
+    private final long syncMillis;
+    private final long compactBytes;
+    private long chunkBytes = MAX_CHUNK_BYTES;
+
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Object appendLock = new Object();
+    private long lastSequence = 0; // guarded by appendLock
+
+    private final Object durableLock = new Object();
+    private long durableSequence = 0; // guarded by durableLock
+    private IOException failure; // guarded by durableLock
+
+    // only touched by the writer thread
+    private FileChannel channel;
+    private long writtenSequence = 0;
+    private long lastSync = System.nanoTime();
+    // written since the last fsync
+    private boolean unsynced = false;
+    private boolean compacting = false;
+    private long cutOffset = 0;
+    private volatile long compactedSequence = -1;
+    private volatile boolean imageReady = false;
+
+    private final Thread writer;
+    private volatile Thread compactor;
+    private volatile boolean closing = false;
+
+    private ImfsJournal() {
+        this.fileSystem = null;
+        this.file = null;
+        this.image = null;
+        this.sync = ImfsOptions.JournalSync.NEVER;
+        this.syncMillis = 0;
+        this.compactBytes = 0;
+        this.writer = null;
+    }
+
+    private ImfsJournal(ImfsFileSystem fileSystem, ImfsOptions options) {
+        this.fileSystem = fileSystem;
+        this.file = Path.of(options.getJournal());
+        this.image = Path.of(options.getJournalImage() != null ? options.getJournalImage()
+                : options.getJournal() + ".image");
+        this.sync = options.getJournalSync();
+        this.syncMillis = options.getJournalSyncMillis();
+        this.compactBytes = options.getJournalCompactBytes();
+        this.writer = new Thread(this::runWriter, "imfs-journal-" + fileSystem.getKey());
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Restores the image if there is one, replays the log on top of it and
+     * starts appending.
+     */
+    static ImfsJournal open(ImfsFileSystem fileSystem, ImfsOptions options) throws IOException {
+        var journal = new ImfsJournal(fileSystem, options);
+        long imageSequence = 0;
+        if (Files.exists(journal.image)) {
+            imageSequence = ImfsImageFile.read(fileSystem, journal.image);
+        }
+        journal.channel = FileChannel.open(journal.file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long last = journal.replay(imageSequence);
+        journal.lastSequence = last;
+        journal.writtenSequence = last;
+        journal.durableSequence = last;
+        journal.writer.start();
+        return journal;
+    }
+
+    long mkdir(String path) throws IOException {
+        return append(new Entry(MKDIR, path, null, null));
+    }
+
+    long delete(String path) throws IOException {
+        return append(new Entry(DELETE, path, null, null));
+    }
+
+    long copy(String src, String dst) throws IOException {
+        return append(new Entry(COPY, src, dst, null));
+    }
+
+    long copyTree(String src, String dst) throws IOException {
+        return append(new Entry(COPY_TREE, src, dst, null));
+    }
+
+    long move(String src, String dst) throws IOException {
+        return append(new Entry(MOVE, src, dst, null));
+    }
+
+    /**
+     * Logs the new contents of a file, the blob stays retained until written.
+     */
+    long put(String path, ImfsBlob blob) throws IOException {
+        return appendContents(PUT, path, blob, 0);
+    }
+
+    /**
+     * Logs the bytes of blob from the given offset, appended to a file.
+     * The blob stays retained until written.
+     */
+    long append(String path, ImfsBlob blob, long from) throws IOException {
+        return appendContents(APPEND, path, blob, from);
+    }
+
+    /**
+     * Logs a file cut down to newSize.
+     */
+    long truncate(String path, long newSize) throws IOException {
+        return append(new Entry(TRUNCATE, path, null, null, 0, newSize));
+    }
+
+    // one entry, or a batch of chunks that no other entry gets in between
+    private long appendContents(byte op, String path, ImfsBlob blob, long from) throws IOException {
+        if (writer == null) {
+            return 0;
+        }
+        long size = blob.size();
+        if (size - from <= chunkBytes) {
+            return append(new Entry(op, path, null, blob.retain(), from, size));
+        }
+        synchronized (appendLock) {
+            append(new Entry(BATCH, "", null, null));
+            for (long start = from; start < size; start += chunkBytes) {
+                append(new Entry(start == from ? op : APPEND, path, null, blob.retain(), start,
+                        Math.min(size, start + chunkBytes)));
+            }
+            return append(new Entry(BATCH_END, "", null, null));
+        }
+    }
+
+    /**
+     * Sets the largest contents logged in one entry, for tests.
+     */
+    void chunkBytes(long chunkBytes) {
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Opens a batch, the entries up to endBatch are replayed all or nothing.
+     * The caller holds lockExclusive so no other entry gets in between.
+     */
+    long beginBatch() throws IOException {
+        return append(new Entry(BATCH, "", null, null));
+    }
+
+    long endBatch() throws IOException {
+        return append(new Entry(BATCH_END, "", null, null));
+    }
+
+    /**
+     * Waits until the entry is durable, when the sync policy asks for it.
+     *
+     * @param sequence the value returned by one of the appends
+     */
+    void sync(long sequence) throws IOException {
+        if (sync != ImfsOptions.JournalSync.ALWAYS) {
+            return;
+        }
+        synchronized (durableLock) {
+            while (durableSequence < sequence && failure == null) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the journal", ex);
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Journal failed: " + file, failure);
+            }
+        }
+    }
+
+    /**
+     * Blocks until everything appended so far is written and synced.
+     */
+    void flush() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        long sequence;
+        synchronized (appendLock) {
+            sequence = lastSequence;
+        }
+        synchronized (durableLock) {
+            while (durableSequence < sequence && failure == null) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the journal", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a compaction now, regardless of the size of the log.
+     */
+    void compact() {
+        if (writer == null) {
+            return;
+        }
+        queue.add(Entry.COMPACT);
+    }
+
+    /**
+     * The cut of the last compaction whose image is written, -1 if none.
+     */
+    long compactedSequence() {
+        return compactedSequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        closing = true;
+        queue.add(Entry.WAKE_UP);
+        try {
+            writer.join();
+            var running = compactor;
+            if (running != null) {
+                running.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        synchronized (durableLock) {
+            if (failure != null) {
+                throw new IOException("Journal failed: " + file, failure);
+            }
+        }
+    }
+
+    private long append(Entry entry) throws IOException {
+        if (writer == null) {
+            return 0;
+        }
+        synchronized (durableLock) {
+            if (failure != null) {
+                throw new IOException("Journal failed: " + file, failure);
+            }
+        }
+        // sequence order == queue order, so durableSequence covers a prefix
+        synchronized (appendLock) {
+            entry.sequence = ++lastSequence;
+            queue.add(entry);
+            return entry.sequence;
+        }
+    }
+
+    private void runWriter() {
+        var batch = new ArrayList<Entry>();
+        try {
+            while (!closing || !queue.isEmpty()) {
+                // only a pending interval sync needs a timeout, an idle journal just waits
+                var first = unsynced && sync == ImfsOptions.JournalSync.INTERVAL
+                        ? queue.poll(syncMillis, TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                if (imageReady) {
+                    swapLog();
+                }
+                long written = writtenSequence;
+                boolean compact = writeBatch(batch);
+                batch.clear();
+                unsynced |= writtenSequence != written;
+                boolean due = System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(syncMillis);
+                if (unsynced && (sync == ImfsOptions.JournalSync.ALWAYS
+                        || sync == ImfsOptions.JournalSync.INTERVAL && due || closing)) {
+                    channel.force(false);
+                    lastSync = System.nanoTime();
+                    unsynced = false;
+                }
+                synchronized (durableLock) {
+                    durableSequence = writtenSequence;
+                    durableLock.notifyAll();
+                }
+                if (!compacting && !closing && (compact || channel.size() > compactBytes)) {
+                    startCompaction();
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            fail(ex instanceof IOException ? (IOException) ex : new IOException(ex));
+        } catch (InterruptedException ex) {
+            fail(new IOException("Journal writer interrupted", ex));
+        } finally {
+            // nothing more gets written, drop the references of the pending entries
+            batch.forEach(Entry::release);
+            batch.clear();
+            queue.drainTo(batch);
+            batch.forEach(Entry::release);
+        }
+    }
+
+    // returns true if a compaction was requested
+    private boolean writeBatch(List<Entry> batch) throws IOException {
+        boolean compact = false;
+        var buffers = new ArrayList<ByteBuffer>();
+        for (var entry : batch) {
+            if (entry == Entry.COMPACT) {
+                compact = true;
+            } else if (entry != Entry.WAKE_UP) {
+                entry.encode(buffers);
+                writtenSequence = entry.sequence;
+            }
+        }
+        var array = buffers.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (var buffer : array) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(array);
+        }
+        batch.forEach(Entry::release);
+        return compact;
+    }
+
+    @SuppressWarnings("try")
+    private void startCompaction() throws IOException {
+        List<ImfsRecord> capture;
+        long cutSequence;
+        try (var held = fileSystem.lockExclusive()) {
+            // no mutation is in flight, so the queue has every applied change
+            var rest = new ArrayList<Entry>();
+            queue.drainTo(rest);
+            writeBatch(rest);
+            cutSequence = writtenSequence;
+            cutOffset = channel.position();
+            capture = fileSystem.retainRecords();
+        }
+        compacting = true;
+        var thread = new Thread(() -> {
+            try {
+                ImfsImageFile.write(capture, cutSequence, image);
+                imageReady = true;
+                compactedSequence = cutSequence;
+                queue.add(Entry.WAKE_UP);
+            } catch (IOException ex) {
+                fail(ex);
+            } finally {
+                ImfsFileSystem.releaseRecords(capture);
+                compactor = null;
+            }
+        }, "imfs-compact-" + fileSystem.getKey());
+        thread.setDaemon(true);
+        compactor = thread;
+        thread.start();
+    }
+
+    // the image has everything up to the cut, keep only what came after
+    private void swapLog() throws IOException {
+        var next = file.resolveSibling(file.getFileName() + ".next");
+        try (var out = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = cutOffset;
+            long end = channel.size();
+            while (position < end) {
+                position += channel.transferTo(position, end - position, out);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        imageReady = false;
+        compacting = false;
+    }
+
+    private void fail(IOException ex) {
+        synchronized (durableLock) {
+            if (failure == null) {
+                failure = ex;
+            }
+            durableLock.notifyAll();
+        }
+    }
+
+    // applies the entries after the image, returns the last sequence seen
+    private long replay(long imageSequence) throws IOException {
+        long last = imageSequence;
+        long position = 0;
+        // the entries of an open batch, where it starts and how deep it is
+        List<ByteBuffer> batch = null;
+        long batchStart = 0;
+        int depth = 0;
+        long size = channel.size();
+        var header = ByteBuffer.allocate(ENTRY_HEADER);
+        while (position + ENTRY_HEADER <= size) {
+            header.clear();
+            readFully(position, header);
+            header.flip();
+            long length = header.getLong();
+            int crc = header.getInt();
+            if (length < 9 || length > Integer.MAX_VALUE || position + ENTRY_HEADER + length > size) {
+                break; // torn write
+            }
+            var payload = ByteBuffer.allocate((int) length);
+            readFully(position + ENTRY_HEADER, payload);
+            payload.flip();
+            var checksum = new CRC32();
+            checksum.update(payload.duplicate());
+            if ((int) checksum.getValue() != crc) {
+                break; // corrupt
+            }
+            long sequence = payload.getLong();
+            byte op = payload.get(payload.position());
+            if (op == BATCH) {
+                if (depth++ == 0) {
+                    batch = new ArrayList<>();
+                    batchStart = position;
+                }
+            } else if (op == BATCH_END) {
+                if (--depth == 0) {
+                    for (var entry : batch) {
+                        apply(entry);
+                    }
+                    batch = null;
+                }
+            } else if (sequence > imageSequence) {
+                if (batch != null) {
+                    batch.add(payload);
+                } else {
+                    apply(payload);
+                }
+            }
+            if (batch == null) {
+                last = Math.max(last, sequence);
+            }
+            position += ENTRY_HEADER + length;
+        }
+        if (batch != null) {
+            // the batch never made it whole, none of it did
+            position = batchStart;
+        }
+        // drop whatever is left of a torn tail, appends continue after it
+        channel.truncate(position);
+        channel.position(position);
+        return last;
+    }
+
+    private void apply(ByteBuffer payload) throws IOException {
+        byte op = payload.get();
+        var path = readString(payload);
+        switch (op) {
+            case MKDIR:
+                if (!fileSystem.contains(path)) {
+                    fileSystem.storeRecord(ImfsRecord.ofDir(path));
+                }
+                break;
+            case DELETE:
+                fileSystem.dropEntry(path);
+                break;
+            case COPY:
+                fileSystem.copyRecord(path, readString(payload));
+                break;
+            case COPY_TREE:
+                fileSystem.copyTree(path, readString(payload));
+                break;
+            case MOVE:
+                fileSystem.moveNode(path, readString(payload));
+                break;
+            case PUT:
+                fileSystem.storeBlob(path, readBytes(payload));
+                break;
+            case APPEND:
+                fileSystem.appendBlob(path, ByteBuffer.wrap(readBytes(payload)));
+                break;
+            case TRUNCATE:
+                fileSystem.truncateBlob(path, payload.getLong());
+                break;
+            default:
+                throw new IllegalStateException("unknown journal op: " + op);
+        }
+    }
+
+    private void readFully(long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) {
+                throw new EOFException("Truncated journal: " + file);
+            }
+        }
+    }
+
+    // the size and the contents of a PUT or APPEND, within the payload
+    private static byte[] readBytes(ByteBuffer payload) {
+        var bytes = new byte[Math.toIntExact(payload.getLong())];
+        payload.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Entry {
+        // markers for the writer thread, never written
+        static final Entry WAKE_UP = new Entry((byte) 0, null, null, null);
+        static final Entry COMPACT = new Entry((byte) 0, null, null, null);
+
+        final byte op;
+        final String path;
+        final String target;
+        final ImfsBlob blob;
+        // the bytes of blob that are logged, for TRUNCATE to is the new size
+        final long from;
+        final long to;
+        long sequence;
+
+        Entry(byte op, String path, String target, ImfsBlob blob) {
+            this(op, path, target, blob, 0, 0);
+        }
+
+        Entry(byte op, String path, String target, ImfsBlob blob, long from, long to) {
+            this.op = op;
+            this.path = path;
+            this.target = target;
+            this.blob = blob;
+            this.from = from;
+            this.to = to;
+        }
+
+        void encode(List<ByteBuffer> out) {
+            var pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            var targetBytes = target == null ? null : target.getBytes(StandardCharsets.UTF_8);
+            int fixed = 8 + 1 + 4 + pathBytes.length
+                    + (targetBytes == null ? 0 : 4 + targetBytes.length)
+                    + (blob == null && op != TRUNCATE ? 0 : 8);
+            var head = ByteBuffer.allocate(ENTRY_HEADER + fixed);
+            head.position(ENTRY_HEADER);
+            head.putLong(sequence).put(op).putInt(pathBytes.length).put(pathBytes);
+            if (targetBytes != null) {
+                head.putInt(targetBytes.length).put(targetBytes);
+            }
+            var body = blob == null ? new ByteBuffer[0] : range(blob.buffers(), from, to);
+            long size = blob == null ? 0 : to - from;
+            if (blob != null) {
+                head.putLong(size);
+            } else if (op == TRUNCATE) {
+                head.putLong(to);
+            }
+            var checksum = new CRC32();
+            checksum.update(head.duplicate().flip().position(ENTRY_HEADER));
+            for (var buffer : body) {
+                checksum.update(buffer.duplicate());
+            }
+            head.putLong(0, fixed + size);
+            head.putInt(8, (int) checksum.getValue());
+            head.flip();
+            out.add(head);
+            for (var buffer : body) {
+                out.add(buffer);
+            }
+        }
+
+        // the buffers of the bytes [from, to)
+        private static ByteBuffer[] range(ByteBuffer[] buffers, long from, long to) {
+            if (from == to) {
+                return new ByteBuffer[0];
+            }
+            int first = (int) (from >>> ImfsBlob.BLOCK_SHIFT);
+            int last = (int) ((to - 1) >>> ImfsBlob.BLOCK_SHIFT);
+            var result = Arrays.copyOfRange(buffers, first, last + 1);
+            result[result.length - 1].limit((int) ((to - 1) & ImfsBlob.BLOCK_MASK) + 1);
+            result[0].position((int) (from & ImfsBlob.BLOCK_MASK));
+            return result;
+        }
+
+        void release() {
+            if (blob != null) {
+                blob.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.imfs;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped per-path locks for the mutations of one ImfsFileSystem.
+ * Readers never lock, they rely on the concurrent maps of the storage.
+ * Writers lock every path they touch (usually the path and its parent),
+ * so unrelated mutations run in parallel without a global lock.
+ * Stripes are always acquired in ascending order to avoid deadlocks,
+ * and are reentrant so an operation can call other locked operations
+ * on a subset of its paths.
+ */
+final class ImfsLocks {
+    private final ReentrantLock[] stripes;
+
+    ImfsLocks(int count) {
+        if (Integer.bitCount(count) != 1) {
+            throw new IllegalArgumentException("stripe count must be a power of two: " + count);
+        }
+        this.stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Locks the stripes of all the given paths.
+     *
+     * @param materializedPaths the paths to lock, duplicates are fine
+     * @return a handle that releases the locks on close
+     */
+    Held lock(String... materializedPaths) {
+        return lock(null, materializedPaths);
+    }
+
+    /**
+     * Locks gate, then the stripes of all the given paths.
+     *
+     * @param gate              an outer lock held for as long as the stripes,
+     *                          may be null
+     * @param materializedPaths the paths to lock, duplicates are fine
+     * @return a handle that releases the locks on close
+     */
+    Held lock(Lock gate, String... materializedPaths) {
+        var indexes = new int[materializedPaths.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = stripeOf(materializedPaths[i]);
+        }
+        Arrays.sort(indexes);
+        int count = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                indexes[count++] = indexes[i];
+            }
+        }
+        var held = new Held(gate, Arrays.copyOf(indexes, count));
+        if (gate != null) {
+            gate.lock();
+        }
+        for (int index : held.indexes) {
+            stripes[index].lock();
+        }
+        return held;
+    }
+
+    private int stripeOf(String materializedPath) {
+        int hash = materializedPath.hashCode();
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+
+    /**
+     * Releases the locks on close. Callers hold it with try-with-resources
+     * and never touch it in the body, so their methods suppress "try" lint.
+     */
+    final class Held implements AutoCloseable {
+        private final Lock gate;
+        private final int[] indexes;
+
+        private Held(Lock gate, int[] indexes) {
+            this.gate = gate;
+            this.indexes = indexes;
+        }
+
+        @Override
+        public void close() {
+            for (int i = indexes.length - 1; i >= 0; i--) {
+                stripes[indexes[i]].unlock();
+            }
+            if (gate != null) {
+                gate.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.imfs;
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A line found by ImfsFileSystem.grep.
+ */
+@Getter
+@EqualsAndHashCode
+@ToString
+@Builder
+public class ImfsMatch {
+    private final String materializedPath;
+    // 1 based, like grep -n
+    private final long lineNumber;
+    private final String line;
+}
@@ -0,0 +1,92 @@
+package com.imfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The entries of a volume by name, so finding every file or directory
+ * called eg: "pom.xml" below a path costs O(log entries + matches) instead
+ * of a walk, see ImfsOptions.NAME_INDEX and ImfsFileSystem.findByName.
+ *
+ * Each entry is one key in a sorted set: its name, a slash and its path,
+ * eg: "notes.txt/math/notes.txt". Names have no slash, so the entries with
+ * one name are a contiguous range of keys, and the ones below a directory
+ * a sub-range of it. Writers update it under the locks of the paths they
+ * change, readers see it weakly consistent like the tree.
+ *
+ * Moving or copying a directory relinks one node in the tree but changes
+ * the path of everything below it, so with the index both cost O(entries
+ * below) rather than O(depth).
+ */
+final class ImfsNameIndex {
+    private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+
+    void add(String materializedPath) {
+        keys.add(key(materializedPath));
+    }
+
+    /**
+     * Adds the entry at a path and everything below it.
+     */
+    void addTree(String materializedPath, ImfsNode node) {
+        add(materializedPath);
+        if (node.isDirectory()) {
+            for (var kid : node.children().entrySet()) {
+                addTree(materializedPath + "/" + kid.getKey(), kid.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes the entry at a path and everything below it.
+     */
+    void removeTree(String materializedPath, ImfsNode node) {
+        keys.remove(key(materializedPath));
+        if (node.isDirectory()) {
+            for (var kid : node.children().entrySet()) {
+                removeTree(materializedPath + "/" + kid.getKey(), kid.getValue());
+            }
+        }
+    }
+
+    void clear() {
+        keys.clear();
+    }
+
+    /**
+     * Replaces the contents with the entries below root.
+     */
+    void rebuild(ImfsNode root) {
+        keys.clear();
+        for (var kid : root.children().entrySet()) {
+            addTree(kid.getKey(), kid.getValue());
+        }
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    /**
+     * The paths of the entries called name at or below a path, sorted.
+     */
+    List<String> find(String materializedPath, String name) {
+        var result = new ArrayList<String>();
+        if (!materializedPath.isEmpty() && ImfsFileSystem.nameOf(materializedPath).equals(name)
+                && keys.contains(key(materializedPath))) {
+            result.add(materializedPath);
+        }
+        // everything below starts with name/path/, and '0' comes right after '/'
+        var from = name + "/" + (materializedPath.isEmpty() ? "" : materializedPath + "/");
+        var to = from.substring(0, from.length() - 1) + "0";
+        for (var key : keys.subSet(from, to)) {
+            result.add(key.substring(name.length() + 1));
+        }
+        return result;
+    }
+
+    private static String key(String materializedPath) {
+        return ImfsFileSystem.nameOf(materializedPath) + "/" + materializedPath;
+    }
+}
@@ -0,0 +1,110 @@
+package com.imfs;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An inode of the tree behind ImfsFileSystem: a directory with its children
+ * by name, or a file with its blob.
+ *
+ * Nodes don't know their name or path, the entry in the parent's children
+ * map (the dentry) does, so renaming a directory relinks a single node no
+ * matter how many descendants it has. Children maps are concurrent and
+ * sorted, readers walk them without locking and list kids in name order.
+ *
+ * A node may hang off several parents, eg: after a recursive copy links the
+ * same subtree under a second name. Links counts the dentries pointing at
+ * it, a node with more than one is shared and must not change: writers copy
+ * it first (see ImfsFileSystem.writable), one level at a time, so only the
+ * directories on the path they write to are ever duplicated.
+ */
+final class ImfsNode {
+    // null for files
+    private final ConcurrentSkipListMap<String, ImfsNode> children;
+    // null for directories, only written under the path lock of the file
+    private volatile ImfsBlob blob;
+    private final AtomicInteger links = new AtomicInteger(1);
+
+    private ImfsNode(ConcurrentSkipListMap<String, ImfsNode> children, ImfsBlob blob) {
+        this.children = children;
+        this.blob = blob;
+    }
+
+    static ImfsNode directory() {
+        return new ImfsNode(new ConcurrentSkipListMap<>(), null);
+    }
+
+    /**
+     * A file node, it takes over the caller's reference to the blob.
+     */
+    static ImfsNode file(ImfsBlob blob) {
+        return new ImfsNode(null, blob);
+    }
+
+    boolean isDirectory() {
+        return children != null;
+    }
+
+    ConcurrentSkipListMap<String, ImfsNode> children() {
+        return children;
+    }
+
+    ImfsBlob getBlob() {
+        return blob;
+    }
+
+    /**
+     * Replaces the contents of a file.
+     *
+     * @return the previous blob, whose reference passes to the caller
+     */
+    ImfsBlob setBlob(ImfsBlob newBlob) {
+        var previous = blob;
+        blob = newBlob;
+        return previous;
+    }
+
+    boolean isShared() {
+        return links.get() > 1;
+    }
+
+    /**
+     * Adds a dentry pointing at this node.
+     */
+    ImfsNode share() {
+        links.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * A private copy of a shared node. Directories copy their dentries and
+     * share the kids, files share the blob, so nothing deeper gets copied.
+     */
+    ImfsNode copy() {
+        if (!isDirectory()) {
+            return file(blob.retain());
+        }
+        var result = directory();
+        for (var entry : children.entrySet()) {
+            result.children.put(entry.getKey(), entry.getValue().share());
+        }
+        return result;
+    }
+
+    /**
+     * Drops a dentry pointing at this node. The last one releases the blob,
+     * or unlinks the kids.
+     */
+    void unlink() {
+        if (links.decrementAndGet() > 0) {
+            return;
+        }
+        if (!isDirectory()) {
+            blob.release();
+            return;
+        }
+        for (var kid : children.values()) {
+            kid.unlink();
+        }
+    }
+}
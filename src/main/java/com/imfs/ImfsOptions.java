@@ -0,0 +1,149 @@
+package com.imfs;
+
+import java.util.Locale;
+import java.util.Map;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Per volume settings, parsed from the env map of
+ * FileSystems.newFileSystem(URI, Map). Values can be given as strings or as
+ * their actual types.
+ */
+@Getter
+@Builder(toBuilder = true)
+public class ImfsOptions {
+    /** "heap" (default) or "offheap". */
+    public static final String STORAGE = "storage";
+    /** Bytes per off-heap arena, defaults to 64MB. */
+    public static final String ARENA_SIZE = "arenaSize";
+
+    /** "true" to store files with the same contents once, defaults to false. */
+    public static final String DEDUP = "dedup";
+    /** Snapshots kept per volume before the oldest is closed, defaults to 16. */
+    public static final String MAX_SNAPSHOTS = "maxSnapshots";
+    /** Host path of the write-ahead log, the volume is not journaled if unset. */
+    public static final String JOURNAL = "journal";
+    /** "always" (default), "interval" or "never", see JournalSync. */
+    public static final String JOURNAL_SYNC = "journalSync";
+    /** Milliseconds between fsyncs with the interval policy, defaults to 10. */
+    public static final String JOURNAL_SYNC_MILLIS = "journalSyncMillis";
+    /** Host path of the image the log is compacted into, defaults to journal + ".image". */
+    public static final String JOURNAL_IMAGE = "journalImage";
+    /** Log size that triggers a compaction, defaults to 64MB. */
+    public static final String JOURNAL_COMPACT_BYTES = "journalCompactBytes";
+    /** Files at least this large are stored deflated, defaults to 0 (never). */
+    public static final String COMPRESS_BYTES = "compressBytes";
+    /** Files not read for this long are deflated in the background, defaults to 0 (never). */
+    public static final String COMPRESS_IDLE_MINUTES = "compressIdleMinutes";
+    /** Memory budget of the trigram index grep uses to skip files, defaults to 0 (no index). */
+    public static final String TRIGRAM_INDEX_BYTES = "trigramIndexBytes";
+    /** "true" to index entries by name for findByName, defaults to false. */
+    public static final String NAME_INDEX = "nameIndex";
+
+    public enum Storage {
+        HEAP, OFFHEAP
+    }
+
+    /**
+     * When appends to the journal reach the disk.
+     * ALWAYS: mutations return once their entry is synced, INTERVAL: the log
+     * is synced every journalSyncMillis, NEVER: left to the OS.
+     */
+    public enum JournalSync {
+        ALWAYS, INTERVAL, NEVER
+    }
+
+    @Builder.Default
+    private final Storage storage = Storage.HEAP;
+    @Builder.Default
+    private final int arenaSize = 64 << 20;
+    private final boolean dedup;
+    @Builder.Default
+    private final int maxSnapshots = 16;
+    private final String journal;
+    @Builder.Default
+    private final JournalSync journalSync = JournalSync.ALWAYS;
+    @Builder.Default
+    private final long journalSyncMillis = 10;
+    private final String journalImage;
+    @Builder.Default
+    private final long journalCompactBytes = 64 << 20;
+    private final long compressBytes;
+    private final long compressIdleMinutes;
+    private final long trigramIndexBytes;
+    private final boolean nameIndex;
+
+    public static ImfsOptions defaults() {
+        return builder().build();
+    }
+
+    public static ImfsOptions fromEnv(Map<String, ?> env) {
+        var builder = builder();
+        if (env == null) {
+            return builder.build();
+        }
+        var storage = env.get(STORAGE);
+        if (storage != null) {
+            builder.storage(Storage.valueOf(storage.toString().toUpperCase(Locale.ROOT)));
+        }
+        var arenaSize = env.get(ARENA_SIZE);
+        if (arenaSize != null) {
+            builder.arenaSize(Integer.parseInt(arenaSize.toString()));
+        }
+        var dedup = env.get(DEDUP);
+        if (dedup != null) {
+            builder.dedup(Boolean.parseBoolean(dedup.toString()));
+        }
+        var maxSnapshots = env.get(MAX_SNAPSHOTS);
+        if (maxSnapshots != null) {
+            builder.maxSnapshots(Integer.parseInt(maxSnapshots.toString()));
+        }
+        var journal = env.get(JOURNAL);
+        if (journal != null) {
+            builder.journal(journal.toString());
+        }
+        var journalSync = env.get(JOURNAL_SYNC);
+        if (journalSync != null) {
+            builder.journalSync(JournalSync.valueOf(journalSync.toString().toUpperCase(Locale.ROOT)));
+        }
+        var journalSyncMillis = env.get(JOURNAL_SYNC_MILLIS);
+        if (journalSyncMillis != null) {
+            long millis = Long.parseLong(journalSyncMillis.toString());
+            if (millis <= 0) {
+                throw new IllegalArgumentException(JOURNAL_SYNC_MILLIS + " must be positive: " + millis);
+            }
+            builder.journalSyncMillis(millis);
+        }
+        var journalImage = env.get(JOURNAL_IMAGE);
+        if (journalImage != null) {
+            builder.journalImage(journalImage.toString());
+        }
+        var journalCompactBytes = env.get(JOURNAL_COMPACT_BYTES);
+        if (journalCompactBytes != null) {
+            builder.journalCompactBytes(Long.parseLong(journalCompactBytes.toString()));
+        }
+        var compressBytes = env.get(COMPRESS_BYTES);
+        if (compressBytes != null) {
+            builder.compressBytes(Long.parseLong(compressBytes.toString()));
+        }
+        var compressIdleMinutes = env.get(COMPRESS_IDLE_MINUTES);
+        if (compressIdleMinutes != null) {
+            builder.compressIdleMinutes(Long.parseLong(compressIdleMinutes.toString()));
+        }
+        var trigramIndexBytes = env.get(TRIGRAM_INDEX_BYTES);
+        if (trigramIndexBytes != null) {
+            builder.trigramIndexBytes(Long.parseLong(trigramIndexBytes.toString()));
+        }
+        var nameIndex = env.get(NAME_INDEX);
+        if (nameIndex != null) {
+            builder.nameIndex(Boolean.parseBoolean(nameIndex.toString()));
+        }
+        return builder.build();
+    }
+
+    ImfsBlockAllocator newAllocator() {
+        return storage == Storage.OFFHEAP ? new ImfsDirectAllocator(arenaSize) : ImfsBlockAllocator.heap();
+    }
+}
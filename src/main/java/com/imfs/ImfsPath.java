@@ -12,9 +12,14 @@ import java.nio.file.WatchService;
 
 public class ImfsPath implements Path {
 
-    private URI uri;
+    // built on first use for the kids of a directory stream, see toUri
+    private volatile URI uri;
     private FileSystem fileSystem;
     private String materializedPath;
+    // the dentry a directory stream listed this path from, null otherwise
+    private final ImfsFileSystem.Listing listing;
+    private final String listedName;
+    private final ImfsNode listedNode;
 
     public ImfsPath(FileSystem fileSystem, URI uri) {
         if (!uri.isAbsolute()) {
@@ -27,6 +32,30 @@ public class ImfsPath implements Path {
         this.materializedPath = path.substring(1);
         this.fileSystem = fileSystem;
         this.uri = uri;
+        this.listing = null;
+        this.listedName = null;
+        this.listedNode = null;
+    }
+
+    /**
+     * A path built from its materialized path, its URI is only made if
+     * asked for.
+     */
+    ImfsPath(ImfsFileSystem fileSystem, String materializedPath) {
+        this(fileSystem, materializedPath, null, null, null);
+    }
+
+    /**
+     * A kid listed by ImfsDirectoryStream, it keeps the dentry it was
+     * listed from so reading its attributes doesn't walk the tree again.
+     */
+    ImfsPath(ImfsFileSystem fileSystem, String materializedPath, ImfsFileSystem.Listing listing,
+            String listedName, ImfsNode listedNode) {
+        this.fileSystem = fileSystem;
+        this.materializedPath = materializedPath;
+        this.listing = listing;
+        this.listedName = listedName;
+        this.listedNode = listedNode;
     }
 
     @Override
@@ -41,14 +70,15 @@ public class ImfsPath implements Path {
             // they might use a different instance of the fileSystem
             throw new UnsupportedOperationException("Unimplemented absolute URI resolve");
         }
-        if (relative.startsWith("/") || this.uri.getPath().equals("/")) {
+        var uri = toUri();
+        if (relative.startsWith("/") || uri.getPath().equals("/")) {
             // if either are root, then we can just resolve
-            resolved = this.uri.resolve(relative);
+            resolved = uri.resolve(relative);
         } else {
             // otherwise we need to append the relative to the path
             // FS Path is different than URI in this respect.
             // explicitly use resolveSibling to replace the last path component
-            resolved = this.uri.resolve(this.uri.getPath() + "/" + relative);
+            resolved = uri.resolve(uri.getPath() + "/" + relative);
         }
         return new ImfsPath(fileSystem, resolved);
     }
@@ -90,6 +120,7 @@ public class ImfsPath implements Path {
 
     @Override
     public Path getParent() {
+        var uri = toUri();
         String path = uri.getPath();
         String parentPath = path.substring(0, path.lastIndexOf('/'));
         URI parentUri = uri.resolve(parentPath);
@@ -157,7 +188,12 @@ public class ImfsPath implements Path {
 
     @Override
     public URI toUri() {
-        return this.uri;
+        var result = uri;
+        if (result == null) {
+            result = URI.create("imfs://" + ((ImfsFileSystem) fileSystem).getKey() + "/" + materializedPath);
+            uri = result;
+        }
+        return result;
     }
 
     @Override
@@ -166,15 +202,27 @@ public class ImfsPath implements Path {
             return true;
         }
         return other instanceof ImfsPath
-                && this.uri.equals(((ImfsPath) other).uri);
+                && toUri().equals(((ImfsPath) other).toUri());
     }
 
     @Override
     public String toString() {
-        return this.uri.toString();
+        return toUri().toString();
     }
 
     public String getMaterializedPath() {
         return materializedPath;
     }
+
+    ImfsFileSystem.Listing listing() {
+        return listing;
+    }
+
+    String listedName() {
+        return listedName;
+    }
+
+    ImfsNode listedNode() {
+        return listedNode;
+    }
 }
@@ -2,7 +2,11 @@ package com.imfs;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessMode;
 import java.nio.file.CopyOption;
@@ -12,6 +16,8 @@ import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
@@ -23,14 +29,18 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 public class ImfsProvider extends FileSystemProvider {
     static final String IMFS_SCHEME = "imfs";
-    private static final Map<String, ImfsFileSystem> cache = new HashMap<>();
+    private static final Map<String, ImfsFileSystem> cache = new ConcurrentHashMap<>();
 
     private static ImfsPath checkPath(Path obj) {
         Objects.requireNonNull(obj);
@@ -45,61 +55,113 @@ public class ImfsProvider extends FileSystemProvider {
         var imfsPath = checkPath(path);
         var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
         var kid = imfsPath.getMaterializedPath();
-        if (!kid.isEmpty() && !fileSystem.contains(kid)) {
+        if (!kid.isEmpty() && fileSystem.resolve(imfsPath) == null) {
             throw new NoSuchFileException("No such file or directory: " + imfsPath.toUri().toString());
         }
     }
 
     @Override
+    @SuppressWarnings("try")
     public void copy(Path arg0, Path arg1, CopyOption... arg2) throws IOException {
         var src = checkPath(arg0);
         var dst = checkPath(arg1);
-        checkAccess(src);
-        checkAccess(dst.getParent());
         var fileSystem = (ImfsFileSystem) src.getFileSystem();
         var srcKid = src.getMaterializedPath();
         var dstKid = dst.getMaterializedPath();
-        if (fileSystem.contains(dstKid) || arg2.length > 0 && arg2[0] == StandardCopyOption.REPLACE_EXISTING) {
+        if (Arrays.asList(arg2).contains(ImfsCopyOption.RECURSIVE)) {
+            copyTree(src, dst, arg2);
+            return;
+        }
+        long sequence;
+        try (var held = fileSystem.lock(srcKid, ImfsFileSystem.parentOf(dstKid), dstKid)) {
+            checkCopy(src, dst, arg2);
+            fileSystem.copyRecord(srcKid, dstKid);
+            sequence = fileSystem.journal().copy(srcKid, dstKid);
+        }
+        // wait for the disk without blocking other writers of these paths
+        fileSystem.journal().sync(sequence);
+    }
+
+    @SuppressWarnings("try")
+    private void copyTree(ImfsPath src, ImfsPath dst, CopyOption... options) throws IOException {
+        var fileSystem = (ImfsFileSystem) src.getFileSystem();
+        var srcKid = src.getMaterializedPath();
+        var dstKid = dst.getMaterializedPath();
+        long sequence;
+        // sharing nodes must not overlap with writers below them
+        try (var exclusive = fileSystem.lockExclusive();
+                var held = fileSystem.lock(srcKid, ImfsFileSystem.parentOf(dstKid), dstKid)) {
+            checkCopy(src, dst, options);
+            if (ImfsFileSystem.isWithin(dstKid, srcKid)) {
+                throw new FileSystemException(src.toUri().toString(), dst.toUri().toString(),
+                        "Cannot copy a directory into itself");
+            }
+            fileSystem.copyTree(srcKid, dstKid);
+            sequence = fileSystem.journal().copyTree(srcKid, dstKid);
+        }
+        fileSystem.journal().sync(sequence);
+    }
+
+    // call with the locks of copy held
+    private void checkCopy(ImfsPath src, ImfsPath dst, CopyOption... options) throws IOException {
+        var fileSystem = (ImfsFileSystem) src.getFileSystem();
+        checkAccess(src);
+        checkAccess(dst.getParent());
+        if (fileSystem.contains(dst.getMaterializedPath())
+                || options.length > 0 && options[0] == StandardCopyOption.REPLACE_EXISTING) {
             throw new FileAlreadyExistsException("File at path:" + dst.toUri() + " already exists");
         }
-        ImfsRecord srcRecord = fileSystem.getRecord(srcKid);
-        if (srcRecord == null) {
+        if (fileSystem.getRecord(src.getMaterializedPath()) == null) {
             throw new NoSuchFileException("No such file or directory: " + src.toUri().toString());
         }
-        var dstRecord = srcRecord.toBuilder()
-                .materializedPath(dstKid)
-                .build();
-        fileSystem.putRecord(dstRecord);
     }
 
     @Override
+    @SuppressWarnings("try")
     public void createDirectory(Path path, FileAttribute<?>... arg1) throws IOException {
         var imfsPath = checkPath(path);
         var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
         var kid = imfsPath.getMaterializedPath();
-        if (fileSystem.contains(kid)) {
-            throw new FileAlreadyExistsException("File at path:" + path.toUri() + " already exists");
+        long sequence;
+        try (var held = fileSystem.lock(ImfsFileSystem.parentOf(kid), kid)) {
+            if (fileSystem.contains(kid)) {
+                throw new FileAlreadyExistsException("File at path:" + path.toUri() + " already exists");
+            }
+            // the parent can't go away while we hold its lock
+            checkAccess(imfsPath.getParent());
+            fileSystem.storeRecord(ImfsRecord.ofDir(kid));
+            sequence = fileSystem.journal().mkdir(kid);
         }
-        fileSystem.putRecord(ImfsRecord.ofDir(kid));
+        fileSystem.journal().sync(sequence);
     }
 
     @Override
+    @SuppressWarnings("try")
     public void delete(Path path) throws IOException {
         var imfsPath = checkPath(path);
+        var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
+        var kid = imfsPath.getMaterializedPath();
+        long sequence;
+        // holding the lock of kid keeps new children out until it's removed
+        try (var held = fileSystem.lock(ImfsFileSystem.parentOf(kid), kid)) {
+            checkDelete(imfsPath);
+            fileSystem.dropEntry(kid);
+            sequence = fileSystem.journal().delete(kid);
+        }
+        fileSystem.journal().sync(sequence);
+    }
+
+    // call with the locks of delete held
+    private void checkDelete(ImfsPath imfsPath) throws IOException {
         var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
         var kid = imfsPath.getMaterializedPath();
         var record = fileSystem.getRecord(kid);
         if (record == null) {
             throw new NoSuchFileException("No such file or directory: " + imfsPath.toUri().toString());
         }
-        if (record.getBytes() == null) {
-            try (DirectoryStream<Path> dirStream = newDirectoryStream(path, null)) {
-                if (dirStream.iterator().hasNext()) {
-                    throw new DirectoryNotEmptyException("Directory not empty: " + imfsPath.toUri().toString());
-                }
-            }
+        if (record.isDirectory() && fileSystem.hasChildren(kid)) {
+            throw new DirectoryNotEmptyException("Directory not empty: " + imfsPath.toUri().toString());
         }
-        fileSystem.removeEntry(kid);
     }
 
     @Override
@@ -144,33 +206,194 @@ public class ImfsProvider extends FileSystemProvider {
     }
 
     @Override
+    @SuppressWarnings("try")
     public void move(Path source, Path target, CopyOption... options) throws IOException {
-        this.copy(source, target, options);
-        this.delete(source);
+        var src = checkPath(source);
+        var dst = checkPath(target);
+        var fileSystem = (ImfsFileSystem) src.getFileSystem();
+        var srcKid = src.getMaterializedPath();
+        var dstKid = dst.getMaterializedPath();
+        long sequence;
+        for (;;) {
+            // a directory takes its subtree along, which remaps every path
+            // below it, so it needs the namespace to itself
+            var peek = fileSystem.getRecord(srcKid);
+            boolean directory = peek != null && peek.isDirectory();
+            try (var exclusive = directory ? fileSystem.lockExclusive() : null;
+                    var held = fileSystem.lock(ImfsFileSystem.parentOf(srcKid), srcKid,
+                            ImfsFileSystem.parentOf(dstKid), dstKid)) {
+                var record = fileSystem.getRecord(srcKid);
+                if (!directory && record != null && record.isDirectory()) {
+                    continue; // replaced by a directory meanwhile
+                }
+                checkCopy(src, dst, options);
+                if (ImfsFileSystem.isWithin(dstKid, srcKid)) {
+                    throw new FileSystemException(src.toUri().toString(), dst.toUri().toString(),
+                            "Cannot move a directory into itself");
+                }
+                fileSystem.moveNode(srcKid, dstKid);
+                sequence = fileSystem.journal().move(srcKid, dstKid);
+                break;
+            }
+        }
+        fileSystem.journal().sync(sequence);
+    }
+
+    /**
+     * Reads the blocks of the file directly, without the channel adapter of
+     * the default implementation. Only READ is supported.
+     */
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        for (var option : options) {
+            if (option != StandardOpenOption.READ) {
+                throw new UnsupportedOperationException("'" + option + "' not allowed");
+            }
+        }
+        var imfsPath = checkPath(path);
+        var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
+        var kid = imfsPath.getMaterializedPath();
+        var record = fileSystem.getRecord(kid);
+        if (record != null && record.isDirectory()) {
+            throw new IOException("Is a directory: " + imfsPath.toUri().toString());
+        }
+        // keeps the blocks alive until the stream is closed
+        var blob = fileSystem.retainBlob(kid);
+        if (blob == null) {
+            throw new NoSuchFileException("No such file or directory: " + imfsPath.toUri().toString());
+        }
+        return new ImfsBlobInputStream(blob);
+    }
+
+    /**
+     * Writes into the blocks of the file directly, without the channel
+     * adapter of the default implementation. No options means CREATE,
+     * TRUNCATE_EXISTING and WRITE, like the default.
+     */
+    @Override
+    public OutputStream newOutputStream(Path path, OpenOption... options) throws IOException {
+        var imfsPath = checkPath(path);
+        var opts = new HashSet<OpenOption>(Arrays.asList(options));
+        if (opts.isEmpty()) {
+            opts.add(StandardOpenOption.CREATE);
+            opts.add(StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        if (opts.contains(StandardOpenOption.READ)) {
+            throw new IllegalArgumentException("READ not allowed");
+        }
+        if (opts.contains(StandardOpenOption.APPEND) && opts.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            throw new IllegalArgumentException("APPEND + TRUNCATE_EXISTING not allowed");
+        }
+        opts.add(StandardOpenOption.WRITE);
+        var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
+        return openWritable(imfsPath, opts, (file, writer) -> new ImfsBlobOutputStream(fileSystem, file, writer));
     }
 
     @Override
     public SeekableByteChannel newByteChannel(Path arg0, Set<? extends OpenOption> options, FileAttribute<?>... arg2)
             throws IOException {
+        return newFileChannel(arg0, options, arg2);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path arg0, Set<? extends OpenOption> options, FileAttribute<?>... arg2)
+            throws IOException {
         var imfsPath = checkPath(arg0);
         var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
-        var record = fileSystem.getRecord(imfsPath.getMaterializedPath());
-        if (options.contains(StandardOpenOption.WRITE)) {
-            if (record != null && options.contains(StandardOpenOption.CREATE_NEW)) {
-                throw new FileAlreadyExistsException("File at path:" + imfsPath.toUri() + " already exists");
-            }
-            // TODO: check if clobbering existing files is always correct
-            fileSystem.putBlob(imfsPath.getMaterializedPath(), new byte[] {});
-            var result = new ImfsWritableByteChannel(imfsPath);
-            return new ImfsSeekableByteChannel(result);
-        } else if (options.contains(StandardOpenOption.READ) || options.isEmpty()) {
+        var kid = imfsPath.getMaterializedPath();
+        boolean append = options.contains(StandardOpenOption.APPEND);
+        if (append && options.contains(StandardOpenOption.READ)) {
+            throw new IllegalArgumentException("READ + APPEND not allowed");
+        }
+        if (append && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            throw new IllegalArgumentException("APPEND + TRUNCATE_EXISTING not allowed");
+        }
+        if (options.contains(StandardOpenOption.WRITE) || append) {
+            boolean readable = options.contains(StandardOpenOption.READ);
+            return openWritable(imfsPath, options, (file, writer) -> writer == null
+                    // every write goes straight to the end of the file
+                    ? ImfsFileChannel.appending(imfsPath, file)
+                    : ImfsFileChannel.writing(imfsPath, file, writer, readable));
+        }
+        if (options.contains(StandardOpenOption.READ) || options.isEmpty()) {
+            var record = fileSystem.getRecord(kid);
             if (record == null) {
                 throw new FileNotFoundException("No such file or directory: " + imfsPath.toUri().toString());
             }
+            if (record.isDirectory()) {
+                throw new IOException("Is a directory: " + imfsPath.toUri().toString());
+            }
+            // keeps the blocks alive until the channel is closed
+            var blob = fileSystem.retainBlob(kid);
+            if (blob == null) {
+                throw new FileNotFoundException("No such file or directory: " + imfsPath.toUri().toString());
+            }
+            return ImfsFileChannel.reading(imfsPath, blob);
+        }
+        throw new UnsupportedOperationException("only READ and WRITE are implemented in 'newFileChannel'");
+    }
+
+    private interface Opener<T> {
+        T open(ImfsFileHandle file, ImfsBlobWriter writer) throws IOException;
+    }
 
-            return new ByteArraySeekableByteChannel(record.getBytes());
+    /**
+     * Opens a file for writing: creates or truncates it as the options say,
+     * then hands a handle to it and a writer that patches a copy of it to
+     * the opener, which takes both over. The writer is null with APPEND.
+     */
+    @SuppressWarnings("try")
+    private <T> T openWritable(ImfsPath imfsPath, Set<? extends OpenOption> options, Opener<T> opener)
+            throws IOException {
+        var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
+        var kid = imfsPath.getMaterializedPath();
+        boolean append = options.contains(StandardOpenOption.APPEND);
+        long sequence = 0;
+        ImfsBlob base;
+        ImfsFileHandle file;
+        try (var held = fileSystem.lock(ImfsFileSystem.parentOf(kid), kid)) {
+            var record = fileSystem.getRecord(kid);
+            if (record != null && options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new FileAlreadyExistsException("File at path:" + imfsPath.toUri() + " already exists");
+            }
+            if (record != null && record.isDirectory()) {
+                throw new FileSystemException(imfsPath.toUri().toString(), null, "Is a directory");
+            }
+            if (record == null && !options.contains(StandardOpenOption.CREATE)
+                    && !options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new NoSuchFileException("No such file or directory: " + imfsPath.toUri().toString());
+            }
+            checkAccess(imfsPath.getParent());
+            if (record == null || options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+                fileSystem.storeBlob(kid, ImfsBlob.EMPTY);
+                sequence = fileSystem.journal().put(kid, ImfsBlob.EMPTY);
+                base = ImfsBlob.EMPTY;
+            } else if (append) {
+                base = null;
+            } else {
+                // patched in place, the writer shares the blocks it doesn't write
+                base = fileSystem.retainBlob(kid);
+            }
+            // follows the file if it is renamed while open
+            file = fileSystem.openHandle(kid);
         }
-        throw new UnsupportedOperationException("only READ and WRITE are implemented in 'newByteChannel'");
+        try {
+            fileSystem.journal().sync(sequence);
+            return opener.open(file, append ? null : fileSystem.newBlobWriter(base));
+        } catch (IOException | RuntimeException ex) {
+            fileSystem.closeHandle(file);
+            throw ex;
+        } finally {
+            if (base != null) {
+                base.release();
+            }
+        }
+    }
+
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(Path path, Set<? extends OpenOption> options,
+            ExecutorService executor, FileAttribute<?>... attrs) throws IOException {
+        return new ImfsAsynchronousFileChannel((ImfsFileChannel) newFileChannel(path, options, attrs), executor);
     }
 
     @Override
@@ -180,10 +403,32 @@ public class ImfsProvider extends FileSystemProvider {
         return fileSystem.streamChildren(imfsPath.getMaterializedPath(), filter);
     }
 
+    /**
+     * Creates a volume with the given options, see ImfsOptions for the keys.
+     * Volumes created on first use by getFileSystem get the defaults.
+     */
     @Override
-    public FileSystem newFileSystem(URI arg0, Map<String, ?> arg1) throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'newFileSystem'");
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        var key = uri.getHost();
+        var fileSystem = new ImfsFileSystem(this, key, ImfsOptions.fromEnv(env));
+        addFileSystem(fileSystem);
+        try {
+            fileSystem.openJournal();
+        } catch (IOException | RuntimeException ex) {
+            fileSystem.close();
+            throw ex;
+        }
+        return fileSystem;
+    }
+
+    void addFileSystem(ImfsFileSystem fileSystem) {
+        if (cache.putIfAbsent(fileSystem.getKey(), fileSystem) != null) {
+            throw new FileSystemAlreadyExistsException("Volume already exists: " + fileSystem.getKey());
+        }
+    }
+
+    void removeFileSystem(ImfsFileSystem fileSystem) {
+        cache.remove(fileSystem.getKey(), fileSystem);
     }
 
     @Override
@@ -192,7 +437,7 @@ public class ImfsProvider extends FileSystemProvider {
         var imfsPath = checkPath(arg0);
         var fileSystem = (ImfsFileSystem) imfsPath.getFileSystem();
         if (classz.equals(BasicFileAttributes.class)) {
-            var record = fileSystem.getRecord(imfsPath.getMaterializedPath());
+            var record = fileSystem.getRecord(imfsPath);
             if (record != null) {
                 return classz.cast(ImfsFileAttributes.of(record));
             }
@@ -202,10 +447,35 @@ public class ImfsProvider extends FileSystemProvider {
         }
     }
 
+    /**
+     * Reads attributes of the "basic" view, or of the "imfs" view which adds
+     * allocatedSize, the memory behind the contents (like du vs ls -l).
+     */
     @Override
-    public Map<String, Object> readAttributes(Path arg0, String arg1, LinkOption... arg2) throws IOException {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'readAttributes'");
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+            throws IOException {
+        var imfsPath = checkPath(path);
+        int colon = attributes.indexOf(':');
+        var view = colon == -1 ? "basic" : attributes.substring(0, colon);
+        if (!view.equals("basic") && !view.equals("imfs")) {
+            throw new UnsupportedOperationException("View '" + view + "' not available");
+        }
+        var record = ((ImfsFileSystem) imfsPath.getFileSystem()).getRecord(imfsPath);
+        if (record == null) {
+            throw new NoSuchFileException("No such file or directory: " + imfsPath.toUri().toString());
+        }
+        var all = ImfsFileAttributes.of(record).toMap(view.equals("imfs"));
+        var result = new LinkedHashMap<String, Object>();
+        for (var name : attributes.substring(colon + 1).split(",")) {
+            if (name.equals("*")) {
+                result.putAll(all);
+            } else if (all.containsKey(name)) {
+                result.put(name, all.get(name));
+            } else {
+                throw new IllegalArgumentException("'" + name + "' not recognized");
+            }
+        }
+        return result;
     }
 
     @Override
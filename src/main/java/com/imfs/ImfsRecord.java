@@ -11,9 +11,14 @@ import lombok.NonNull;
 public class ImfsRecord {
     @NonNull
     private final String materializedPath;
-    private final byte[] bytes;
+    // null for directories
+    private final ImfsBlob blob;
 
     public static ImfsRecord ofDir(String materializedPath) {
         return builder().materializedPath(materializedPath).build();
     }
+
+    public boolean isDirectory() {
+        return blob == null;
+    }
 }
@@ -0,0 +1,50 @@
+package com.imfs;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Point in time counters of one volume, see ImfsFileSystem.stats().
+ */
+@Getter
+@Builder
+@ToString
+public class ImfsStats {
+    private final ImfsOptions.Storage storage;
+    private final long records;
+    // bytes held in blocks, including blocks of files still being written
+    private final long allocatedBytes;
+    // sum of the sizes of all files
+    private final long logicalBytes;
+    // sum of the sizes of distinct blobs, files sharing contents count once
+    private final long storedBytes;
+    // distinct contents in the dedup store, 0 unless the volume dedups
+    private final long dedupBlobs;
+    // distinct blobs stored deflated, and their sizes before and after
+    private final long compressedBlobs;
+    private final long uncompressedBytes;
+    private final long compressedBytes;
+    // time spent deflating and inflating blocks since the volume opened
+    private final long deflateNanos;
+    private final long inflateNanos;
+    // contents in the trigram index and its estimated size, 0 without one
+    private final long indexedBlobs;
+    private final long indexBytes;
+
+    /**
+     * How many bytes the files would take without sharing, per stored byte.
+     * 1.0 when nothing is shared.
+     */
+    public double getDedupRatio() {
+        return storedBytes == 0 ? 1.0 : (double) logicalBytes / storedBytes;
+    }
+
+    /**
+     * Size of the compressed files per byte they take, 1.0 when nothing is
+     * compressed.
+     */
+    public double getCompressionRatio() {
+        return compressedBytes == 0 ? 1.0 : (double) uncompressedBytes / compressedBytes;
+    }
+}
@@ -0,0 +1,245 @@
+package com.imfs;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Trigram index of the contents of one volume, so grep only scans the files
+ * that can match, see ImfsOptions.TRIGRAM_INDEX_BYTES.
+ *
+ * The index is keyed by blob, not by path: contents never change under a
+ * blob, so moves and copies need no update and a file shared by several
+ * paths is indexed once. Each blob gets an id, and every trigram (3
+ * consecutive bytes) of its contents lists the ids that contain it, in
+ * increasing order. A blob leaves the index when its last reference is
+ * released, its id is only marked dead and its postings stay until the
+ * next rebuild, see needsRebuild.
+ *
+ * Memory is bounded: blobs that would take the index past its budget, and
+ * files larger than MAX_FILE_BYTES, are not indexed. Blobs the index doesn't
+ * know are always candidates, so a query is never wrong, only slower.
+ */
+final class ImfsTrigramIndex {
+    // larger files take long to index and match about every trigram anyway
+    static final long MAX_FILE_BYTES = 16 << 20;
+    // the estimated footprint of one distinct trigram: map entry, key and list
+    private static final int BYTES_PER_TRIGRAM = 96;
+    private static final int BYTES_PER_POSTING = 4;
+    private static final int BYTES_PER_BLOB = 8;
+    // rebuilds only pay off once they free a good share of the postings
+    private static final long MIN_REBUILD_POSTINGS = 1 << 16;
+
+    private final long maxBytes;
+    private final Map<Integer, Postings> postings = new HashMap<>();
+    private final BitSet live = new BitSet();
+    // distinct trigrams of each blob, by id, to account for the dead ones
+    private int[] counts = new int[1024];
+    private int nextId;
+    private long postingCount;
+    private long deadPostings;
+    private long skipped;
+
+    ImfsTrigramIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Indexes the contents of a blob, unless it is indexed already or
+     * doesn't fit. The caller holds a reference to it.
+     *
+     * @return false if the blob was skipped for the budget
+     */
+    boolean add(ImfsBlob blob) {
+        if (blob.indexedBy() == this || blob.size() == 0) {
+            return true;
+        }
+        if (blob.size() > MAX_FILE_BYTES) {
+            skip();
+            return false;
+        }
+        // read before locking, queries and releases don't wait for it
+        var trigrams = trigrams(blob);
+        synchronized (this) {
+            long growth = (long) trigrams.length * BYTES_PER_POSTING + BYTES_PER_BLOB;
+            for (int trigram : trigrams) {
+                if (!postings.containsKey(trigram)) {
+                    growth += BYTES_PER_TRIGRAM;
+                }
+            }
+            if (estimatedBytes() + growth > maxBytes) {
+                skipped++;
+                return false;
+            }
+            int id = nextId++;
+            for (int trigram : trigrams) {
+                postings.computeIfAbsent(trigram, key -> new Postings()).add(id);
+            }
+            if (id == counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            counts[id] = trigrams.length;
+            postingCount += trigrams.length;
+            live.set(id);
+            blob.indexed(new Slot(this, id));
+            return true;
+        }
+    }
+
+    private synchronized void skip() {
+        skipped++;
+    }
+
+    /**
+     * Drops a released blob, see ImfsBlob.release.
+     */
+    synchronized void remove(int id) {
+        if (live.get(id)) {
+            live.clear(id);
+            deadPostings += counts[id];
+        }
+    }
+
+    /**
+     * True once most postings belong to released blobs, the volume should
+     * then index its files again into a new index and drop this one.
+     */
+    synchronized boolean needsRebuild() {
+        return deadPostings >= MIN_REBUILD_POSTINGS && deadPostings * 2 > postingCount;
+    }
+
+    /**
+     * The blobs that may contain every one of the literals. Blobs indexed
+     * after the query, or not at all, are candidates too.
+     *
+     * @param literals UTF-8 text every match contains, see ImfsGrep
+     * @return the test, or null if the literals are too short to narrow it down
+     */
+    synchronized Predicate<ImfsBlob> candidates(List<byte[]> literals) {
+        var wanted = new TreeSet<Integer>();
+        for (var literal : literals) {
+            for (int i = 0; i + 2 < literal.length; i++) {
+                wanted.add(trigram(literal, i));
+            }
+        }
+        if (wanted.isEmpty()) {
+            return null;
+        }
+        int limit = nextId;
+        var lists = new Postings[wanted.size()];
+        int n = 0;
+        for (int trigram : wanted) {
+            var list = postings.get(trigram);
+            if (list == null) {
+                lists = null;
+                break;
+            }
+            lists[n++] = list;
+        }
+        var matched = new BitSet();
+        if (lists != null) {
+            // smallest first, the others are only probed for its ids
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            var ids = Arrays.copyOf(lists[0].ids, lists[0].size);
+            int count = ids.length;
+            for (int i = 1; i < lists.length && count > 0; i++) {
+                count = intersect(ids, count, lists[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                matched.set(ids[i]);
+            }
+        }
+        return blob -> {
+            var slot = blob.indexSlot();
+            return slot == null || slot.index != this || slot.id >= limit || matched.get(slot.id);
+        };
+    }
+
+    // keeps the first count ids that are also in list, both sorted
+    private static int intersect(int[] ids, int count, Postings list) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            while (j < list.size && list.ids[j] < id) {
+                j++;
+            }
+            if (j == list.size) {
+                break;
+            }
+            if (list.ids[j] == id) {
+                ids[kept++] = id;
+            }
+        }
+        return kept;
+    }
+
+    synchronized int indexedBlobs() {
+        return live.cardinality();
+    }
+
+    // blobs left out for the budget or their size
+    synchronized long skippedBlobs() {
+        return skipped;
+    }
+
+    synchronized long estimatedBytes() {
+        return (long) postings.size() * BYTES_PER_TRIGRAM + postingCount * BYTES_PER_POSTING
+                + (long) nextId * BYTES_PER_BLOB;
+    }
+
+    // the distinct trigrams of the contents, sorted
+    private static int[] trigrams(ImfsBlob blob) {
+        var bytes = blob.toByteArray();
+        if (bytes.length < 3) {
+            return new int[0];
+        }
+        var result = new int[bytes.length - 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = trigram(bytes, i);
+        }
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (i == 0 || result[i] != result[i - 1]) {
+                result[distinct++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    private static int trigram(byte[] bytes, int at) {
+        return (bytes[at] & 0xff) << 16 | (bytes[at + 1] & 0xff) << 8 | bytes[at + 2] & 0xff;
+    }
+
+    /**
+     * Where a blob is indexed. Published as one object, so a blob moving to
+     * a rebuilt index is never seen with the id of one and the other index.
+     */
+    static final class Slot {
+        final ImfsTrigramIndex index;
+        final int id;
+
+        Slot(ImfsTrigramIndex index, int id) {
+            this.index = index;
+            this.id = id;
+        }
+    }
+
+    // the ids of the blobs that contain one trigram, increasing
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.imfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only access to the contents of a file without copying them, see
+ * ImfsFileSystem.readView. The buffers alias the blocks of the file as it
+ * was when the view was opened: later writes publish new blocks and never
+ * show through. The view keeps the blocks alive, the buffers must not be
+ * used after it is closed: they may hold another file's bytes by then. They
+ * never point at freed memory though, the allocator leaves the arenas of
+ * exported blocks to the GC, see ImfsDirectAllocator.
+ */
+public final class ImfsView implements AutoCloseable {
+    private final ImfsBlob blob;
+    private boolean closed = false;
+
+    // takes over the caller's reference to blob
+    ImfsView(ImfsBlob blob) {
+        this.blob = blob;
+        blob.exported();
+    }
+
+    public long size() {
+        return blob.size();
+    }
+
+    /**
+     * The contents as read-only buffers of at most ImfsBlob.BLOCK_SIZE bytes
+     * each, in order. Every call returns new buffers, positions are not
+     * shared between callers.
+     */
+    public List<ByteBuffer> buffers() {
+        ensureOpen();
+        return Arrays.asList(blob.buffers());
+    }
+
+    /**
+     * The bytes from position to the end of their block, at most max bytes.
+     *
+     * @return a read-only buffer, or null at or past the end of the file
+     */
+    public ByteBuffer buffer(long position, long max) {
+        ensureOpen();
+        return blob.view(position, max);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            blob.release();
+        }
+    }
+
+    private synchronized void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("view already closed");
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.imfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ImfsBlobTest {
+    private static final int BLOCK = ImfsBlob.BLOCK_SIZE;
+
+    private static byte[] randomBytes(int size) {
+        var bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testSmallBlobStaysSmall() {
+        var blob = ImfsBlob.of(new byte[] { 1, 2, 3 }, ImfsBlockAllocator.heap());
+        assertEquals(3, blob.size());
+        assertEquals(1, blob.blockCount());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, blob.toByteArray());
+    }
+
+    @Test
+    public void testWritesSpanBlocks() {
+        var bytes = randomBytes(3 * BLOCK + 17);
+        var writer = new ImfsBlobWriter(ImfsBlockAllocator.heap());
+        // odd sized chunks so writes straddle block boundaries
+        for (int offset = 0; offset < bytes.length; offset += 1000) {
+            writer.write(ByteBuffer.wrap(bytes, offset, Math.min(1000, bytes.length - offset)));
+        }
+        var blob = writer.toBlob();
+        assertEquals(bytes.length, blob.size());
+        assertEquals(4, blob.blockCount());
+        assertArrayEquals(bytes, blob.toByteArray());
+    }
+
+    @Test
+    public void testReadAtAnyPosition() {
+        var bytes = randomBytes(2 * BLOCK + 5);
+        var blob = ImfsBlob.of(bytes, ImfsBlockAllocator.heap());
+        var dst = ByteBuffer.allocate(10);
+        assertEquals(10, blob.read(BLOCK - 5, dst));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(bytes[BLOCK - 5 + i], dst.get(i));
+        }
+        dst.clear();
+        assertEquals(5, blob.read(2 * BLOCK, dst));
+        assertEquals(-1, blob.read(2 * BLOCK + 5, dst.clear()));
+    }
+
+    @Test
+    public void testTruncateSharesBlocks() {
+        var bytes = randomBytes(2 * BLOCK + 5);
+        var blob = ImfsBlob.of(bytes, ImfsBlockAllocator.heap());
+        var shorter = blob.truncate(BLOCK + 1);
+        assertEquals(BLOCK + 1, shorter.size());
+        assertEquals(2, shorter.blockCount());
+        var dst = ByteBuffer.allocate(BLOCK + 1);
+        shorter.read(0, dst);
+        assertArrayEquals(Arrays.copyOf(bytes, BLOCK + 1), dst.array());
+        assertEquals(2 * BLOCK + 5, blob.size());
+    }
+
+    @Test
+    public void testWriterTruncate() {
+        var writer = new ImfsBlobWriter(ImfsBlockAllocator.heap());
+        writer.write(ByteBuffer.wrap(randomBytes(BLOCK + 10)));
+        writer.truncate(4);
+        writer.write(ByteBuffer.wrap(new byte[] { 9 }));
+        var blob = writer.toBlob();
+        assertEquals(5, blob.size());
+        assertEquals(9, blob.toByteArray()[4]);
+    }
+
+    @Test
+    public void testPatchCopiesOnlyWrittenBlocks() {
+        var allocator = ImfsBlockAllocator.heap();
+        var bytes = randomBytes(4 * BLOCK);
+        var blob = ImfsBlob.of(bytes, allocator);
+        long before = allocator.allocatedBytes();
+
+        var writer = new ImfsBlobWriter(allocator, blob);
+        writer.write(BLOCK + 10, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        var patched = writer.toBlob();
+        assertEquals(before + BLOCK, allocator.allocatedBytes());
+        assertEquals(bytes.length, patched.size());
+        var expected = bytes.clone();
+        expected[BLOCK + 10] = 1;
+        expected[BLOCK + 11] = 2;
+        expected[BLOCK + 12] = 3;
+        assertArrayEquals(expected, patched.toByteArray());
+        assertArrayEquals(bytes, blob.toByteArray());
+
+        // the shared blocks outlive the first blob
+        blob.release();
+        assertEquals(4 * BLOCK, allocator.allocatedBytes());
+        assertArrayEquals(expected, patched.toByteArray());
+        patched.release();
+        assertEquals(0, allocator.allocatedBytes());
+    }
+
+    @Test
+    public void testWritePastTheEndFillsZeros() {
+        var writer = new ImfsBlobWriter(ImfsBlockAllocator.heap());
+        writer.write(ByteBuffer.wrap(new byte[] { 7, 7 }));
+        writer.truncate(1);
+        writer.write(BLOCK + 1, ByteBuffer.wrap(new byte[] { 9 }));
+        var bytes = writer.toBlob().toByteArray();
+        assertEquals(BLOCK + 2, bytes.length);
+        assertEquals(7, bytes[0]);
+        for (int i = 1; i <= BLOCK; i++) {
+            assertEquals(0, bytes[i]);
+        }
+        assertEquals(9, bytes[BLOCK + 1]);
+    }
+
+    @Test
+    public void testSkippedBlocksAreHoles() {
+        var allocator = ImfsBlockAllocator.heap();
+        var writer = new ImfsBlobWriter(allocator);
+        writer.write(ByteBuffer.wrap(new byte[] { 1 }));
+        writer.write(100L * BLOCK + 5, ByteBuffer.wrap(new byte[] { 2 }));
+        var blob = writer.toBlob();
+        assertEquals(100L * BLOCK + 6, blob.size());
+        // the first block and the last one, compacted, the 99 in between are holes
+        assertEquals(BLOCK + 6, blob.allocatedBytes());
+        assertEquals(blob.allocatedBytes(), allocator.allocatedBytes());
+        var dst = ByteBuffer.allocate(10);
+        blob.read(50L * BLOCK - 5, dst);
+        assertArrayEquals(new byte[10], dst.array());
+
+        // writing into a hole fills that block only
+        var patch = new ImfsBlobWriter(allocator, blob);
+        patch.write(7L * BLOCK + 3, ByteBuffer.wrap(new byte[] { 3 }));
+        var patched = patch.toBlob();
+        assertEquals(2 * BLOCK + 6, patched.allocatedBytes());
+        assertEquals(3, patched.toByteArray()[7 * BLOCK + 3]);
+        assertEquals(0, patched.toByteArray()[7 * BLOCK + 4]);
+        assertEquals(2, patched.toByteArray()[100 * BLOCK + 5]);
+        blob.release();
+        patched.release();
+        assertEquals(0, allocator.allocatedBytes());
+    }
+
+    @Test
+    public void testAppendsShareTheBlockTable() {
+        var allocator = ImfsBlockAllocator.heap();
+        var blob = ImfsBlob.of(randomBytes(BLOCK), allocator);
+        var versions = new ArrayList<ImfsBlob>();
+        versions.add(blob);
+        for (int i = 0; i < 2 * BLOCK / 100; i++) {
+            var next = versions.get(versions.size() - 1).append(ByteBuffer.wrap(new byte[100]), allocator);
+            versions.add(next);
+        }
+        // every append went in place, two new blocks for all of them
+        assertEquals(3 * BLOCK, allocator.allocatedBytes());
+        assertEquals(BLOCK + 100, versions.get(1).size());
+        assertEquals(BLOCK, blob.size());
+
+        // an older version forks instead of writing over the newer ones
+        var fork = versions.get(1).append(ByteBuffer.wrap(new byte[] { 42 }), allocator);
+        assertEquals(BLOCK + 101, fork.size());
+        assertEquals(42, fork.toByteArray()[BLOCK + 100]);
+        assertEquals(0, versions.get(2).toByteArray()[BLOCK + 100]);
+
+        fork.release();
+        versions.forEach(ImfsBlob::release);
+        assertEquals(0, allocator.allocatedBytes());
+    }
+
+    @Test
+    public void testAppendChannel() throws IOException {
+        var file = Paths.get(URI.create("imfs://ImfsBlobTest/append.log"));
+        Files.write(file, new byte[] { 1 });
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.APPEND)) {
+            assertEquals(1, channel.position());
+            channel.position(0).write(ByteBuffer.wrap(new byte[] { 2, 3 }));
+            assertEquals(3, channel.position());
+            // appends show up right away, not on close
+            assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(file));
+        }
+        Files.write(file, new byte[] { 4 }, StandardOpenOption.APPEND);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, Files.readAllBytes(file));
+        assertThrows(IllegalArgumentException.class,
+                () -> Files.newByteChannel(file, StandardOpenOption.APPEND, StandardOpenOption.READ));
+        assertThrows(IllegalArgumentException.class,
+                () -> Files.newByteChannel(file, StandardOpenOption.APPEND, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    @Test
+    public void testReadWriteChannel() throws IOException {
+        var file = Paths.get(URI.create("imfs://ImfsBlobTest/patched.bin"));
+        var bytes = randomBytes(3 * BLOCK);
+        Files.write(file, bytes);
+        try (var reader = Files.newByteChannel(file);
+                var channel = Files.newByteChannel(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.position(2 * BLOCK - 1).write(ByteBuffer.wrap(new byte[] { 5, 6 }));
+            assertEquals(2 * BLOCK + 1, channel.position());
+            var dst = ByteBuffer.allocate(4);
+            channel.position(2 * BLOCK - 2).read(dst);
+            assertArrayEquals(new byte[] { bytes[2 * BLOCK - 2], 5, 6, bytes[2 * BLOCK + 1] }, dst.array());
+            channel.truncate(2 * BLOCK);
+            assertEquals(2 * BLOCK, channel.size());
+            assertEquals(2 * BLOCK, channel.position());
+            // readers keep what they opened until the writer closes
+            assertEquals(3 * BLOCK, reader.size());
+        }
+        assertEquals(2 * BLOCK, Files.size(file));
+        var expected = Arrays.copyOf(bytes, 2 * BLOCK);
+        expected[2 * BLOCK - 1] = 5;
+        assertArrayEquals(expected, Files.readAllBytes(file));
+        assertThrows(NoSuchFileException.class,
+                () -> Files.newByteChannel(Paths.get(URI.create("imfs://ImfsBlobTest/missing.bin")),
+                        StandardOpenOption.WRITE));
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            assertThrows(NonReadableChannelException.class, () -> channel.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    public void testPatchInflatesOnlyTheBlocksItTouches() {
+        var bytes = new byte[3 * BLOCK + 100];
+        Arrays.fill(bytes, (byte) 'a');
+        var allocator = ImfsBlockAllocator.heap();
+        var plain = ImfsBlob.of(bytes, allocator);
+        var compressor = new ImfsCompressor();
+        var blob = compressor.compress(plain);
+        plain.release();
+        long deflated = compressor.inflateNanos();
+
+        var writer = new ImfsBlobWriter(allocator, blob);
+        // opening the patch leaves the blocks deflated
+        assertEquals(deflated, compressor.inflateNanos());
+        writer.write(BLOCK + 1, ByteBuffer.wrap(new byte[] { '!' }));
+        var dst = ByteBuffer.allocate(2);
+        writer.read(BLOCK, dst);
+        assertArrayEquals(new byte[] { 'a', '!' }, dst.array());
+        var patched = writer.toBlob();
+        blob.release();
+        bytes[BLOCK + 1] = '!';
+        assertArrayEquals(bytes, patched.toByteArray());
+    }
+
+    @Test
+    public void testLargeFileRoundTrip() throws IOException {
+        var file = Paths.get(URI.create("imfs://ImfsBlobTest/large.bin"));
+        var bytes = randomBytes(5 * BLOCK / 2);
+        Files.write(file, bytes, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        assertEquals(bytes.length, Files.size(file));
+        assertArrayEquals(bytes, Files.readAllBytes(file));
+        try (var channel = Files.newByteChannel(file)) {
+            channel.position(BLOCK + 3);
+            var dst = ByteBuffer.allocate(4);
+            channel.read(dst);
+            assertEquals(bytes[BLOCK + 3], dst.get(0));
+            assertEquals(BLOCK + 7, channel.position());
+        }
+    }
+}
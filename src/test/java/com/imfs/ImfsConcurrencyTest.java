@@ -0,0 +1,337 @@
+package com.imfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Stress tests for concurrent mutations, they check the storage invariants
+// rather than exact interleavings.
+public class ImfsConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 500;
+
+    private ImfsFileSystem fileSystem;
+    private Path root;
+    private ExecutorService pool;
+
+    @Before
+    public void setup() {
+        root = Paths.get(URI.create("imfs://ImfsConcurrencyTest/"));
+        fileSystem = (ImfsFileSystem) root.getFileSystem();
+        fileSystem.reset();
+        pool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void teardown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testWriteAndListSameDir() throws Exception {
+        var shared = Files.createDirectory(root.resolve("shared"));
+        runAll(thread -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                Files.write(shared.resolve("t" + thread + "-" + i), new byte[] { (byte) i });
+                if (i % 50 == 0) {
+                    try (var kids = Files.list(shared)) {
+                        // weakly consistent, but never a name without a record
+                        kids.forEach(kid -> assertTrue(Files.isRegularFile(kid)));
+                    }
+                }
+            }
+            return null;
+        });
+        try (var kids = Files.list(shared)) {
+            assertEquals(THREADS * ROUNDS, kids.count());
+        }
+        assertConsistent();
+    }
+
+    @Test
+    public void testDeleteRacesWithCreate() throws Exception {
+        runAll(thread -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                var dir = root.resolve("race" + (i % 4));
+                if (thread % 2 == 0) {
+                    try {
+                        Files.delete(dir);
+                    } catch (NoSuchFileException | DirectoryNotEmptyException ex) {
+                        // lost the race, fine
+                    }
+                    try {
+                        Files.createDirectory(dir);
+                    } catch (FileAlreadyExistsException ex) {
+                        // lost the race, fine
+                    }
+                } else {
+                    try {
+                        Files.createDirectory(dir.resolve("kid" + thread));
+                        Files.delete(dir.resolve("kid" + thread));
+                    } catch (NoSuchFileException | FileAlreadyExistsException ex) {
+                        // the parent went away, fine
+                    }
+                }
+            }
+            return null;
+        });
+        assertConsistent();
+    }
+
+    @Test
+    public void testMoveSameSourceOnce() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            Files.write(root.resolve("src" + i), new byte[] { 1 });
+        }
+        var moved = new AtomicInteger();
+        runAll(thread -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                try {
+                    Files.move(root.resolve("src" + i), root.resolve("dst" + i + "-" + thread));
+                    moved.incrementAndGet();
+                } catch (NoSuchFileException ex) {
+                    // another thread moved it first
+                }
+            }
+            return null;
+        });
+        assertEquals(ROUNDS, moved.get());
+        try (var kids = Files.list(root)) {
+            // the 3 test dirs plus exactly one copy of each moved file
+            assertEquals(3 + ROUNDS, kids.count());
+        }
+        assertConsistent();
+    }
+
+    @Test
+    public void testWritesRaceWithDirectoryMoves() throws Exception {
+        Files.createDirectory(root.resolve("left"));
+        Files.createDirectory(root.resolve("left/deep"));
+        var written = new AtomicInteger();
+        runAll(thread -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                if (thread == 0) {
+                    try {
+                        Files.move(root.resolve("left"), root.resolve("right"));
+                    } catch (NoSuchFileException ex) {
+                        Files.move(root.resolve("right"), root.resolve("left"));
+                    }
+                    continue;
+                }
+                // wherever the tree is, the file lands inside it or not at all
+                var side = i % 2 == 0 ? "left" : "right";
+                try {
+                    Files.write(root.resolve(side + "/deep/t" + thread + "-" + i), new byte[] { 1 });
+                    written.incrementAndGet();
+                } catch (NoSuchFileException ex) {
+                    // the tree was on the other side, fine
+                }
+            }
+            return null;
+        });
+        var side = Files.exists(root.resolve("left")) ? "left" : "right";
+        try (var kids = Files.list(root.resolve(side + "/deep"))) {
+            // a write whose tree moved before close leaves its file empty
+            assertEquals(written.get(), kids.filter(kid -> size(kid) == 1).count());
+        }
+        assertConsistent();
+    }
+
+    @Test
+    public void testWritesIntoSharedCopies() throws Exception {
+        var template = Files.createDirectory(root.resolve("template"));
+        Files.createDirectory(template.resolve("deep"));
+        Files.write(template.resolve("deep/base"), new byte[] { 1 });
+        for (int t = 0; t < THREADS; t++) {
+            Files.copy(template, root.resolve("copy" + t), ImfsCopyOption.RECURSIVE);
+        }
+        runAll(thread -> {
+            // every thread unshares the same template nodes for its own copy
+            var deep = root.resolve("copy" + thread + "/deep");
+            for (int i = 0; i < ROUNDS / 10; i++) {
+                Files.write(deep.resolve("t" + i), new byte[] { (byte) thread });
+            }
+            return null;
+        });
+        try (var kids = Files.list(template.resolve("deep"))) {
+            assertEquals(1, kids.count());
+        }
+        for (int t = 0; t < THREADS; t++) {
+            try (var kids = Files.list(root.resolve("copy" + t + "/deep"))) {
+                assertEquals(1 + ROUNDS / 10, kids.count());
+            }
+            assertEquals(t, Files.readAllBytes(root.resolve("copy" + t + "/deep/t0"))[0]);
+        }
+        assertConsistent();
+    }
+
+    @Test
+    public void testSnapshotsWhileWriting() throws Exception {
+        long initial = fileSystem.stats().getRecords();
+        for (int t = 0; t < THREADS; t++) {
+            Files.createDirectory(root.resolve("t" + t));
+        }
+        var writing = new AtomicInteger(THREADS - 1);
+        runAll(thread -> {
+            if (thread > 0) {
+                for (int i = 0; i < ROUNDS; i++) {
+                    Files.write(root.resolve("t" + thread + "/f" + i), new byte[] { 1 });
+                }
+                writing.decrementAndGet();
+                return null;
+            }
+            long last = 0;
+            while (writing.get() > 0) {
+                var snapshot = fileSystem.openSnapshot("ImfsConcurrencyTest-snap");
+                try {
+                    // the view does not move while the writers go on
+                    long before = snapshot.stats().getRecords();
+                    ImfsFileSystem.releaseRecords(snapshot.retainRecords());
+                    assertEquals(before, snapshot.stats().getRecords());
+                    assertTrue(before >= last);
+                    last = before;
+                } finally {
+                    snapshot.close();
+                }
+            }
+            return null;
+        });
+        assertEquals(initial + THREADS + (THREADS - 1) * ROUNDS, fileSystem.stats().getRecords());
+        assertConsistent();
+    }
+
+    @Test
+    public void testReadersSeeWholeBatches() throws Exception {
+        int batchSize = 10;
+        var writing = new AtomicInteger(THREADS - 1);
+        runAll(thread -> {
+            if (thread > 0) {
+                for (int i = 0; i < ROUNDS / 10; i++) {
+                    var batch = new HashMap<String, byte[]>();
+                    for (int j = 0; j < batchSize; j++) {
+                        batch.put("batch-" + thread + "-" + i + "/f" + j, new byte[] { (byte) j });
+                    }
+                    fileSystem.putAll(batch);
+                }
+                writing.decrementAndGet();
+                return null;
+            }
+            while (writing.get() > 0) {
+                List<Path> dirs;
+                try (var kids = Files.list(root)) {
+                    dirs = kids.filter(kid -> kid.toString().contains("batch-")).collect(Collectors.toList());
+                }
+                for (var dir : dirs) {
+                    // the directory comes with all of its files or not at all
+                    try (var files = Files.list(dir)) {
+                        assertEquals(batchSize, files.count());
+                    }
+                }
+            }
+            return null;
+        });
+        var records = fileSystem.retainRecords();
+        assertEquals((THREADS - 1) * ROUNDS / 10 * (batchSize + 1),
+                records.stream().filter(record -> record.getMaterializedPath().startsWith("batch-")).count());
+        ImfsFileSystem.releaseRecords(records);
+        assertConsistent();
+    }
+
+    @Test
+    public void testConcurrentAppendsDoNotInterleave() throws Exception {
+        var log = root.resolve("app.log");
+        Files.createFile(log);
+        int recordSize = 300;
+        runAll(thread -> {
+            var record = new byte[recordSize];
+            Arrays.fill(record, (byte) thread);
+            try (var channel = Files.newByteChannel(log, StandardOpenOption.APPEND)) {
+                for (int i = 0; i < ROUNDS; i++) {
+                    channel.write(ByteBuffer.wrap(record));
+                }
+            }
+            return null;
+        });
+        var bytes = Files.readAllBytes(log);
+        assertEquals(THREADS * ROUNDS * recordSize, bytes.length);
+        var counts = new int[THREADS];
+        for (int offset = 0; offset < bytes.length; offset += recordSize) {
+            for (int i = 1; i < recordSize; i++) {
+                assertEquals(bytes[offset], bytes[offset + i]);
+            }
+            counts[bytes[offset]]++;
+        }
+        for (int count : counts) {
+            assertEquals(ROUNDS, count);
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private interface Body {
+        Void run(int thread) throws IOException;
+    }
+
+    private void runAll(Body body) throws Exception {
+        List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(pool.submit((Callable<Void>) () -> body.run(thread)));
+        }
+        for (var result : results) {
+            result.get();
+        }
+    }
+
+    // every listed kid resolves by its path to a node of the same kind,
+    // files have no kids, and stats count exactly the listed entries
+    private void assertConsistent() {
+        assertEquals(fileSystem.stats().getRecords(), countTree("", fileSystem.root));
+    }
+
+    private long countTree(String parent, ImfsNode node) {
+        assertTrue("a file with kids: " + parent, node.isDirectory());
+        long count = 0;
+        for (var entry : node.children().entrySet()) {
+            var kid = parent.isEmpty() ? entry.getKey() : parent + "/" + entry.getKey();
+            var record = fileSystem.getRecord(kid);
+            assertTrue("listed but not found: " + kid, record != null);
+            assertEquals(kid, entry.getValue().isDirectory(), record.isDirectory());
+            count++;
+            if (entry.getValue().isDirectory()) {
+                count += countTree(kid, entry.getValue());
+            }
+        }
+        return count;
+    }
+}
@@ -8,11 +8,16 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -156,6 +161,29 @@ public class ImfsContextTest {
         assertArrayEquals(new byte[] { 'h', 'e', 'l', 'l', 'o', '\n', 'w', 'o', 'r', 'l', 'd', '\n' }, blob);
     }
 
+    @Test
+    public void testWriteAll() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/").cd("math");
+        var stats = context.writeAll(Map.of(
+                "algebra/groups/notes.txt", "abelian".getBytes(),
+                "algebra/rings.txt", "ideals".getBytes(),
+                "calculus.txt", "limits".getBytes()));
+        assertEquals(3, stats.getFiles());
+        assertEquals(2, stats.getDirectories());
+        assertEquals(List.of("notes.txt"), context.cd("algebra/groups").ls());
+        assertEquals(List.of("ideals"), context.readLines("algebra/rings.txt"));
+        assertEquals(List.of("limits"), context.readLines("calculus.txt"));
+
+        // one bad path and nothing is written
+        assertThrows(FileSystemException.class, () -> context.writeAll(Map.of(
+                "geometry/points.txt", "0,0".getBytes(),
+                "calculus.txt/derivatives.txt", "d/dx".getBytes())));
+        assertFalse(Files.exists(context.getPath().resolve("geometry")));
+        assertThrows(FileSystemException.class, () -> context.writeAll(Map.of(
+                "algebra", "not a directory".getBytes())));
+        assertEquals(List.of("limits"), context.readLines("calculus.txt"));
+    }
+
     @Test
     public void testReadLines() throws IOException {
         var context = new ImfsContext("imfs://ImfsContextTest/");
@@ -187,6 +215,23 @@ public class ImfsContextTest {
         assertEquals(true, Files.isDirectory(fun));
     }
 
+    @Test
+    public void testMoveDirTakesSubtree() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/");
+        var algebra = context.cd("math").mkdir("algebra");
+        algebra.write("groups.txt", new String[] { "abelian" });
+        algebra.mkdir("rings").mkfile("empty.txt");
+
+        context.mv("math", "history/arithmetics");
+
+        assertArrayEquals(new String[] { "Spanish", "history" }, context.ls().toArray());
+        var moved = context.cd("history").cd("arithmetics").cd("algebra");
+        assertArrayEquals(new String[] { "groups.txt", "rings" }, moved.ls().toArray());
+        assertArrayEquals(new String[] { "abelian" }, moved.readLines("groups.txt").toArray());
+        assertArrayEquals(new String[] { "empty.txt" }, moved.cd("rings").ls().toArray());
+        assertThrows(FileSystemException.class, () -> context.mv("history", "history/arithmetics/history"));
+    }
+
     @Test
     public void testMoveFile() throws IOException {
         var context = new ImfsContext("imfs://ImfsContextTest/");
@@ -222,6 +267,41 @@ public class ImfsContextTest {
         assertEquals(true, Files.isDirectory(fun));
     }
 
+    @Test
+    public void testCpdirsSharesUntilWritten() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/");
+        var fs = (ImfsFileSystem) context.getPath().getFileSystem();
+        var algebra = context.cd("math").mkdir("algebra");
+        algebra.write("groups.txt", new String[] { "abelian" });
+        algebra.mkdir("rings").write("ideals.txt", new String[] { "prime" });
+        long stored = fs.stats().getStoredBytes();
+
+        context.cpdirs("math", "copy");
+
+        assertEquals(2 * fs.stats().getStoredBytes(), fs.stats().getLogicalBytes());
+        assertEquals(stored, fs.stats().getStoredBytes());
+        var copy = context.cd("copy").cd("algebra");
+        assertArrayEquals(new String[] { "groups.txt", "rings" }, copy.ls().toArray());
+        assertArrayEquals(new String[] { "prime" }, copy.cd("rings").readLines("ideals.txt").toArray());
+
+        // writes on either side stay on that side
+        copy.cd("rings").rmdir("ideals.txt");
+        copy.cd("rings").write("fields.txt", new String[] { "finite" });
+        algebra.mkdir("lattices");
+        Files.write(algebra.getPath().resolve("groups.txt"), List.of("cyclic"));
+        assertArrayEquals(new String[] { "groups.txt", "lattices", "rings" }, algebra.ls().toArray());
+        assertArrayEquals(new String[] { "ideals.txt" }, algebra.cd("rings").ls().toArray());
+        assertArrayEquals(new String[] { "cyclic" }, algebra.readLines("groups.txt").toArray());
+        assertArrayEquals(new String[] { "groups.txt", "rings" }, copy.ls().toArray());
+        assertArrayEquals(new String[] { "fields.txt" }, copy.cd("rings").ls().toArray());
+        assertArrayEquals(new String[] { "abelian" }, copy.readLines("groups.txt").toArray());
+
+        // dropping the source leaves the copy whole
+        context.rmdirs("math");
+        assertArrayEquals(new String[] { "abelian" }, copy.readLines("groups.txt").toArray());
+        assertThrows(FileSystemException.class, () -> context.cpdirs("copy", "copy/algebra/copy"));
+    }
+
     @Test
     public void testCopyFile() throws IOException {
         var context = new ImfsContext("imfs://ImfsContextTest/");
@@ -326,7 +406,11 @@ public class ImfsContextTest {
             var matched = pattern.matcher(pathString).matches();
             return matched;
         }).map(path -> path.toUri().getPath()).collect(Collectors.toList());
-        assertArrayEquals(new String[] { "/src/test/java/com/imfs/ImfsContextTest.java",
+        assertArrayEquals(new String[] { "/src/test/java/com/imfs/ImfsBlobTest.java",
+                "/src/test/java/com/imfs/ImfsConcurrencyTest.java",
+                "/src/test/java/com/imfs/ImfsContextTest.java",
+                "/src/test/java/com/imfs/ImfsFileSystemTest.java",
+                "/src/test/java/com/imfs/ImfsJournalTest.java",
                 "/src/test/java/com/imfs/ImfsProviderTest.java",
                 "/src/test/java/com/imfs/app/AppTest.java" }, tests.toArray());
 
@@ -379,6 +463,88 @@ public class ImfsContextTest {
         assertEquals(3, results.size());
     }
 
+    @Test
+    public void testGrepReportsPathsAndLineNumbers() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/");
+        // the last hit straddles a block boundary
+        var big = new StringBuilder();
+        while (big.length() < ImfsBlob.BLOCK_SIZE - 6) {
+            big.append("filler\n");
+        }
+        int fillerLines = big.toString().split("\n").length;
+        big.append("xxx theorem of Gauss\n");
+        context.cd("math").writeAll(Map.of(
+                "algebra/fields.txt", "field\r\ntheorem of Galois\r\n".getBytes(),
+                "algebra/rings.txt", "no match here\nth\u00e9or\u00e8me\ntheorem of Noether".getBytes(StandardCharsets.UTF_8),
+                "big.txt", big.toString().getBytes()));
+
+        var matches = context.grep("math", ".*theorem of \\w+", true);
+        assertEquals(List.of(
+                ImfsMatch.builder().materializedPath("math/algebra/fields.txt").lineNumber(2)
+                        .line("theorem of Galois").build(),
+                ImfsMatch.builder().materializedPath("math/algebra/rings.txt").lineNumber(3)
+                        .line("theorem of Noether").build(),
+                ImfsMatch.builder().materializedPath("math/big.txt").lineNumber(fillerLines + 1)
+                        .line("xxx theorem of Gauss").build()),
+                matches);
+        assertEquals(Set.copyOf(matches), Set.copyOf(context.grep("math", ".*theorem of \\w+", false)));
+        assertEquals(List.of("th\u00e9or\u00e8me"), context.grep("math/algebra", "th.or.me", true).stream()
+                .map(ImfsMatch::getLine).collect(Collectors.toList()));
+        assertEquals(List.of("theorem of Galois", "theorem of Noether", "xxx theorem of Gauss"),
+                context.grepTree("math", ".*theorem.*").collect(Collectors.toList()));
+        assertThrows(NoSuchFileException.class, () -> context.grep("geometry", "x", true));
+
+        assertEquals("theorem of ", ImfsGrep.requiredLiteral(Pattern.compile(".*theorem of \\w+")));
+        assertEquals("a.b", ImfsGrep.requiredLiteral(Pattern.compile("x?a\\.b+c*")));
+        assertEquals(null, ImfsGrep.requiredLiteral(Pattern.compile("alpha|beta")));
+        assertEquals("", ImfsGrep.requiredLiteral(Pattern.compile("(abc)[def]+")));
+    }
+
+    @Test
+    public void testGrepEscapesWithOperands() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/");
+        context.writeAll(Map.of("escapes/abc.txt", "ABC\n".getBytes()));
+        // the digits and names after the escape letter are not literal text
+        for (var regex : List.of("\\x41BC", "\\x{41}BC", "\\u0041BC", "\\0101BC", "A\\x42C", "\\p{Lu}BC",
+                "\\pLBC", "(A)\\1?BC", "\\N{LATIN CAPITAL LETTER A}BC")) {
+            assertEquals(regex, 1, context.grep("escapes", regex, true).size());
+        }
+        assertEquals("BC", ImfsGrep.requiredLiteral(Pattern.compile("\\x41BC")));
+        assertEquals("BC", ImfsGrep.requiredLiteral(Pattern.compile("\\u0041BC")));
+        assertEquals("BC", ImfsGrep.requiredLiteral(Pattern.compile("\\0101BC")));
+        assertEquals("BC", ImfsGrep.requiredLiteral(Pattern.compile("\\cABC")));
+        assertEquals("BC", ImfsGrep.requiredLiteral(Pattern.compile("(A)\\1BC")));
+        assertEquals("BC", ImfsGrep.requiredLiteral(Pattern.compile("\\p{Lu}BC")));
+    }
+
+    @Test
+    public void testFindByName() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/");
+        context.writeAll(Map.of(
+                "math/algebra/notes.txt", "groups".getBytes(),
+                "history/notes.txt", "rome".getBytes()));
+        assertEquals(List.of(URI.create("imfs://ImfsContextTest/history/notes.txt"),
+                URI.create("imfs://ImfsContextTest/math/algebra/notes.txt")), context.find("/", "notes.txt"));
+        assertEquals(List.of(URI.create("imfs://ImfsContextTest/math/algebra/notes.txt")),
+                context.find("math", "notes.txt"));
+        assertEquals(List.of(), context.find("Spanish", "notes.txt"));
+    }
+
+    @Test
+    public void testGlobIsRelativeToTheCurrentDirectory() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/");
+        context.writeAll(Map.of(
+                "math/algebra/notes.txt", "groups".getBytes(),
+                "math/algebra/sets.md", "sets".getBytes(),
+                "math/notes.txt", "proofs".getBytes(),
+                "history/notes.txt", "rome".getBytes()));
+        assertEquals(List.of(URI.create("imfs://ImfsContextTest/history/notes.txt"),
+                URI.create("imfs://ImfsContextTest/math/notes.txt")), context.glob("*/*.txt"));
+        assertEquals(List.of(URI.create("imfs://ImfsContextTest/math/algebra/notes.txt")),
+                context.cd("math").glob("**/*.txt"));
+        assertEquals(List.of(), context.cd("math").glob("*.md"));
+    }
+
     @Test
     public void testWalkSpeed() throws IOException {
         var context = new ImfsContext("imfs://ImfsContextTest/");
@@ -389,7 +555,27 @@ public class ImfsContextTest {
                 .filter(Files::isRegularFile)
                 .collect(Collectors.toList());
 
-        assertEquals(15, results.size());
+        // every regular file under the host's src was imported
+        assertEquals(Files.walk(Paths.get("src")).filter(Files::isRegularFile).count(), results.size());
+    }
+
+    @Test
+    public void testLsOnlyDirectKids() throws IOException {
+        var context = new ImfsContext("imfs://ImfsContextTest/");
+        var math = context.mkdir("math/algebra");
+        math.mkdir("linear");
+        math.write("notes.txt", new String[] { "x" });
+
+        assertDefaultKids(context.ls());
+        assertArrayEquals(new String[] { "algebra" }, context.cd("math").ls().toArray());
+        assertArrayEquals(new String[] { "linear", "notes.txt" }, math.ls().toArray());
+
+        Files.delete(math.getPath().resolve("notes.txt"));
+        assertArrayEquals(new String[] { "linear" }, math.ls().toArray());
+        assertThrows(DirectoryNotEmptyException.class, () -> context.rmdir("math/algebra"));
+        math.rmdir("linear");
+        context.rmdir("math/algebra");
+        assertEquals(0, context.cd("math").ls().size());
     }
 
     // Debug console from testWalkSpeed() while using Paths to do parenting
@@ -0,0 +1,560 @@
+package com.imfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Volume level behavior: options, storage backends and lifecycle.
+public class ImfsFileSystemTest {
+    private static final URI OFFHEAP = URI.create("imfs://ImfsFileSystemTest-offheap/");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private FileSystem fileSystem;
+
+    @After
+    public void teardown() throws IOException {
+        if (fileSystem != null) {
+            fileSystem.close();
+        }
+    }
+
+    private ImfsFileSystem newOffHeap() throws IOException {
+        fileSystem = FileSystems.newFileSystem(OFFHEAP, Map.of(
+                ImfsOptions.STORAGE, "offheap",
+                ImfsOptions.ARENA_SIZE, 1 << 20));
+        return (ImfsFileSystem) fileSystem;
+    }
+
+    private static byte[] randomBytes(int size) {
+        var bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testOffHeapRoundTrip() throws IOException {
+        var fs = newOffHeap();
+        assertEquals(ImfsOptions.Storage.OFFHEAP, fs.stats().getStorage());
+        var file = Paths.get(OFFHEAP.resolve("/big.bin"));
+        assertTrue(file.getFileSystem() == fs);
+        var bytes = randomBytes(3 * ImfsBlob.BLOCK_SIZE + 100);
+        Files.write(file, bytes);
+        assertArrayEquals(bytes, Files.readAllBytes(file));
+        assertTrue(fs.stats().getAllocatedBytes() >= bytes.length);
+    }
+
+    @Test
+    public void testDeleteReleasesBlocks() throws IOException {
+        var fs = newOffHeap();
+        var file = Paths.get(OFFHEAP.resolve("/a.bin"));
+        Files.write(file, randomBytes(100_000));
+        var copy = Paths.get(OFFHEAP.resolve("/b.bin"));
+        Files.copy(file, copy);
+        long allocated = fs.stats().getAllocatedBytes();
+        assertTrue(allocated > 0);
+
+        // the copy shares the blocks, so they stay until both are gone
+        Files.delete(file);
+        assertEquals(allocated, fs.stats().getAllocatedBytes());
+        Files.delete(copy);
+        assertEquals(0, fs.stats().getAllocatedBytes());
+    }
+
+    @Test
+    public void testOpenReaderKeepsBlocks() throws IOException {
+        var fs = newOffHeap();
+        var file = Paths.get(OFFHEAP.resolve("/a.bin"));
+        var bytes = randomBytes(70_000);
+        Files.write(file, bytes);
+        try (var channel = Files.newByteChannel(file)) {
+            Files.delete(file);
+            assertFalse(Files.exists(file));
+            assertTrue(fs.stats().getAllocatedBytes() > 0);
+            var dst = ByteBuffer.allocate(bytes.length);
+            while (dst.hasRemaining() && channel.read(dst) > 0) {
+                // keep reading
+            }
+            assertArrayEquals(bytes, dst.array());
+        }
+        assertEquals(0, fs.stats().getAllocatedBytes());
+    }
+
+    @Test
+    public void testReadViewAliasesTheBlocks() throws IOException {
+        var fs = newOffHeap();
+        var file = Paths.get(OFFHEAP.resolve("/a.bin"));
+        var bytes = randomBytes(ImfsBlob.BLOCK_SIZE + 1000);
+        Files.write(file, bytes);
+        long allocated = fs.stats().getAllocatedBytes();
+        try (var view = fs.readView("a.bin")) {
+            Files.write(file, new byte[] { 1 });
+            assertEquals(bytes.length, view.size());
+            var buffers = view.buffers();
+            assertEquals(2, buffers.size());
+            assertTrue(buffers.get(0).isReadOnly() && buffers.get(0).isDirect());
+            var copy = ByteBuffer.allocate(bytes.length);
+            buffers.forEach(copy::put);
+            assertArrayEquals(bytes, copy.array());
+            assertEquals(100, view.buffer(ImfsBlob.BLOCK_SIZE + 900, 200).remaining());
+            // the view keeps the old blocks, nothing was copied out of them
+            assertTrue(fs.stats().getAllocatedBytes() >= allocated);
+        }
+        Files.delete(file);
+        assertEquals(0, fs.stats().getAllocatedBytes());
+        assertEquals(null, fs.readView("a.bin"));
+    }
+
+    @Test
+    public void testViewBuffersSurviveClose() throws IOException {
+        var fs = newOffHeap();
+        var bytes = randomBytes(1000);
+        Files.write(Paths.get(OFFHEAP.resolve("/a.bin")), bytes);
+        List<ByteBuffer> buffers;
+        try (var view = fs.readView("a.bin")) {
+            buffers = view.buffers();
+        }
+        fs.close();
+        // misuse, but the arena is left to the GC instead of being freed under the buffer
+        var copy = new byte[bytes.length];
+        buffers.get(0).get(copy);
+        assertArrayEquals(bytes, copy);
+    }
+
+    private static byte[] text(int size) {
+        var text = new StringBuilder();
+        for (int i = 0; text.length() < size; i++) {
+            text.append("line ").append(i).append(" of a rarely read log\n");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testLargeFilesAreStoredCompressed() throws IOException {
+        var uri = URI.create("imfs://ImfsFileSystemTest-compress/");
+        fileSystem = FileSystems.newFileSystem(uri, Map.of(
+                ImfsOptions.STORAGE, "offheap",
+                ImfsOptions.COMPRESS_BYTES, 1000));
+        var fs = (ImfsFileSystem) fileSystem;
+        var file = Paths.get(uri.resolve("/log.txt"));
+        var bytes = text(3 * ImfsBlob.BLOCK_SIZE + 100);
+        Files.write(file, bytes);
+        Files.write(Paths.get(uri.resolve("/small.txt")), text(999));
+
+        var stats = fs.stats();
+        assertEquals(1, stats.getCompressedBlobs());
+        assertEquals(bytes.length, stats.getUncompressedBytes());
+        assertTrue(stats.getCompressionRatio() > 4);
+        assertTrue(stats.getDeflateNanos() > 0);
+        // only the small file is left in allocator blocks
+        assertTrue(fs.stats().getAllocatedBytes() < 2000);
+
+        assertArrayEquals(bytes, Files.readAllBytes(file));
+        try (var channel = Files.newByteChannel(file)) {
+            var dst = ByteBuffer.allocate(10);
+            channel.position(2 * ImfsBlob.BLOCK_SIZE - 5).read(dst);
+            assertArrayEquals(Arrays.copyOfRange(bytes, 2 * ImfsBlob.BLOCK_SIZE - 5, 2 * ImfsBlob.BLOCK_SIZE + 5),
+                    dst.array());
+        }
+        // a patch inflates the file and stores it compressed again
+        try (var channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { '!' }));
+        }
+        bytes[0] = '!';
+        assertArrayEquals(bytes, Files.readAllBytes(file));
+        assertEquals(1, fs.stats().getCompressedBlobs());
+        assertTrue(fs.stats().getInflateNanos() > 0);
+    }
+
+    @Test
+    public void testIdleFilesAreCompressed() throws IOException {
+        var uri = URI.create("imfs://ImfsFileSystemTest-idle/");
+        fileSystem = FileSystems.newFileSystem(uri, Map.of());
+        var fs = (ImfsFileSystem) fileSystem;
+        var log = Paths.get(uri.resolve("/log.txt"));
+        var bytes = text(100_000);
+        Files.write(log, bytes);
+        Files.write(Paths.get(uri.resolve("/random.bin")), randomBytes(100_000));
+
+        assertEquals(0, fs.compressIdle(Duration.ofMinutes(10)));
+        // random bytes don't deflate, they stay as they are
+        assertEquals(1, fs.compressIdle(Duration.ZERO));
+        assertEquals(1, fs.stats().getCompressedBlobs());
+        assertEquals(0, fs.compressIdle(Duration.ZERO));
+        assertArrayEquals(bytes, Files.readAllBytes(log));
+        try (var out = Files.newOutputStream(log, StandardOpenOption.APPEND)) {
+            out.write('.');
+        }
+        assertEquals(bytes.length + 1, Files.size(log));
+        assertEquals('.', Files.readAllBytes(log)[bytes.length]);
+    }
+
+    @Test
+    public void testTrigramIndexNarrowsGrep() throws Exception {
+        var uri = URI.create("imfs://ImfsFileSystemTest-trigrams/");
+        fileSystem = FileSystems.newFileSystem(uri, Map.of(ImfsOptions.TRIGRAM_INDEX_BYTES, 1 << 20));
+        var fs = (ImfsFileSystem) fileSystem;
+        Files.write(Paths.get(uri.resolve("/a.txt")), "alpha beta\n".getBytes());
+        Files.write(Paths.get(uri.resolve("/b.txt")), "gamma delta\n".getBytes());
+        Files.move(Paths.get(uri.resolve("/b.txt")), Paths.get(uri.resolve("/c.txt")));
+        fs.awaitIndexed();
+        assertEquals(2, fs.stats().getIndexedBlobs());
+
+        var a = fs.retainBlob("a.txt");
+        var c = fs.retainBlob("c.txt");
+        var index = a.indexedBy();
+        var gamma = index.candidates(List.of("gamma".getBytes()));
+        assertFalse(gamma.test(a));
+        assertTrue(gamma.test(c));
+        // too short for a trigram, every file is a candidate
+        assertEquals(null, index.candidates(List.of("ga".getBytes())));
+        a.release();
+        c.release();
+        assertEquals(List.of("c.txt"), fs.grep("", Pattern.compile(".*gamma.*"), true).stream()
+                .map(ImfsMatch::getMaterializedPath).collect(Collectors.toList()));
+
+        Files.delete(Paths.get(uri.resolve("/c.txt")));
+        assertEquals(1, fs.stats().getIndexedBlobs());
+        Files.write(Paths.get(uri.resolve("/a.txt")), "epsilon\n".getBytes());
+        // found before and after the new contents are indexed
+        assertEquals(1, fs.grep("", Pattern.compile("eps.*"), true).size());
+        fs.awaitIndexed();
+        assertEquals(1, fs.grep("", Pattern.compile("eps.*"), true).size());
+        assertEquals(0, fs.grep("", Pattern.compile(".*alpha.*"), true).size());
+
+        // past the budget files are left out, and always searched
+        var tiny = URI.create("imfs://ImfsFileSystemTest-tiny/");
+        try (var small = (ImfsFileSystem) FileSystems.newFileSystem(tiny, Map.of(ImfsOptions.TRIGRAM_INDEX_BYTES, 1000))) {
+            for (int i = 0; i < 10; i++) {
+                small.putBlob("file" + i + ".txt", ("zeta " + i + "\n").getBytes());
+            }
+            small.awaitIndexed();
+            assertTrue(small.stats().getIndexedBlobs() < 10);
+            assertEquals(10, small.grep("", Pattern.compile("zeta \\d"), false).size());
+        }
+    }
+
+    @Test
+    public void testAppendsAreNotIndexedOneByOne() throws Exception {
+        var uri = URI.create("imfs://ImfsFileSystemTest-appends/");
+        fileSystem = FileSystems.newFileSystem(uri, Map.of(ImfsOptions.TRIGRAM_INDEX_BYTES, 1 << 24));
+        var fs = (ImfsFileSystem) fileSystem;
+        var log = Paths.get(uri.resolve("/app.log"));
+        Files.write(log, randomBytes(1000));
+        fs.awaitIndexed();
+        long indexed = fs.stats().getIndexBytes();
+        for (int i = 0; i < 30; i++) {
+            Files.write(log, ("appended " + i + "\n").getBytes(), StandardOpenOption.APPEND);
+        }
+        // a candidate while it waits for the indexer, and found once indexed
+        assertEquals(1, fs.grep("", Pattern.compile("appended 29"), false).size());
+        fs.awaitIndexed();
+        assertEquals(1, fs.stats().getIndexedBlobs());
+        assertEquals(1, fs.grep("", Pattern.compile("appended 29"), false).size());
+        // each append indexed whole would add the postings of the file 30 times
+        assertTrue(fs.stats().getIndexBytes() - indexed < indexed / 2);
+    }
+
+    @Test
+    public void testNameIndexFindsEntriesByName() throws IOException {
+        var indexedUri = URI.create("imfs://ImfsFileSystemTest-names/");
+        fileSystem = FileSystems.newFileSystem(indexedUri, Map.of(ImfsOptions.NAME_INDEX, true));
+        var indexed = (ImfsFileSystem) fileSystem;
+        var walkedUri = URI.create("imfs://ImfsFileSystemTest-walked/");
+        try (var walked = (ImfsFileSystem) FileSystems.newFileSystem(walkedUri, Map.of())) {
+            for (var uri : List.of(indexedUri, walkedUri)) {
+                Files.createDirectory(Paths.get(uri.resolve("/a")));
+                Files.createDirectory(Paths.get(uri.resolve("/a/pom.xml")));
+                Files.createDirectory(Paths.get(uri.resolve("/a/pom.xml/src")));
+                Files.write(Paths.get(uri.resolve("/a/pom.xml/src/pom.xml")), new byte[] { 1 });
+                Files.write(Paths.get(uri.resolve("/pom.xml")), new byte[] { 2 });
+                Files.createDirectory(Paths.get(uri.resolve("/ab")));
+                Files.write(Paths.get(uri.resolve("/ab/pom.xml")), new byte[] { 3 });
+            }
+            var expected = List.of("a/pom.xml", "a/pom.xml/src/pom.xml", "ab/pom.xml", "pom.xml");
+            assertEquals(expected, walked.findByName("", "pom.xml"));
+            assertEquals(expected, indexed.findByName("", "pom.xml"));
+            // the subtree itself counts, its siblings with longer names don't
+            assertEquals(List.of("a/pom.xml", "a/pom.xml/src/pom.xml"), indexed.findByName("a", "pom.xml"));
+            assertEquals(List.of("a/pom.xml", "a/pom.xml/src/pom.xml"), indexed.findByName("a/pom.xml", "pom.xml"));
+            assertEquals(List.of(), indexed.findByName("a", "src/pom.xml"));
+
+            for (var uri : List.of(indexedUri, walkedUri)) {
+                Files.move(Paths.get(uri.resolve("/a")), Paths.get(uri.resolve("/b")));
+                Files.copy(Paths.get(uri.resolve("/b")), Paths.get(uri.resolve("/c")), ImfsCopyOption.RECURSIVE);
+                Files.delete(Paths.get(uri.resolve("/ab/pom.xml")));
+            }
+            walked.putAll(Map.of("d/e/pom.xml", new byte[0]));
+            indexed.putAll(Map.of("d/e/pom.xml", new byte[0]));
+            expected = List.of("b/pom.xml", "b/pom.xml/src/pom.xml", "c/pom.xml", "c/pom.xml/src/pom.xml",
+                    "d/e/pom.xml", "pom.xml");
+            assertEquals(expected, walked.findByName("", "pom.xml"));
+            assertEquals(expected, indexed.findByName("", "pom.xml"));
+            assertEquals(List.of("d/e"), indexed.findByName("d", "e"));
+
+            var snapshot = indexed.openSnapshot("ImfsFileSystemTest-names-snapshot");
+            indexed.removeEntry("pom.xml");
+            assertEquals(List.of("pom.xml"), snapshot.findByName("", "pom.xml").subList(5, 6));
+            indexed.rollback(snapshot);
+            assertEquals(expected, indexed.findByName("", "pom.xml"));
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testFindMatchingAgreesWithPathMatcher() throws IOException {
+        var indexedUri = URI.create("imfs://ImfsFileSystemTest-glob/");
+        fileSystem = FileSystems.newFileSystem(indexedUri, Map.of(ImfsOptions.NAME_INDEX, true));
+        var indexed = (ImfsFileSystem) fileSystem;
+        var walkedUri = URI.create("imfs://ImfsFileSystemTest-glob-walked/");
+        var files = Map.of(
+                "src/A.java", new byte[0],
+                "src/main/B.java", new byte[0],
+                "src/main/deep/C.java", new byte[0],
+                "src/main/deep/pom.xml", new byte[0],
+                "src/test/BTest.java", new byte[0],
+                "srcs/D.java", new byte[0],
+                "pom.xml", new byte[0],
+                "a{b}/c.txt", new byte[0]);
+        try (var walked = (ImfsFileSystem) FileSystems.newFileSystem(walkedUri, Map.of())) {
+            indexed.putAll(files);
+            walked.putAll(files);
+            assertEquals(List.of("src/main/B.java", "src/main/deep/C.java", "src/test/BTest.java"),
+                    walked.findMatching("glob:src/**/*.java"));
+            assertEquals(List.of("src/A.java", "srcs/D.java"), walked.findMatching("glob:src*/*.java"));
+            assertEquals(List.of("pom.xml", "src/main/deep/pom.xml"), indexed.findMatching("glob:**pom.xml"));
+            assertEquals(List.of("src/main/deep/pom.xml"), indexed.findMatching("glob:**/pom.xml"));
+            assertEquals(List.of("a{b}/c.txt"), walked.findMatching("glob:a\\{b\\}/*"));
+            assertEquals(List.of("src/main/B.java", "src/test/BTest.java"),
+                    walked.findMatching("regex:src/[a-z]+/B.*"));
+            assertEquals(List.of(), walked.findMatching("glob:missing/**"));
+
+            for (var pattern : List.of("glob:src/**/*.java", "glob:src*/*.java", "glob:**pom.xml",
+                    "glob:**/pom.xml", "glob:src/{main,test}/*", "glob:src/main/**", "glob:*/[!m]*",
+                    "glob:src/**/deep/?.java", "glob:{src/main,srcs}/*", "glob:src", "regex:src/[a-z]+/B.*",
+                    "regex:.*\\.xml", "regex:src/main/deep")) {
+                for (var volume : List.of(indexed, walked)) {
+                    var matcher = volume.getPathMatcher(pattern);
+                    var expected = Files.walk(Paths.get(volume == indexed ? indexedUri : walkedUri))
+                            .filter(matcher::matches)
+                            .map(path -> ((ImfsPath) path).getMaterializedPath())
+                            .sorted()
+                            .collect(Collectors.toList());
+                    assertEquals(pattern, expected, volume.findMatching(pattern));
+                }
+            }
+            assertThrows(IllegalArgumentException.class, () -> walked.getPathMatcher("*.java"));
+            assertThrows(UnsupportedOperationException.class, () -> walked.getPathMatcher("ant:*.java"));
+        }
+    }
+
+    @Test
+    public void testDedupStoresEqualContentsOnce() throws IOException {
+        fileSystem = FileSystems.newFileSystem(OFFHEAP, Map.of(
+                ImfsOptions.STORAGE, "offheap",
+                ImfsOptions.ARENA_SIZE, 1 << 20,
+                ImfsOptions.DEDUP, true));
+        var fs = (ImfsFileSystem) fileSystem;
+        var bytes = randomBytes(100_000);
+        Files.write(Paths.get(OFFHEAP.resolve("/a.bin")), bytes);
+        long allocated = fs.stats().getAllocatedBytes();
+        Files.write(Paths.get(OFFHEAP.resolve("/b.bin")), bytes);
+        Files.copy(Paths.get(OFFHEAP.resolve("/a.bin")), Paths.get(OFFHEAP.resolve("/c.bin")));
+        Files.write(Paths.get(OFFHEAP.resolve("/d.bin")), randomBytes(1000));
+
+        var stats = fs.stats();
+        assertEquals(allocated + 1024, stats.getAllocatedBytes());
+        assertEquals(2, stats.getDedupBlobs());
+        assertEquals(3 * 100_000 + 1000, stats.getLogicalBytes());
+        assertEquals(100_000 + 1000, stats.getStoredBytes());
+        assertArrayEquals(bytes, Files.readAllBytes(Paths.get(OFFHEAP.resolve("/b.bin"))));
+
+        // the shared blocks stay until the last file holding them is gone
+        Files.delete(Paths.get(OFFHEAP.resolve("/a.bin")));
+        Files.delete(Paths.get(OFFHEAP.resolve("/c.bin")));
+        assertEquals(allocated + 1024, fs.stats().getAllocatedBytes());
+        Files.delete(Paths.get(OFFHEAP.resolve("/b.bin")));
+        Files.delete(Paths.get(OFFHEAP.resolve("/d.bin")));
+        assertEquals(0, fs.stats().getAllocatedBytes());
+        assertEquals(0, fs.stats().getDedupBlobs());
+        assertEquals(1.0, fs.stats().getDedupRatio(), 0.0);
+    }
+
+    @Test
+    public void testFreedBlocksAreReused() throws IOException {
+        var allocator = new ImfsDirectAllocator(1 << 20);
+        var first = allocator.allocate(ImfsBlob.BLOCK_SIZE);
+        allocator.free(first);
+        assertEquals(0, allocator.allocatedBytes());
+        assertTrue(first == allocator.allocate(ImfsBlob.BLOCK_SIZE));
+        assertEquals(1 << 20, allocator.reservedBytes());
+        // small requests round up to a size class
+        assertEquals(512, allocator.allocate(300).capacity());
+    }
+
+    @Test
+    public void testCloseReleasesVolume() throws IOException {
+        var fs = newOffHeap();
+        Files.write(Paths.get(OFFHEAP.resolve("/a.bin")), randomBytes(1000));
+        fs.close();
+        assertFalse(fs.isOpen());
+        assertEquals(0, fs.stats().getAllocatedBytes());
+        // the next lookup gets a fresh default volume
+        var reopened = Paths.get(OFFHEAP).getFileSystem();
+        assertNotSame(fs, reopened);
+        assertEquals(ImfsOptions.Storage.HEAP, ((ImfsFileSystem) reopened).stats().getStorage());
+        fileSystem = reopened;
+    }
+
+    @Test
+    public void testNewFileSystemTwiceFails() throws IOException {
+        newOffHeap();
+        assertThrows(FileSystemAlreadyExistsException.class,
+                () -> FileSystems.newFileSystem(OFFHEAP, Map.of()));
+    }
+
+    @Test
+    public void testSnapshotAndRestore() throws IOException {
+        var context = new ImfsContext("imfs://ImfsFileSystemTest-image/");
+        var fs = (ImfsFileSystem) context.getPath().getFileSystem();
+        fs.reset();
+        var docs = context.mkdir("docs");
+        docs.write("a.txt", new String[] { "hello", "world" });
+        docs.mkfile("empty.txt");
+        var big = randomBytes(2 * ImfsBlob.BLOCK_SIZE + 3);
+        Files.write(docs.getPath().resolve("big.bin"), big);
+        var image = temp.getRoot().toPath().resolve("volume.imfs");
+
+        fs.snapshot(image);
+        context.rmdirs("docs");
+        context.mkdir("other");
+        fs.restore(image);
+
+        // "*Test" volumes start with the 3 test dirs, "other" is gone again
+        assertArrayEquals(new String[] { "Spanish", "docs", "history", "math" }, context.ls().toArray());
+        assertArrayEquals(new String[] { "a.txt", "big.bin", "empty.txt" }, docs.ls().toArray());
+        assertArrayEquals(new String[] { "hello", "world" }, docs.readLines("a.txt").toArray());
+        assertEquals(0, Files.size(docs.getPath().resolve("empty.txt")));
+        assertArrayEquals(big, Files.readAllBytes(docs.getPath().resolve("big.bin")));
+        try (var channel = FileChannel.open(docs.getPath().resolve("big.bin"))) {
+            // a slice of the image mapping
+            var mapped = channel.map(MapMode.READ_ONLY, ImfsBlob.BLOCK_SIZE + 1, 10);
+            assertTrue(mapped.isDirect());
+            assertEquals(big[ImfsBlob.BLOCK_SIZE + 5], mapped.get(4));
+            mapped.load();
+        }
+
+        // restored files are writable like any other
+        docs.write("b.txt", new String[] { "new" });
+        Files.delete(docs.getPath().resolve("big.bin"));
+        assertArrayEquals(new String[] { "a.txt", "b.txt", "empty.txt" }, docs.ls().toArray());
+        fs.close();
+    }
+
+    @Test
+    public void testSnapshotIsReadOnlyPointInTime() throws IOException {
+        var context = new ImfsContext("imfs://ImfsFileSystemTest-live/");
+        var fs = (ImfsFileSystem) context.getPath().getFileSystem();
+        fileSystem = fs;
+        var math = context.cd("math");
+        math.write("a.txt", new String[] { "before" });
+        math.mkdir("algebra").mkfile("groups.txt");
+
+        var snapshot = fs.openSnapshot("ImfsFileSystemTest-snap");
+        context.rmdirs("math/algebra");
+        Files.write(math.getPath().resolve("a.txt"), List.of("after"));
+        math.mkfile("b.txt");
+        context.mkdir("docs");
+
+        // the view is served by the provider under its own host
+        var view = new ImfsContext("imfs://ImfsFileSystemTest-snap/");
+        assertTrue(view.getPath().getFileSystem() == snapshot);
+        assertTrue(snapshot.isReadOnly());
+        assertArrayEquals(new String[] { "Spanish", "history", "math" }, view.ls().toArray());
+        assertArrayEquals(new String[] { "a.txt", "algebra" }, view.cd("math").ls().toArray());
+        assertArrayEquals(new String[] { "before" }, view.cd("math").readLines("a.txt").toArray());
+        assertArrayEquals(new String[] { "after" }, math.readLines("a.txt").toArray());
+        assertThrows(ReadOnlyFileSystemException.class, () -> view.mkdir("docs"));
+        assertThrows(ReadOnlyFileSystemException.class, () -> view.cd("math").mkfile("c.txt"));
+        assertThrows(ReadOnlyFileSystemException.class, () -> view.rmdirs("math"));
+        // nothing is dropped before the check
+        var image = temp.getRoot().toPath().resolve("live.imfs");
+        fs.snapshot(image);
+        assertThrows(ReadOnlyFileSystemException.class, () -> snapshot.restore(image));
+        assertThrows(ReadOnlyFileSystemException.class, snapshot::reset);
+        assertArrayEquals(new String[] { "Spanish", "history", "math" }, view.ls().toArray());
+
+        fs.rollback(snapshot);
+        assertArrayEquals(new String[] { "Spanish", "history", "math" }, context.ls().toArray());
+        assertArrayEquals(new String[] { "a.txt", "algebra" }, math.ls().toArray());
+        assertArrayEquals(new String[] { "before" }, math.readLines("a.txt").toArray());
+        // the volume and the snapshot are independent again
+        math.mkfile("c.txt");
+        assertArrayEquals(new String[] { "a.txt", "algebra" }, view.cd("math").ls().toArray());
+    }
+
+    @Test
+    public void testOldestSnapshotsAreClosed() throws IOException {
+        fileSystem = FileSystems.newFileSystem(OFFHEAP, Map.of(
+                ImfsOptions.STORAGE, "offheap",
+                ImfsOptions.MAX_SNAPSHOTS, 2));
+        var fs = (ImfsFileSystem) fileSystem;
+        var file = Paths.get(OFFHEAP.resolve("/a.bin"));
+        Files.write(file, randomBytes(100_000));
+        var first = fs.openSnapshot("ImfsFileSystemTest-v1");
+        Files.write(file, randomBytes(200_000));
+        var second = fs.openSnapshot("ImfsFileSystemTest-v2");
+        Files.delete(file);
+        // both versions stay alive through the snapshots
+        assertTrue(fs.stats().getAllocatedBytes() >= 300_000);
+
+        var third = fs.openSnapshot("ImfsFileSystemTest-v3");
+        assertFalse(first.isOpen());
+        assertEquals(List.of(second, third), fs.snapshots());
+        assertTrue(fs.stats().getAllocatedBytes() < 300_000);
+        assertThrows(FileSystemAlreadyExistsException.class, () -> fs.openSnapshot("ImfsFileSystemTest-v2"));
+
+        fs.close();
+        assertFalse(second.isOpen());
+        assertFalse(third.isOpen());
+        assertEquals(0, fs.stats().getAllocatedBytes());
+    }
+
+    @Test
+    public void testRestoreRejectsOtherFiles() throws IOException {
+        var fs = newOffHeap();
+        var bogus = temp.newFile("bogus.imfs").toPath();
+        Files.write(bogus, randomBytes(100));
+        assertThrows(IOException.class, () -> fs.restore(bogus));
+    }
+}
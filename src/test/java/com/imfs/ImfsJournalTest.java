@@ -0,0 +1,298 @@
+package com.imfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Durability: every test writes through a journaled volume, closes it and
+// checks what a fresh volume recovers from the same journal.
+public class ImfsJournalTest {
+    private static final URI VOLUME = URI.create("imfs://ImfsJournalTest/");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ImfsFileSystem fileSystem;
+
+    @After
+    public void teardown() throws IOException {
+        if (fileSystem != null) {
+            fileSystem.close();
+        }
+    }
+
+    private Path journal() {
+        return temp.getRoot().toPath().resolve("volume.log");
+    }
+
+    private ImfsFileSystem open(Map<String, Object> extra) throws IOException {
+        var env = new HashMap<String, Object>(extra);
+        env.put(ImfsOptions.JOURNAL, journal().toString());
+        fileSystem = (ImfsFileSystem) FileSystems.newFileSystem(VOLUME, env);
+        return fileSystem;
+    }
+
+    private ImfsFileSystem reopen(Map<String, Object> extra) throws IOException {
+        fileSystem.close();
+        return open(extra);
+    }
+
+    private static Path path(String materializedPath) {
+        return Paths.get(VOLUME.resolve("/" + materializedPath));
+    }
+
+    private static List<String> ls(String materializedPath) throws IOException {
+        try (var kids = Files.list(path(materializedPath))) {
+            return kids.map(kid -> ImfsFileSystem.nameOf(((ImfsPath) kid).getMaterializedPath())).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testAppendsLogOnlyTheNewBytes() throws IOException {
+        open(Map.of());
+        var big = new byte[3 * ImfsBlob.BLOCK_SIZE];
+        Files.write(path("docs.log"), big);
+        long logged = Files.size(journal());
+        for (int i = 0; i < 100; i++) {
+            Files.write(path("docs.log"), new byte[] { (byte) i }, StandardOpenOption.APPEND);
+        }
+        fileSystem.close();
+        // a few dozen bytes of framing per append, not a copy of the file
+        assertTrue(Files.size(journal()) - logged < 100 * 100);
+
+        open(Map.of());
+        var bytes = Files.readAllBytes(path("docs.log"));
+        assertEquals(big.length + 100, bytes.length);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((byte) i, bytes[big.length + i]);
+        }
+    }
+
+    @Test
+    public void testTruncateLogsOnlyTheNewSize() throws IOException {
+        open(Map.of());
+        var big = new byte[3 * ImfsBlob.BLOCK_SIZE];
+        new Random(3).nextBytes(big);
+        Files.write(path("docs.log"), big);
+        fileSystem.journal().flush();
+        long logged = Files.size(journal());
+        // an appending channel cuts the file in place
+        try (var channel = Files.newByteChannel(path("docs.log"), StandardOpenOption.APPEND)) {
+            channel.truncate(ImfsBlob.BLOCK_SIZE + 10);
+        }
+        fileSystem.close();
+        assertTrue(Files.size(journal()) - logged < 100);
+
+        open(Map.of());
+        assertArrayEquals(Arrays.copyOf(big, ImfsBlob.BLOCK_SIZE + 10), Files.readAllBytes(path("docs.log")));
+    }
+
+    @Test
+    public void testLargeContentsAreLoggedInChunks() throws IOException {
+        open(Map.of()).journal().chunkBytes(ImfsBlob.BLOCK_SIZE / 3);
+        var bytes = new byte[2 * ImfsBlob.BLOCK_SIZE + 123];
+        new Random(5).nextBytes(bytes);
+        Files.write(path("math/a.bin"), Arrays.copyOf(bytes, ImfsBlob.BLOCK_SIZE + 7));
+        Files.write(path("math/a.bin"), Arrays.copyOfRange(bytes, ImfsBlob.BLOCK_SIZE + 7, bytes.length),
+                StandardOpenOption.APPEND);
+        Files.write(path("math/b.bin"), "small".getBytes());
+
+        reopen(Map.of());
+        assertArrayEquals(bytes, Files.readAllBytes(path("math/a.bin")));
+        assertArrayEquals("small".getBytes(), Files.readAllBytes(path("math/b.bin")));
+    }
+
+    @Test
+    public void testReplayRestoresMutations() throws IOException {
+        open(Map.of());
+        Files.createDirectory(path("docs"));
+        Files.write(path("docs/a.txt"), "hello".getBytes());
+        Files.write(path("docs/b.txt"), "first".getBytes());
+        Files.write(path("docs/b.txt"), "second".getBytes());
+        Files.copy(path("docs/a.txt"), path("docs/c.txt"));
+        Files.move(path("docs/a.txt"), path("math/a.txt"));
+        Files.delete(path("history"));
+        Files.createFile(path("docs/empty.txt"));
+        Files.createDirectory(path("math/sub"));
+        Files.write(path("math/sub/x.txt"), "x".getBytes());
+        Files.move(path("math/sub"), path("Spanish/sub"));
+        Files.copy(path("Spanish/sub"), path("Spanish/copy"), ImfsCopyOption.RECURSIVE);
+        Files.write(path("Spanish/copy/x.txt"), "y".getBytes());
+
+        reopen(Map.of());
+
+        assertEquals(List.of("Spanish", "docs", "math"), ls(""));
+        assertEquals(List.of("b.txt", "c.txt", "empty.txt"), ls("docs"));
+        assertArrayEquals("second".getBytes(), Files.readAllBytes(path("docs/b.txt")));
+        assertArrayEquals("hello".getBytes(), Files.readAllBytes(path("docs/c.txt")));
+        assertArrayEquals("hello".getBytes(), Files.readAllBytes(path("math/a.txt")));
+        assertEquals(0, Files.size(path("docs/empty.txt")));
+        assertEquals(List.of("a.txt"), ls("math"));
+        assertArrayEquals("x".getBytes(), Files.readAllBytes(path("Spanish/sub/x.txt")));
+        assertArrayEquals("y".getBytes(), Files.readAllBytes(path("Spanish/copy/x.txt")));
+    }
+
+    @Test
+    public void testRestoreIsRejected() throws IOException {
+        open(Map.of());
+        Files.write(path("math/a.txt"), "kept".getBytes());
+        var image = temp.getRoot().toPath().resolve("other.imfs");
+        fileSystem.snapshot(image);
+        Files.delete(path("math/a.txt"));
+        // the log can't express it, a reopen would replay the old contents
+        assertThrows(UnsupportedOperationException.class, () -> fileSystem.restore(image));
+        assertEquals(List.of(), ls("math"));
+    }
+
+    @Test
+    public void testPublicMutatorsAreLogged() throws IOException {
+        open(Map.of());
+        fileSystem.putRecord(ImfsRecord.ofDir("notes"));
+        fileSystem.putBlob("notes/a.txt", "a".getBytes());
+        fileSystem.putBlob("notes/b.txt", "b".getBytes());
+        fileSystem.putBlob("notes/c", "c".getBytes());
+        fileSystem.removeEntry("notes/b.txt");
+        fileSystem.putRecord(ImfsRecord.ofDir("notes/c"));
+        assertThrows(UnsupportedOperationException.class, () -> fileSystem.reset());
+
+        reopen(Map.of());
+        assertEquals(List.of("a.txt", "c"), ls("notes"));
+        assertArrayEquals("a".getBytes(), fileSystem.getBlob("notes/a.txt"));
+        assertTrue(Files.isDirectory(path("notes/c")));
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws IOException {
+        open(Map.of());
+        Files.write(path("math/a.txt"), "kept".getBytes());
+        fileSystem.close();
+        // a crash in the middle of an append leaves a partial entry behind
+        Files.write(journal(), new byte[] { 0, 0, 0, 0, 0, 0, 1, 0, 42 }, StandardOpenOption.APPEND);
+
+        open(Map.of());
+        assertArrayEquals("kept".getBytes(), Files.readAllBytes(path("math/a.txt")));
+        Files.write(path("math/b.txt"), "after".getBytes());
+
+        reopen(Map.of());
+        assertEquals(List.of("a.txt", "b.txt"), ls("math"));
+        assertArrayEquals("after".getBytes(), Files.readAllBytes(path("math/b.txt")));
+    }
+
+    @Test
+    public void testBatchReplaysWholeOrNotAtAll() throws IOException {
+        open(Map.of());
+        Files.write(path("math/a.txt"), "kept".getBytes());
+        fileSystem.putAll(Map.of(
+                "math/b.txt", "one".getBytes(),
+                "math/new/c.txt", "two".getBytes()));
+
+        reopen(Map.of());
+        assertEquals(List.of("a.txt", "b.txt", "new"), ls("math"));
+        assertArrayEquals("two".getBytes(), Files.readAllBytes(path("math/new/c.txt")));
+        fileSystem.close();
+        // a crash before the end of the batch reached the disk
+        try (var channel = FileChannel.open(journal(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        open(Map.of());
+        assertEquals(List.of("a.txt"), ls("math"));
+    }
+
+    @Test
+    public void testCompactionMovesLogIntoImage() throws Exception {
+        var bytes = new byte[10_000];
+        open(Map.of(ImfsOptions.JOURNAL_COMPACT_BYTES, 1 << 20));
+        for (int i = 0; i < 50; i++) {
+            Files.write(path("math/f" + i), bytes);
+        }
+        fileSystem.journal().compact();
+        Files.write(path("math/late"), "late".getBytes());
+        for (int i = 0; i < 500 && fileSystem.journal().compactedSequence() < 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(fileSystem.journal().compactedSequence() > 0);
+        Files.delete(path("math/f0"));
+        fileSystem.journal().flush();
+
+        // the log only keeps what came after the cut
+        assertTrue(Files.exists(Paths.get(journal() + ".image")));
+        assertTrue(Files.size(journal()) < 50 * bytes.length);
+
+        reopen(Map.of());
+        var names = ls("math");
+        assertEquals(50, names.size());
+        assertFalse(names.contains("f0"));
+        assertArrayEquals("late".getBytes(), Files.readAllBytes(path("math/late")));
+        assertArrayEquals(bytes, Files.readAllBytes(path("math/f49")));
+    }
+
+    @Test
+    public void testIdleWriterBlocks() throws Exception {
+        assertThrows(IllegalArgumentException.class,
+                () -> open(Map.of(ImfsOptions.JOURNAL_SYNC_MILLIS, 0)));
+        open(Map.of());
+        Files.write(path("math/a.txt"), "a".getBytes());
+        var writer = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("imfs-journal-ImfsJournalTest"))
+                .findFirst()
+                .orElseThrow();
+        // nothing to write or sync, no polling and no fsync every syncMillis
+        for (int i = 0; i < 100 && writer.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, writer.getState());
+    }
+
+    @Test
+    public void testConcurrentWritersGroupCommit() throws Exception {
+        open(Map.of(ImfsOptions.JOURNAL_SYNC, "interval", ImfsOptions.JOURNAL_SYNC_MILLIS, 5));
+        var pool = Executors.newFixedThreadPool(8);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        Files.write(path("math/t" + thread + "-" + i), new byte[] { (byte) i });
+                    }
+                    return null;
+                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        reopen(Map.of());
+        assertEquals(800, ls("math").size());
+        assertArrayEquals(new byte[] { 99 }, Files.readAllBytes(path("math/t7-99")));
+    }
+}
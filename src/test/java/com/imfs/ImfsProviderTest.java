@@ -2,13 +2,40 @@ package com.imfs;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 // Deliberately not constrained to unit testing,
 // while still being developer testing.
@@ -36,4 +63,275 @@ public class ImfsProviderTest {
         assertTrue(fileSystem instanceof ImfsFileSystem);
         assertEquals("default", ((ImfsFileSystem) fileSystem).getKey());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFileChannelPositionalReadWrite() throws IOException {
+        var file = Paths.get(URI.create("imfs://ImfsProviderTest/channel.bin"));
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            assertEquals(5, channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 })));
+            assertEquals(2, channel.write(ByteBuffer.wrap(new byte[] { 8, 9 }), 1));
+            // positional calls leave the position alone
+            assertEquals(5, channel.position());
+            var dst = ByteBuffer.allocate(3);
+            assertEquals(3, channel.read(dst, 0));
+            assertArrayEquals(new byte[] { 1, 8, 9 }, dst.array());
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1), 5));
+        }
+        assertArrayEquals(new byte[] { 1, 8, 9, 4, 5 }, Files.readAllBytes(file));
+        try (var channel = FileChannel.open(file)) {
+            assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+            var mapped = channel.map(MapMode.READ_ONLY, 1, 3);
+            assertTrue(mapped.isReadOnly());
+            assertEquals(3, mapped.remaining());
+            assertEquals(9, mapped.get(1));
+            // a copy, the direct buffers of the JDK are MappedByteBuffers without a file
+            mapped.load().force();
+            var copy = channel.map(MapMode.PRIVATE, 0, 5);
+            copy.put(0, (byte) 7);
+            assertEquals(1, Files.readAllBytes(file)[0]);
+            assertThrows(IOException.class, () -> channel.map(MapMode.READ_ONLY, 4, 2));
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void testWriterFollowsRenames() throws IOException {
+        var dir = Paths.get(URI.create("imfs://ImfsProviderTest/follow"));
+        var moved = Paths.get(URI.create("imfs://ImfsProviderTest/followed"));
+        Files.createDirectories(dir);
+        var file = dir.resolve("a.txt");
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 1, 2 }));
+            Files.move(file, dir.resolve("b.txt"));
+            channel.write(ByteBuffer.wrap(new byte[] { 3 }));
+            // the parent moves too, the writer goes along
+            Files.move(dir, moved);
+        }
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(moved.resolve("b.txt")));
+        assertTrue(Files.notExists(file));
+
+        // a file deleted while open takes the writes with it
+        var gone = moved.resolve("gone.txt");
+        try (var channel = FileChannel.open(gone, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Files.delete(gone);
+            channel.write(ByteBuffer.wrap(new byte[] { 4 }));
+            channel.force(false);
+        }
+        assertTrue(Files.notExists(gone));
+
+        try (var channel = FileChannel.open(moved.resolve("b.txt"), StandardOpenOption.APPEND)) {
+            Files.move(moved.resolve("b.txt"), moved.resolve("c.txt"));
+            channel.write(ByteBuffer.wrap(new byte[] { 5 }));
+            assertEquals(4, channel.size());
+        }
+        assertArrayEquals(new byte[] { 1, 2, 3, 5 }, Files.readAllBytes(moved.resolve("c.txt")));
+    }
+
+    @Test
+    public void testForcePublishesAVersion() throws IOException {
+        var file = Paths.get(URI.create("imfs://ImfsProviderTest/force.bin"));
+        Files.write(file, new byte[] { 1, 2, 3 });
+        try (var reader = FileChannel.open(file);
+                var writer = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            writer.write(ByteBuffer.wrap(new byte[] { 7 }));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(file));
+            writer.force(true);
+            assertArrayEquals(new byte[] { 7, 2, 3 }, Files.readAllBytes(file));
+            // the published version is immutable, later writes copy the block
+            writer.write(ByteBuffer.wrap(new byte[] { 8 }));
+            assertArrayEquals(new byte[] { 7, 2, 3 }, Files.readAllBytes(file));
+            // readers opened before keep their version
+            var dst = ByteBuffer.allocate(3);
+            reader.read(dst, 0);
+            assertArrayEquals(new byte[] { 1, 2, 3 }, dst.array());
+        }
+        assertArrayEquals(new byte[] { 7, 8, 3 }, Files.readAllBytes(file));
+        Files.delete(file);
+    }
+
+    @Test
+    public void testInputStreamReadsTheBlocks() throws IOException {
+        var bytes = new byte[2 * ImfsBlob.BLOCK_SIZE + 10];
+        new Random(3).nextBytes(bytes);
+        var file = Paths.get(URI.create("imfs://ImfsProviderTest/stream.bin"));
+        Files.write(file, bytes);
+        try (var in = Files.newInputStream(file)) {
+            assertEquals(bytes[0] & 0xff, in.read());
+            assertEquals(9, in.skip(9));
+            var rest = in.readAllBytes();
+            assertArrayEquals(Arrays.copyOfRange(bytes, 10, bytes.length), rest);
+            assertEquals(-1, in.read());
+        }
+        try (var in = Files.newInputStream(file); var out = new ByteArrayOutputStream()) {
+            assertEquals(bytes.length, in.transferTo(out));
+            assertArrayEquals(bytes, out.toByteArray());
+        }
+        assertThrows(UnsupportedOperationException.class,
+                () -> Files.newInputStream(file, StandardOpenOption.WRITE));
+        Files.delete(file);
+        assertThrows(NoSuchFileException.class, () -> Files.newInputStream(file));
+    }
+
+    @Test
+    public void testOutputStreamWritesTheBlocks() throws IOException {
+        var file = Paths.get(URI.create("imfs://ImfsProviderTest/out.txt"));
+        var out = Files.newOutputStream(file);
+        out.write('a');
+        out.write("bc\n".getBytes(StandardCharsets.US_ASCII));
+        // published on close
+        assertEquals(0, Files.size(file));
+        out.close();
+        assertThrows(IOException.class, () -> out.write('x'));
+        try (var append = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+            append.write("de\n".getBytes(StandardCharsets.US_ASCII));
+            // appends land right away
+            assertEquals(7, Files.size(file));
+        }
+        try (var lines = Files.lines(file)) {
+            assertEquals(List.of("abc", "de"), lines.collect(Collectors.toList()));
+        }
+        assertThrows(FileAlreadyExistsException.class,
+                () -> Files.newOutputStream(file, StandardOpenOption.CREATE_NEW));
+        Files.write(file, new byte[] { 1 });
+        assertArrayEquals(new byte[] { 1 }, Files.readAllBytes(file));
+        Files.delete(file);
+        assertThrows(NoSuchFileException.class, () -> Files.newOutputStream(file, StandardOpenOption.WRITE));
+    }
+
+    @Test
+    public void testSparseFileReportsAllocatedSize() throws IOException {
+        var file = Paths.get(URI.create("imfs://ImfsProviderTest/sparse.idx"));
+        long size = 1L << 30;
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.position(size - 1).write(ByteBuffer.wrap(new byte[] { 1 }));
+        }
+        assertEquals(size, Files.size(file));
+        assertEquals(size, Files.getAttribute(file, "size"));
+        assertEquals((long) ImfsBlob.BLOCK_SIZE, Files.getAttribute(file, "imfs:allocatedSize"));
+        var attributes = Files.readAttributes(file, "imfs:size,allocatedSize");
+        assertEquals(2, attributes.size());
+        try (var channel = FileChannel.open(file)) {
+            var dst = ByteBuffer.allocate(4);
+            channel.read(dst, size / 2);
+            assertArrayEquals(new byte[4], dst.array());
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void testListedPathsReadFreshAttributes() throws IOException {
+        var dir = Paths.get(URI.create("imfs://ImfsProviderTest/listed"));
+        Files.createDirectory(dir);
+        Files.write(dir.resolve("a.txt"), "hello".getBytes());
+        Files.write(dir.resolve("b.txt"), "bye".getBytes());
+        Files.createDirectory(dir.resolve("sub"));
+        Files.write(dir.resolve("sub/c.txt"), "deep".getBytes());
+        List<Path> kids;
+        try (var stream = Files.newDirectoryStream(dir)) {
+            kids = new ArrayList<>();
+            stream.forEach(kids::add);
+        }
+        assertEquals(List.of(dir.resolve("a.txt"), dir.resolve("b.txt"), dir.resolve("sub")), kids);
+        assertEquals(dir.resolve("a.txt").toUri(), kids.get(0).toUri());
+        List<Path> deep;
+        try (var stream = Files.newDirectoryStream(kids.get(2))) {
+            deep = new ArrayList<>();
+            stream.forEach(deep::add);
+        }
+
+        var file = Files.readAttributes(kids.get(0), BasicFileAttributes.class);
+        assertTrue(file.isRegularFile());
+        assertEquals(5, file.size());
+        assertTrue(Files.isDirectory(kids.get(2)));
+        assertEquals(4, Files.size(deep.get(0)));
+
+        // the entry as it is now, not as it was listed
+        Files.write(dir.resolve("a.txt"), "hello world".getBytes());
+        Files.delete(dir.resolve("b.txt"));
+        assertEquals(11, Files.readAttributes(kids.get(0), BasicFileAttributes.class).size());
+        assertEquals(11, Files.size(kids.get(0)));
+        assertFalse(Files.exists(kids.get(1)));
+        assertFalse(Files.isRegularFile(kids.get(1)));
+        Files.createDirectory(dir.resolve("b.txt"));
+        assertTrue(Files.isDirectory(kids.get(1)));
+
+        // a listed kid of a moved directory is no longer at its path
+        Files.move(dir.resolve("sub"), dir.resolve("moved"));
+        assertFalse(Files.exists(deep.get(0)));
+        assertFalse(Files.exists(kids.get(2)));
+        assertEquals(11, Files.size(kids.get(0)));
+
+        Files.delete(dir.resolve("a.txt"));
+        assertFalse(Files.exists(kids.get(0)));
+        Files.delete(dir.resolve("b.txt"));
+        Files.delete(dir.resolve("moved/c.txt"));
+        Files.delete(dir.resolve("moved"));
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testTransferBetweenFileSystems() throws IOException {
+        var bytes = new byte[3 * ImfsBlob.BLOCK_SIZE + 100];
+        new Random(7).nextBytes(bytes);
+        var host = Files.createTempFile("imfs", ".bin");
+        var file = Paths.get(URI.create("imfs://ImfsProviderTest/transfer.bin"));
+        var copy = Paths.get(URI.create("imfs://ImfsProviderTest/transfer-copy.bin"));
+        try {
+            Files.write(host, bytes);
+            try (var in = FileChannel.open(host);
+                    var out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                assertEquals(bytes.length, out.transferFrom(in, 0, Long.MAX_VALUE));
+                // past the end nothing is transferred
+                assertEquals(0, out.transferFrom(in, bytes.length + 1, 10));
+            }
+            assertArrayEquals(bytes, Files.readAllBytes(file));
+            try (var in = FileChannel.open(file);
+                    var out = FileChannel.open(copy, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                assertEquals(bytes.length - 10, in.transferTo(10, Long.MAX_VALUE, out));
+            }
+            try (var in = FileChannel.open(copy);
+                    var out = FileChannel.open(host, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                assertEquals(bytes.length - 10, in.transferTo(0, Long.MAX_VALUE, out));
+            }
+            assertArrayEquals(Arrays.copyOfRange(bytes, 10, bytes.length), Files.readAllBytes(host));
+        } finally {
+            Files.delete(host);
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    @Test
+    public void testAsynchronousFileChannel() throws Exception {
+        var file = Paths.get(URI.create("imfs://ImfsProviderTest/async.bin"));
+        var executor = Executors.newSingleThreadExecutor();
+        try (var channel = AsynchronousFileChannel.open(file,
+                Set.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), executor)) {
+            assertEquals(3, (int) channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0).get());
+            var dst = ByteBuffer.allocate(2);
+            var done = new CompletableFuture<Integer>();
+            channel.read(dst, 1, "attachment", new CompletionHandler<Integer, String>() {
+                @Override
+                public void completed(Integer result, String attachment) {
+                    done.complete(result);
+                }
+
+                @Override
+                public void failed(Throwable ex, String attachment) {
+                    done.completeExceptionally(ex);
+                }
+            });
+            assertEquals(2, (int) done.get());
+            assertArrayEquals(new byte[] { 2, 3 }, dst.array());
+            var failure = assertThrows(ExecutionException.class,
+                    () -> channel.read(ByteBuffer.allocate(1), -1).get());
+            assertTrue(failure.getCause() instanceof IllegalArgumentException);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(file));
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,73 @@
+package com.imfs.bench;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+/**
+ * Latency of 4KB reads at random positions of a file, through the
+ * synchronous FileChannel and through the AsynchronousFileChannel with a
+ * Future and with a completion handler. The difference is the cost of the
+ * hand off to the executor.
+ * Pass the file sizes in MB as args, eg: 16 256
+ */
+public class AsyncReadBenchmark {
+    private static final int READ_SIZE = 4096;
+    private static final int ITERATIONS = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        var executor = Executors.newFixedThreadPool(4);
+        for (int megabytes : Bench.sizes(args, 16, 256)) {
+            var file = Paths.get(URI.create("imfs://bench-async/file" + megabytes + ".bin"));
+            var bytes = new byte[1 << 20];
+            try (var out = Files.newOutputStream(file)) {
+                for (int i = 0; i < megabytes; i++) {
+                    out.write(bytes);
+                }
+            }
+            long size = (long) megabytes << 20;
+            var random = new Random(megabytes);
+            var dst = ByteBuffer.allocateDirect(READ_SIZE);
+
+            System.out.println("--- file size: " + megabytes + "MB");
+            try (var sync = FileChannel.open(file)) {
+                Bench.latency("sync read 4KB (" + megabytes + "MB)", ITERATIONS,
+                        () -> sync.read(dst.clear(), position(random, size)));
+            }
+            try (var async = AsynchronousFileChannel.open(file, Set.of(StandardOpenOption.READ), executor)) {
+                Bench.latency("async Future read 4KB (" + megabytes + "MB)", ITERATIONS,
+                        () -> async.read(dst.clear(), position(random, size)).get());
+                Bench.latency("async handler read 4KB (" + megabytes + "MB)", ITERATIONS, () -> {
+                    var done = new CompletableFuture<Integer>();
+                    async.read(dst.clear(), position(random, size), done, new CompletionHandler<>() {
+                        @Override
+                        public void completed(Integer result, CompletableFuture<Integer> attachment) {
+                            attachment.complete(result);
+                        }
+
+                        @Override
+                        public void failed(Throwable ex, CompletableFuture<Integer> attachment) {
+                            attachment.completeExceptionally(ex);
+                        }
+                    });
+                    return done.get();
+                });
+            }
+            Files.delete(file);
+        }
+        executor.shutdown();
+    }
+
+    private static long position(Random random, long size) {
+        return (long) (random.nextDouble() * (size - READ_SIZE));
+    }
+}
@@ -0,0 +1,77 @@
+package com.imfs.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Minimal timing harness for the benchmarks in this package.
+ * Benchmarks are plain main() classes so they stay out of the unit test run.
+ * Run them on the system class path so the imfs provider gets installed, eg:
+ * mvn test-compile && java -cp target/classes:target/test-classes
+ * com.imfs.bench.DirectoryListingBenchmark
+ */
+public final class Bench {
+    private Bench() {
+    }
+
+    /**
+     * Runs the body a few times to warm up, then reports the average time per
+     * iteration.
+     *
+     * @param label      printed with the result
+     * @param iterations the number of measured iterations
+     * @param body       the code being measured, its result is kept alive
+     * @return the average nanoseconds per iteration
+     */
+    public static long time(String label, int iterations, Callable<?> body) throws Exception {
+        Object sink = null;
+        for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+            sink = body.call();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = body.call();
+        }
+        long perOp = (System.nanoTime() - start) / iterations;
+        System.out.printf("%-50s %,14d ns/op  (%s)%n", label, perOp, sink);
+        return perOp;
+    }
+
+    /**
+     * Times each iteration on its own and reports the percentiles, for
+     * latency rather than throughput. Warms up like time().
+     *
+     * @return the median nanoseconds per iteration
+     */
+    public static long latency(String label, int iterations, Callable<?> body) throws Exception {
+        Object sink = null;
+        for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+            sink = body.call();
+        }
+        var samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            sink = body.call();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        long p50 = samples[iterations / 2];
+        System.out.printf("%-50s p50 %,10d  p99 %,10d  max %,12d ns  (%s)%n", label, p50,
+                samples[(int) (iterations * 0.99)], samples[iterations - 1], sink);
+        return p50;
+    }
+
+    /**
+     * Parses entry counts from the command line, falling back to the defaults.
+     */
+    public static int[] sizes(String[] args, int... defaults) {
+        if (args.length == 0) {
+            return defaults;
+        }
+        int[] result = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            result[i] = Integer.parseInt(args[i].replace("_", ""));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,108 @@
+package com.imfs.bench;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.imfs.ImfsFileSystem;
+
+/**
+ * Measures mutation throughput with 1 to N threads on one volume.
+ * Each thread writes, lists, moves and deletes files in its own directory
+ * under a shared parent, so only the shared parent and the striped locks
+ * are contended. Then it runs the same writers next to a thread that keeps
+ * moving a directory back and forth: a directory move takes the namespace
+ * lock exclusively, so every writer of the volume waits for it.
+ * Args: seconds per step, max threads (defaults to the cores).
+ */
+public class ConcurrencyBenchmark {
+    private static final byte[] CONTENT = new byte[128];
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        var root = Paths.get(URI.create("imfs://bench-concurrency/"));
+        var fs = (ImfsFileSystem) root.getFileSystem();
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            fs.reset();
+            double opsPerSecond = run(root, threads, seconds, null);
+            if (threads == 1) {
+                single = opsPerSecond;
+            }
+            System.out.printf("threads=%2d  %,12.0f ops/s  speedup=%.2fx%n",
+                    threads, opsPerSecond, opsPerSecond / single);
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            fs.reset();
+            double alone = run(root, threads, seconds, null);
+            fs.reset();
+            var moves = new long[1];
+            double opsPerSecond = run(root, threads, seconds, moves);
+            System.out.printf("threads=%2d  %,12.0f ops/s while moving %,8.0f dirs/s, %.0f%% of %,.0f ops/s alone%n",
+                    threads, opsPerSecond, moves[0] / (double) seconds, 100 * opsPerSecond / alone, alone);
+        }
+    }
+
+    // moves counts the directory moves made meanwhile, null for none
+    private static double run(Path root, int threads, int seconds, long[] moves) throws Exception {
+        var pool = Executors.newFixedThreadPool(threads + 1);
+        var stop = new AtomicBoolean();
+        Future<Long> mover = null;
+        if (moves != null) {
+            var from = Files.createDirectory(Files.createDirectory(root.resolve("moving")).resolve("from"));
+            for (int i = 0; i < 100; i++) {
+                Files.write(from.resolve("f" + i), CONTENT);
+            }
+            var to = root.resolve("moving/to");
+            mover = pool.submit(() -> {
+                long count = 0;
+                while (!stop.get()) {
+                    Files.move(from, to);
+                    Files.move(to, from);
+                    count += 2;
+                }
+                return count;
+            });
+        }
+        List<Future<Long>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            var dir = Files.createDirectory(root.resolve("worker" + t));
+            results.add(pool.submit(() -> {
+                long ops = 0;
+                for (long i = 0; !stop.get(); i++) {
+                    var file = dir.resolve("f" + i);
+                    Files.write(file, CONTENT);
+                    var moved = dir.resolve("m" + i);
+                    Files.move(file, moved);
+                    try (var kids = Files.list(dir)) {
+                        kids.count();
+                    }
+                    Files.delete(moved);
+                    ops += 4;
+                }
+                return ops;
+            }));
+        }
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        stop.set(true);
+        long total = 0;
+        for (var result : results) {
+            total += result.get();
+        }
+        if (mover != null) {
+            moves[0] = mover.get();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        return total / elapsed;
+    }
+}
@@ -0,0 +1,77 @@
+package com.imfs.bench;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.imfs.ImfsFileSystem;
+import com.imfs.ImfsRecord;
+
+/**
+ * Lists the root and a deep directory of volumes with a growing number of
+ * entries. Directories list their own children, so both should stay flat as
+ * the volume grows.
+ * Pass the volume sizes as args, eg: 10_000 1_000_000 10_000_000
+ * (10M entries needs a few GB of heap).
+ */
+public class DirectoryListingBenchmark {
+    private static final int TOP_DIRS = 16;
+    private static final int FILES_PER_BUCKET = 1000;
+    private static final int DEPTH = 8;
+    private static final byte[] EMPTY = {};
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 10_000, 1_000_000)) {
+            var key = "bench-listing-" + size;
+            var root = Paths.get(URI.create("imfs://" + key + "/"));
+            var fs = (ImfsFileSystem) root.getFileSystem();
+            populate(fs, size);
+            var deep = root.resolve(deepPath());
+
+            System.out.println("--- entries: " + size);
+            Bench.time("list / (" + size + ")", 1000, () -> {
+                try (var kids = Files.list(root)) {
+                    return kids.count();
+                }
+            });
+            Bench.time("list /" + deepPath() + " (" + size + ")", 1000, () -> {
+                try (var kids = Files.list(deep)) {
+                    return kids.count();
+                }
+            });
+            fs.reset();
+        }
+    }
+
+    private static String deepPath() {
+        var result = new StringBuilder("deep");
+        for (int level = 1; level < DEPTH; level++) {
+            result.append("/l").append(level);
+        }
+        return result.toString();
+    }
+
+    // the bulk goes into buckets below the top dirs, so the root and the deep
+    // dir have a fixed number of kids regardless of the volume size
+    private static void populate(ImfsFileSystem fs, int size) {
+        var deep = deepPath();
+        var path = "";
+        for (var name : deep.split("/")) {
+            path = path.isEmpty() ? name : path + "/" + name;
+            fs.putRecord(ImfsRecord.ofDir(path));
+        }
+        for (int i = 0; i < TOP_DIRS; i++) {
+            fs.putRecord(ImfsRecord.ofDir("top" + i));
+            fs.putBlob(deep + "/file" + i, EMPTY);
+        }
+        int count = DEPTH + 2 * TOP_DIRS;
+        for (int bucket = 0; count < size; bucket++) {
+            var bucketPath = "top" + (bucket % TOP_DIRS) + "/bucket" + bucket;
+            fs.putRecord(ImfsRecord.ofDir(bucketPath));
+            count++;
+            for (int file = 0; file < FILES_PER_BUCKET && count < size; file++, count++) {
+                fs.putBlob(bucketPath + "/file" + file, EMPTY);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.imfs.bench;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.imfs.ImfsCopyOption;
+import com.imfs.ImfsFileSystem;
+import com.imfs.ImfsRecord;
+
+/**
+ * Renames a directory back and forth, moves it between parents and copies
+ * it recursively, in volumes where it has a growing number of descendants.
+ * Moves relink one node and copies share it, so the time per operation
+ * should stay flat as the subtree grows.
+ * Pass the subtree sizes as args, eg: 10_000 1_000_000
+ */
+public class DirectoryMoveBenchmark {
+    private static final int FILES_PER_BUCKET = 1000;
+    private static final byte[] EMPTY = {};
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 10_000, 1_000_000)) {
+            var key = "bench-move-" + size;
+            var root = Paths.get(URI.create("imfs://" + key + "/"));
+            var fs = (ImfsFileSystem) root.getFileSystem();
+            fs.putRecord(ImfsRecord.ofDir("a"));
+            fs.putRecord(ImfsRecord.ofDir("b"));
+            populate(fs, "a/tree", size);
+            var names = new String[] { "a/tree", "a/renamed", "b/tree" };
+
+            System.out.println("--- descendants: " + size);
+            var current = new int[] { 0 };
+            Bench.time("rename a/tree <-> a/renamed (" + size + ")", 10_000, () -> {
+                int next = current[0] == 0 ? 1 : 0;
+                Files.move(root.resolve(names[current[0]]), root.resolve(names[next]));
+                current[0] = next;
+                return next;
+            });
+            Bench.time("move a/tree <-> b/tree (" + size + ")", 10_000, () -> {
+                int next = current[0] == 2 ? 0 : 2;
+                Files.move(root.resolve(names[current[0]]), root.resolve(names[next]));
+                current[0] = next;
+                return next;
+            });
+            var copies = new int[] { 0 };
+            Bench.time("copy -r a/tree (" + size + ")", 1000, () -> {
+                var copy = root.resolve("b/copy" + copies[0]++);
+                Files.copy(root.resolve(names[current[0]]), copy, ImfsCopyOption.RECURSIVE);
+                return copies[0];
+            });
+            fs.close();
+        }
+    }
+
+    private static void populate(ImfsFileSystem fs, String top, int size) {
+        fs.putRecord(ImfsRecord.ofDir(top));
+        int count = 0;
+        for (int bucket = 0; count < size; bucket++) {
+            var bucketPath = top + "/bucket" + bucket;
+            fs.putRecord(ImfsRecord.ofDir(bucketPath));
+            count++;
+            for (int file = 0; file < FILES_PER_BUCKET && count < size; file++, count++) {
+                fs.putBlob(bucketPath + "/file" + file, EMPTY);
+            }
+        }
+    }
+}
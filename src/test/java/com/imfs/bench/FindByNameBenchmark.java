@@ -0,0 +1,66 @@
+package com.imfs.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import com.imfs.ImfsFileSystem;
+import com.imfs.ImfsOptions;
+import com.imfs.ImfsRecord;
+
+/**
+ * Finds a name that a handful of entries have, in volumes with a growing
+ * number of entries, with and without a name index. The index also makes
+ * directory moves pay for the entries below them, the last line moves one
+ * of the top directories back and forth.
+ * Pass the volume sizes as args, eg: 100_000 1_000_000
+ */
+public class FindByNameBenchmark {
+    private static final int TOP_DIRS = 16;
+    private static final int FILES_PER_BUCKET = 1000;
+    private static final byte[] EMPTY = {};
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 100_000, 1_000_000)) {
+            System.out.println("--- entries: " + size);
+            for (var withIndex : new boolean[] { false, true }) {
+                var key = "bench-find-" + (withIndex ? "indexed-" : "walked-") + size;
+                try (var fs = (ImfsFileSystem) FileSystems.newFileSystem(URI.create("imfs://" + key + "/"),
+                        Map.of(ImfsOptions.NAME_INDEX, withIndex))) {
+                    populate(fs, size);
+                    var label = withIndex ? "index" : "walk";
+                    Bench.time("find / (" + label + ", " + size + ")", 20,
+                            () -> fs.findByName("", "pom.xml").size());
+                    Bench.time("find /top3 (" + label + ", " + size + ")", 20,
+                            () -> fs.findByName("top3", "pom.xml").size());
+                    var top = Paths.get(URI.create("imfs://" + key + "/top0"));
+                    var moved = Paths.get(URI.create("imfs://" + key + "/moved"));
+                    Bench.time("move /top0 (" + label + ", " + size + ")", 10, () -> {
+                        Files.move(top, moved);
+                        return Files.move(moved, top);
+                    });
+                }
+            }
+        }
+    }
+
+    // one pom.xml per top dir, the bulk in buckets below them
+    private static void populate(ImfsFileSystem fs, int size) throws IOException {
+        for (int i = 0; i < TOP_DIRS; i++) {
+            fs.putRecord(ImfsRecord.ofDir("top" + i));
+            fs.putBlob("top" + i + "/pom.xml", EMPTY);
+        }
+        int count = 2 * TOP_DIRS;
+        for (int bucket = 0; count < size; bucket++) {
+            var bucketPath = "top" + (bucket % TOP_DIRS) + "/bucket" + bucket;
+            fs.putRecord(ImfsRecord.ofDir(bucketPath));
+            count++;
+            for (int file = 0; file < FILES_PER_BUCKET && count < size; file++, count++) {
+                fs.putBlob(bucketPath + "/file" + file + ".java", EMPTY);
+            }
+        }
+    }
+}
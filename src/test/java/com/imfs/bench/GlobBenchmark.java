@@ -0,0 +1,62 @@
+package com.imfs.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.imfs.ImfsFileSystem;
+import com.imfs.ImfsRecord;
+
+/**
+ * Pattern queries over volumes with a growing number of entries: a walk
+ * filtered by a PathMatcher against findMatching, which only walks the
+ * directories that can match. The matches are about the same at every size.
+ * Pass the volume sizes as args, eg: 100_000 1_000_000
+ */
+public class GlobBenchmark {
+    private static final int TOP_DIRS = 16;
+    private static final int FILES_PER_BUCKET = 1000;
+    private static final byte[] EMPTY = {};
+    private static final String[] PATTERNS = { "glob:top3/bucket3/*.java", "glob:top3/*/file7.*",
+            "glob:*/pom.xml", "regex:top3/bucket3/file1\\d\\.java" };
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 100_000, 1_000_000)) {
+            System.out.println("--- entries: " + size);
+            var uri = URI.create("imfs://bench-glob-" + size + "/");
+            try (var fs = (ImfsFileSystem) FileSystems.newFileSystem(uri, Map.of())) {
+                populate(fs, size);
+                for (var pattern : PATTERNS) {
+                    var matcher = fs.getPathMatcher(pattern);
+                    Bench.time("walk " + pattern + " (" + size + ")", 5, () -> {
+                        try (var paths = Files.walk(Paths.get(uri))) {
+                            return paths.filter(matcher::matches).collect(Collectors.toList()).size();
+                        }
+                    });
+                    Bench.time("query " + pattern + " (" + size + ")", 20, () -> fs.findMatching(pattern).size());
+                }
+            }
+        }
+    }
+
+    // one pom.xml per top dir, the bulk in buckets below them
+    private static void populate(ImfsFileSystem fs, int size) throws IOException {
+        for (int i = 0; i < TOP_DIRS; i++) {
+            fs.putRecord(ImfsRecord.ofDir("top" + i));
+            fs.putBlob("top" + i + "/pom.xml", EMPTY);
+        }
+        int count = 2 * TOP_DIRS;
+        for (int bucket = 0; count < size; bucket++) {
+            var bucketPath = "top" + (bucket % TOP_DIRS) + "/bucket" + bucket;
+            fs.putRecord(ImfsRecord.ofDir(bucketPath));
+            count++;
+            for (int file = 0; file < FILES_PER_BUCKET && count < size; file++, count++) {
+                fs.putBlob(bucketPath + "/file" + file + ".java", EMPTY);
+            }
+        }
+    }
+}
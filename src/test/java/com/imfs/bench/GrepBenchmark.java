@@ -0,0 +1,73 @@
+package com.imfs.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+import com.imfs.ImfsFileSystem;
+
+/**
+ * Greps volumes with a growing number of small text files. "walk" is what
+ * grepTree did before: Files.walk, decode every line and String.matches
+ * (which compiles the regex again per line). "literal" patterns let the
+ * engine skip files on their bytes, "regex" ones have no literal to look
+ * for and match every line.
+ * Pass the file counts as args, eg: 10_000 100_000
+ */
+public class GrepBenchmark {
+    private static final int FILES_PER_DIR = 1000;
+    private static final int LINES_PER_FILE = 40;
+    private static final String LITERAL = ".*needle \\d+.*";
+    private static final String REGEX = "(\\w+ )+7";
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 10_000, 100_000)) {
+            var key = "bench-grep-" + size;
+            var root = Paths.get(URI.create("imfs://" + key + "/"));
+            var fs = (ImfsFileSystem) root.getFileSystem();
+            populate(fs, size);
+
+            System.out.println("--- files: " + size);
+            for (var pattern : new String[] { LITERAL, REGEX }) {
+                var label = pattern == LITERAL ? "literal" : "regex";
+                Bench.time("walk " + label + " (" + size + ")", 3, () -> {
+                    try (var all = Files.walk(root.resolve("data"))) {
+                        return all.filter(Files::isRegularFile)
+                                .flatMap(path -> {
+                                    try {
+                                        return Files.lines(path);
+                                    } catch (IOException ex) {
+                                        throw new RuntimeException(ex);
+                                    }
+                                })
+                                .filter(line -> line.matches(pattern))
+                                .count();
+                    }
+                });
+                var compiled = Pattern.compile(pattern);
+                Bench.time("grep ordered " + label + " (" + size + ")", 3,
+                        () -> fs.grep("data", compiled, true).size());
+                Bench.time("grep unordered " + label + " (" + size + ")", 3,
+                        () -> fs.grep("data", compiled, false).size());
+            }
+            fs.reset();
+        }
+    }
+
+    // one file in 100 has a needle line
+    private static void populate(ImfsFileSystem fs, int size) throws IOException {
+        var files = new HashMap<String, byte[]>();
+        for (int i = 0; i < size; i++) {
+            var text = new StringBuilder();
+            for (int line = 0; line < LINES_PER_FILE; line++) {
+                text.append(i % 100 == 0 && line == 20 ? "a needle " + i : "some words on line " + line)
+                        .append('\n');
+            }
+            files.put("data/dir" + (i / FILES_PER_DIR) + "/file" + i + ".txt", text.toString().getBytes());
+        }
+        fs.putAll(files);
+    }
+}
@@ -0,0 +1,70 @@
+package com.imfs.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams from newInputStream and newOutputStream, which read and write the
+ * blocks directly, against the adapters the default provider methods use
+ * (Channels.newInputStream / newOutputStream over newByteChannel).
+ * Pass the file sizes in KB as args, eg: 4 1024
+ */
+public class StreamBenchmark {
+    private static final int CHUNK = 8192;
+
+    public static void main(String[] args) throws Exception {
+        for (int kilobytes : Bench.sizes(args, 4, 1024, 16 * 1024)) {
+            var file = Paths.get(URI.create("imfs://bench-stream/file" + kilobytes + ".bin"));
+            var bytes = new byte[kilobytes << 10];
+            int iterations = Math.max(20, 200_000 / kilobytes);
+            Files.write(file, bytes);
+
+            System.out.println("--- file size: " + kilobytes + "KB");
+            Bench.time("adapter write 8KB chunks (" + kilobytes + "KB)", iterations,
+                    () -> write(Channels.newOutputStream(Files.newByteChannel(file, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)), bytes));
+            Bench.time("native write 8KB chunks (" + kilobytes + "KB)", iterations,
+                    () -> write(Files.newOutputStream(file), bytes));
+            Bench.time("adapter read 8KB chunks (" + kilobytes + "KB)", iterations,
+                    () -> read(Channels.newInputStream(Files.newByteChannel(file))));
+            Bench.time("native read 8KB chunks (" + kilobytes + "KB)", iterations,
+                    () -> read(Files.newInputStream(file)));
+            Bench.time("adapter readAllBytes (" + kilobytes + "KB)", iterations, () -> {
+                try (var in = Channels.newInputStream(Files.newByteChannel(file))) {
+                    return in.readAllBytes().length;
+                }
+            });
+            Bench.time("native readAllBytes (" + kilobytes + "KB)", iterations, () -> {
+                try (var in = Files.newInputStream(file)) {
+                    return in.readAllBytes().length;
+                }
+            });
+            Files.delete(file);
+        }
+    }
+
+    private static long write(OutputStream out, byte[] bytes) throws Exception {
+        try (out) {
+            for (int offset = 0; offset < bytes.length; offset += CHUNK) {
+                out.write(bytes, offset, Math.min(CHUNK, bytes.length - offset));
+            }
+        }
+        return bytes.length;
+    }
+
+    private static long read(InputStream in) throws Exception {
+        var buffer = new byte[CHUNK];
+        long total = 0;
+        try (in) {
+            for (int n; (n = in.read(buffer)) > 0;) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,72 @@
+package com.imfs.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import com.imfs.ImfsFileSystem;
+import com.imfs.ImfsOptions;
+
+/**
+ * Query latency of grep with and without a trigram index, over volumes
+ * with a growing number of small text files. The rare word is in one file
+ * in 1000, the common one in about every file, the last pattern has no
+ * literal the index could use.
+ * Pass the file counts as args, eg: 10_000 100_000
+ */
+public class TrigramIndexBenchmark {
+    private static final int FILES_PER_DIR = 1000;
+    private static final int WORDS_PER_FILE = 200;
+    private static final String[] WORDS = { "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "theta",
+            "kappa", "lambda", "sigma", "omega", "index", "block", "volume", "journal", "snapshot" };
+    private static final String[] PATTERNS = { ".*xylophone \\d+.*", ".*journal.*", "(\\w+ )+\\d+" };
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 10_000, 100_000)) {
+            var files = contents(size);
+            try (var plain = open("bench-trigrams-plain-" + size, Map.of());
+                    var indexed = open("bench-trigrams-indexed-" + size,
+                            Map.of(ImfsOptions.TRIGRAM_INDEX_BYTES, 1L << 30))) {
+                plain.putAll(files);
+                long start = System.nanoTime();
+                indexed.putAll(files);
+                indexed.awaitIndexed();
+                var stats = indexed.stats();
+                System.out.printf("--- files: %d, indexed %d in %,d ms, index ~%,d KB%n", size,
+                        stats.getIndexedBlobs(), (System.nanoTime() - start) / 1_000_000,
+                        stats.getIndexBytes() / 1024);
+                for (var regex : PATTERNS) {
+                    var pattern = Pattern.compile(regex);
+                    Bench.latency("scan " + regex + " (" + size + ")", 20,
+                            () -> plain.grep("", pattern, false).size());
+                    Bench.latency("index " + regex + " (" + size + ")", 20,
+                            () -> indexed.grep("", pattern, false).size());
+                }
+            }
+        }
+    }
+
+    private static ImfsFileSystem open(String key, Map<String, ?> env) throws IOException {
+        return (ImfsFileSystem) FileSystems.newFileSystem(URI.create("imfs://" + key + "/"), env);
+    }
+
+    private static Map<String, byte[]> contents(int size) {
+        var random = new Random(42);
+        var files = new HashMap<String, byte[]>();
+        for (int i = 0; i < size; i++) {
+            var text = new StringBuilder();
+            for (int word = 0; word < WORDS_PER_FILE; word++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(word % 10 == 9 ? " " + word + "\n" : " ");
+            }
+            if (i % 1000 == 0) {
+                text.append("a xylophone ").append(i).append('\n');
+            }
+            files.put("data/dir" + (i / FILES_PER_DIR) + "/file" + i + ".txt", text.toString().getBytes());
+        }
+        return files;
+    }
+}
@@ -0,0 +1,69 @@
+package com.imfs.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.imfs.ImfsFileSystem;
+import com.imfs.ImfsRecord;
+
+/**
+ * Walks whole volumes with a growing number of entries, reading the
+ * attributes of every entry like most callers of Files.walk and
+ * walkFileTree do. Run it on an older tree to compare, it only uses the
+ * public API.
+ * Pass the volume sizes as args, eg: 100_000 1_000_000
+ */
+public class WalkBenchmark {
+    private static final int TOP_DIRS = 16;
+    private static final int FILES_PER_BUCKET = 1000;
+    private static final byte[] CONTENTS = "hello".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 100_000, 1_000_000)) {
+            var key = "bench-walk-" + size;
+            var root = Paths.get(URI.create("imfs://" + key + "/"));
+            var fs = (ImfsFileSystem) root.getFileSystem();
+            populate(fs, size);
+
+            System.out.println("--- entries: " + size);
+            Bench.time("walk (" + size + ")", 3, () -> {
+                try (var all = Files.walk(root)) {
+                    return all.filter(Files::isRegularFile).count();
+                }
+            });
+            Bench.time("walkFileTree (" + size + ")", 3, () -> {
+                var total = new long[1];
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        total[0] += attrs.size();
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                return total[0];
+            });
+            fs.reset();
+        }
+    }
+
+    private static void populate(ImfsFileSystem fs, int size) {
+        for (int i = 0; i < TOP_DIRS; i++) {
+            fs.putRecord(ImfsRecord.ofDir("top" + i));
+        }
+        int count = TOP_DIRS;
+        for (int bucket = 0; count < size; bucket++) {
+            var bucketPath = "top" + (bucket % TOP_DIRS) + "/bucket" + bucket;
+            fs.putRecord(ImfsRecord.ofDir(bucketPath));
+            count++;
+            for (int file = 0; file < FILES_PER_BUCKET && count < size; file++, count++) {
+                fs.putBlob(bucketPath + "/file" + file, CONTENTS);
+            }
+        }
+    }
+}